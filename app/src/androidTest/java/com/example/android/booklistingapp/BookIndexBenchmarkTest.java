@@ -0,0 +1,111 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Insert and query benchmark of the {@link BookIndex} with 100k books, on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookIndexBenchmarkTest {
+
+    private static final String TAG = "BookIndexBenchmark";
+    private static final int ROWS = 100000;
+    private static final int BATCH_SIZE = 40;
+    private static final int QUERIES = 200;
+
+    private static final String[] WORDS = {"android", "history", "garden", "ocean", "winter",
+            "python", "kitchen", "empire", "physics", "river", "shadow", "music", "island",
+            "dragon", "economy", "poetry", "journey", "silence", "machine", "forest"};
+    private static final String[] AUTHORS = {"Haruki Murakami", "Olga Tokarczuk",
+            "Chimamanda Adichie", "Jorge Luis Borges", "Isabel Allende", "Leo Tolstoy"};
+
+    private BookIndex mIndex;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        // In-memory database, large enough not to evict during the benchmark
+        mIndex = new BookIndex(context, null, ROWS * 2);
+    }
+
+    @After
+    public void tearDown() {
+        mIndex.close();
+    }
+
+    @Test
+    public void queryLatency_at100kRows() {
+        Random random = new Random(42);
+        long insertStart = SystemClock.elapsedRealtime();
+        for (int start = 0; start < ROWS; start += BATCH_SIZE) {
+            List<Book> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = start; i < start + BATCH_SIZE; i++) {
+                batch.add(randomBook(random, i));
+            }
+            mIndex.insertBooks(batch);
+        }
+        long insertMillis = SystemClock.elapsedRealtime() - insertStart;
+        assertEquals(ROWS, mIndex.size());
+
+        long[] samples = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String query = WORDS[random.nextInt(WORDS.length)].substring(0, 4) + " "
+                    + WORDS[random.nextInt(WORDS.length)];
+            long start = System.nanoTime();
+            mIndex.search(query, 200);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        double p50 = samples[QUERIES / 2] / 1e6;
+        double p99 = samples[QUERIES * 99 / 100] / 1e6;
+        Log.i(TAG, String.format("insert %d rows: %d ms, query p50 %.2f ms, p99 %.2f ms",
+                ROWS, insertMillis, p50, p99));
+
+        assertFalse(mIndex.search("android", 10).isEmpty());
+        assertTrue("p99 query latency " + p99 + " ms", p99 < 100);
+    }
+
+    @Test
+    public void oldestBooks_areEvictedOverLimit() {
+        BookIndex index = new BookIndex(InstrumentationRegistry.getTargetContext(), null, 1000);
+        try {
+            Random random = new Random(1);
+            for (int start = 0; start < 3000; start += BATCH_SIZE) {
+                List<Book> batch = new ArrayList<>(BATCH_SIZE);
+                for (int i = start; i < start + BATCH_SIZE; i++) {
+                    batch.add(randomBook(random, i));
+                }
+                index.insertBooks(batch);
+            }
+            assertTrue(index.size() <= 1000);
+        } finally {
+            index.close();
+        }
+    }
+
+    private static Book randomBook(Random random, int i) {
+        String title = WORDS[random.nextInt(WORDS.length)] + " "
+                + WORDS[random.nextInt(WORDS.length)] + " " + i;
+        String id = "vol" + i;
+        return new Book(id, title, AUTHORS[random.nextInt(AUTHORS.length)],
+                "https://books.google.com/books?id=" + id);
+    }
+}
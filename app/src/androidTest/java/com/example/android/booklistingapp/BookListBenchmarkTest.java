@@ -0,0 +1,143 @@
+package com.example.android.booklistingapp;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Heap footprint and parcel time of a {@link BookList} compared to the {@link ArrayList} of
+ * {@link Book}s previously saved in the instance state, at 1k and 10k books.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookListBenchmarkTest {
+
+    private static final String TAG = "BookListBenchmark";
+    private static final int ITERATIONS = 20;
+
+    private static final String[] WORDS = {"android", "history", "garden", "ocean", "winter",
+            "python", "kitchen", "empire", "physics", "river", "shadow", "music", "island"};
+    private static final String[] AUTHORS = {"Haruki Murakami", "Olga Tokarczuk",
+            "Chimamanda Adichie, Jorge Luis Borges", "Isabel Allende", "Leo Tolstoy"};
+
+    @Test
+    public void parcelAndFootprint_1k() {
+        benchmark(1000);
+    }
+
+    @Test
+    public void parcelAndFootprint_10k() {
+        benchmark(10000);
+    }
+
+    private void benchmark(int count) {
+        // Heap retained by each representation of freshly parsed books, once the parsed
+        // page itself is garbage
+        long before = usedHeap();
+        ArrayList<Book> copy = new ArrayList<>(randomBooks(count));
+        long listBytes = usedHeap() - before;
+        before = usedHeap();
+        BookList bookList = new BookList(count);
+        bookList.addAll(randomBooks(count));
+        long bookListBytes = usedHeap() - before;
+
+        long[] listNanos = new long[ITERATIONS];
+        long[] bookListNanos = new long[ITERATIONS];
+        int listParcelBytes = 0;
+        int bookListParcelBytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            listParcelBytes = parcelRoundTrip(copy);
+            listNanos[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            bookListParcelBytes = parcelRoundTrip(bookList);
+            bookListNanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(listNanos);
+        Arrays.sort(bookListNanos);
+        double listMillis = listNanos[ITERATIONS / 2] / 1e6;
+        double bookListMillis = bookListNanos[ITERATIONS / 2] / 1e6;
+
+        Log.i(TAG, String.format("%d books: heap %d -> %d bytes, parcel %d -> %d bytes, "
+                        + "median save+restore %.2f -> %.2f ms", count, listBytes, bookListBytes,
+                listParcelBytes, bookListParcelBytes, listMillis, bookListMillis));
+
+        assertTrue(bookListBytes < listBytes);
+        assertTrue(bookListParcelBytes < listParcelBytes);
+        assertTrue(bookListMillis < listMillis);
+    }
+
+    /**
+     * Write the books to a Bundle the way the activity saves them, then read them back.
+     * Returns the size of the parcel.
+     */
+    private static int parcelRoundTrip(ArrayList<Book> books) {
+        Bundle state = new Bundle();
+        state.putParcelableArrayList("books", new ArrayList<>(books));
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            int size = parcel.dataSize();
+            parcel.setDataPosition(0);
+            Bundle restored = parcel.readBundle(Book.class.getClassLoader());
+            ArrayList<Book> read = restored.getParcelableArrayList("books");
+            assertEquals(books.size(), read.size());
+            return size;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int parcelRoundTrip(BookList books) {
+        Bundle state = new Bundle();
+        state.putParcelable("books", books);
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            int size = parcel.dataSize();
+            parcel.setDataPosition(0);
+            Bundle restored = parcel.readBundle(BookList.class.getClassLoader());
+            BookList read = restored.getParcelable("books");
+            assertEquals(books.size(), read.size());
+            assertEquals(books.getAuthor(books.size() - 1), read.getAuthor(read.size() - 1));
+            return size;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static List<Book> randomBooks(int count) {
+        Random random = new Random(9);
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = "vol" + i;
+            String title = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            // A new String per book, as the parser returns them
+            String author = new String(AUTHORS[random.nextInt(AUTHORS.length)]);
+            books.add(new Book(id, title, author, "https://books.google.com/books?id=" + id));
+        }
+        return books;
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.android.booklistingapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The queries of a batch lookup and the results resolved so far, on disk, so an interrupted
+ * batch can resume where it stopped.
+ * <p>
+ * A batch lives in a directory named after a hash of its queries, so the same list resumes
+ * the same batch. The queries are written once; every resolved query appends a line with its
+ * result, flushed right away. A line cut short by a crash is ignored.
+ */
+final class BatchJournal {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String QUERIES_FILE = "queries.txt";
+    private static final String RESULTS_FILE = "results.txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char SEPARATOR = '\t';
+    // Fields of a result line: index, found, id, title, authors, url, thumbnail url
+    private static final int RESULT_FIELDS = 7;
+
+    private final File mDirectory;
+    private final String mId;
+    private final List<String> mQueries;
+
+    /**
+     * Result of every resolved query by index; null for queries without a match
+     */
+    private final Map<Integer, Book> mResults = new HashMap<>();
+    private Writer mWriter;
+
+    private BatchJournal(File directory, String id, List<String> queries) {
+        mDirectory = directory;
+        mId = id;
+        mQueries = Collections.unmodifiableList(queries);
+    }
+
+    /**
+     * Open the batch of the given queries under the root directory, creating it if it doesn't
+     * exist yet. An existing batch keeps its resolved results.
+     */
+    static BatchJournal create(File root, List<String> queries) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String query : queries) {
+            content.append(sanitize(query)).append('\n');
+        }
+        String id = BookResponseCache.keyOf(content.toString());
+        File directory = new File(root, id);
+        File queriesFile = new File(directory, QUERIES_FILE);
+        if (!queriesFile.exists()) {
+            directory.mkdirs();
+            File temp = new File(directory, QUERIES_FILE + TEMP_SUFFIX);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(content.toString().getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(queriesFile)) {
+                temp.delete();
+                throw new IOException("Couldn't write " + queriesFile);
+            }
+        }
+        return open(root, id);
+    }
+
+    /**
+     * Open an existing batch. Throws a {@link FileNotFoundException} if it doesn't exist.
+     */
+    static BatchJournal open(File root, String id) throws IOException {
+        File directory = new File(root, id);
+        List<String> queries = readLines(new File(directory, QUERIES_FILE));
+        BatchJournal journal = new BatchJournal(directory, id, queries);
+        File resultsFile = new File(directory, RESULTS_FILE);
+        if (resultsFile.exists()) {
+            for (String line : readLines(resultsFile)) {
+                journal.parseResult(line);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Delete the batches under the root directory that weren't touched for the given time
+     */
+    static void deleteExpired(File root, long maxAgeMillis) {
+        File[] batches = root.listFiles();
+        if (batches == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File batch : batches) {
+            if (now - batch.lastModified() > maxAgeMillis) {
+                File[] files = batch.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                batch.delete();
+            }
+        }
+    }
+
+    String getId() {
+        return mId;
+    }
+
+    List<String> getQueries() {
+        return mQueries;
+    }
+
+    synchronized boolean isResolved(int index) {
+        return mResults.containsKey(index);
+    }
+
+    synchronized int getResolvedCount() {
+        return mResults.size();
+    }
+
+    /**
+     * Returns the resolved results by query index. Queries without a match map to null.
+     */
+    synchronized Map<Integer, Book> getResults() {
+        return new HashMap<>(mResults);
+    }
+
+    /**
+     * Record the result of a query, null if nothing matched
+     */
+    synchronized void record(int index, Book book) throws IOException {
+        if (mWriter == null) {
+            mWriter = new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, RESULTS_FILE), true), UTF_8);
+            // Marks the batch as used for deleteExpired()
+            mDirectory.setLastModified(System.currentTimeMillis());
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(index).append(SEPARATOR).append(book != null ? '1' : '0');
+        if (book != null) {
+            appendField(line, book.getId());
+            appendField(line, book.getTitle());
+            appendField(line, book.getAuthor());
+            appendField(line, book.getUrl());
+            appendField(line, book.getThumbnailUrl());
+        } else {
+            for (int i = 2; i < RESULT_FIELDS; i++) {
+                line.append(SEPARATOR);
+            }
+        }
+        line.append('\n');
+        mWriter.write(line.toString());
+        mWriter.flush();
+        mResults.put(index, book);
+    }
+
+    /**
+     * Close the results file. Recording again reopens it.
+     */
+    synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                // Every line was already flushed
+            }
+            mWriter = null;
+        }
+    }
+
+    private void parseResult(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != RESULT_FIELDS) {
+            return;
+        }
+        int index;
+        try {
+            index = Integer.parseInt(fields[0]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (index < 0 || index >= mQueries.size()) {
+            return;
+        }
+        Book book = null;
+        if (fields[1].equals("1")) {
+            book = new Book(emptyToNull(fields[2]), fields[3], emptyToNull(fields[4]),
+                    fields[5], emptyToNull(fields[6]));
+        }
+        mResults.put(index, book);
+    }
+
+    /**
+     * Read the complete lines of the file; a last line without a line break is dropped.
+     */
+    private static List<String> readLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            List<String> lines = new ArrayList<>();
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == '\n') {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                } else {
+                    line.append((char) c);
+                }
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void appendField(StringBuilder line, String value) {
+        line.append(SEPARATOR);
+        if (value != null) {
+            line.append(sanitize(value));
+        }
+    }
+
+    private static String sanitize(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
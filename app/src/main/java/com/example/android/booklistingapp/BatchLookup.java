@@ -0,0 +1,237 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static com.example.android.booklistingapp.BookActivity.LOG_TAG;
+
+/**
+ * Resolves a list of ISBNs or titles to books, one request per query.
+ * <p>
+ * The queries run as a pipeline: a new request starts as soon as one of the at most
+ * concurrency requests in flight finishes. Every request waits for the per-host
+ * {@link RateLimiter} first, on the thread running the batch, so the executor's threads are
+ * never held by a wait. Each result is recorded in the {@link BatchJournal} and handed to the
+ * listener as it resolves, in completion order. Queries whose request failed stay
+ * unresolved, so running the batch again only retries those.
+ */
+final class BatchLookup {
+
+    /**
+     * Builds the request URL of a query
+     */
+    interface UrlFactory {
+        String urlFor(String query);
+    }
+
+    /**
+     * Receives the result of every query, on the thread that resolved it
+     */
+    interface Listener {
+        /**
+         * Called with the index of the query and its best match, or null if none
+         */
+        void onQueryResolved(int index, Book book);
+    }
+
+    // Most lines a batch reads
+    static final int MAX_QUERIES = 5000;
+
+    // How often a waiting caller checks for cancellation
+    private static final long CANCEL_POLL_MILLIS = 50;
+
+    // ISBN-10 (with a possible X check digit) or ISBN-13, once dashes and spaces are removed
+    private static final Pattern ISBN = Pattern.compile("(\\d{9}[\\dXx])|(\\d{13})");
+
+    private final BatchJournal mJournal;
+    private final Executor mExecutor;
+    private final int mConcurrency;
+    private final RateLimiter mRateLimiter;
+    private final UrlFactory mUrlFactory;
+
+    BatchLookup(BatchJournal journal, Executor executor, int concurrency,
+                RateLimiter rateLimiter, UrlFactory urlFactory) {
+        mJournal = journal;
+        mExecutor = executor;
+        mConcurrency = concurrency;
+        mRateLimiter = rateLimiter;
+        mUrlFactory = urlFactory;
+    }
+
+    /**
+     * Returns a factory of Google Books API URLs asking for the best match of each query
+     */
+    static UrlFactory booksApi() {
+        return new UrlFactory() {
+            @Override
+            public String urlFor(String query) {
+                return new BookUrlBuilder(toSearchQuery(query)).maxResults(1).build();
+            }
+        };
+    }
+
+    /**
+     * Read the queries of a batch, one per line. Blank lines and lines starting with '#' are
+     * skipped; of comma separated lines only the first column is used.
+     */
+    static List<String> readQueries(Reader reader, boolean csv) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<String> queries = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null && queries.size() < MAX_QUERIES) {
+            if (csv) {
+                int comma = line.indexOf(',');
+                if (comma >= 0) {
+                    line = line.substring(0, comma);
+                }
+                line = line.replace("\"", "");
+            }
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                queries.add(line);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the Books API query for a line of a batch: an "isbn:" query for ISBNs, the line
+     * itself otherwise.
+     */
+    static String toSearchQuery(String line) {
+        String compact = line.replace("-", "").replace(" ", "");
+        if (ISBN.matcher(compact).matches()) {
+            return "isbn:" + compact.toUpperCase();
+        }
+        return line;
+    }
+
+    /**
+     * Resolve every query the journal doesn't have a result for yet. Returns the number of
+     * queries whose request failed. When the cancellation signal is triggered the requests in
+     * flight are stopped and an {@link OperationCanceledException} is thrown; results that
+     * arrived before are kept in the journal.
+     */
+    int run(final Listener listener, final CancellationSignal cancellationSignal) {
+        final Semaphore slots = new Semaphore(mConcurrency);
+        final AtomicInteger failed = new AtomicInteger();
+        List<String> queries = mJournal.getQueries();
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                if (mJournal.isResolved(i)) {
+                    continue;
+                }
+                acquire(slots, cancellationSignal);
+                final int index = i;
+                final String url = mUrlFactory.urlFor(queries.get(i));
+                boolean permitted;
+                try {
+                    permitted = awaitPermit(index, url, cancellationSignal);
+                } catch (OperationCanceledException e) {
+                    slots.release();
+                    throw e;
+                }
+                if (!permitted) {
+                    slots.release();
+                    failed.incrementAndGet();
+                    continue;
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!resolve(index, url, listener, cancellationSignal)) {
+                                failed.incrementAndGet();
+                            }
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            // Wait for the requests in flight, so none records a result after returning
+            slots.acquireUninterruptibly(mConcurrency);
+            slots.release(mConcurrency);
+            mJournal.close();
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        return failed.get();
+    }
+
+    /**
+     * Wait on the calling thread until the rate limiter lets the request of a query start, so
+     * the executor's threads only run requests. Returns false if the URL is malformed; throws
+     * {@link OperationCanceledException} when cancelled while waiting.
+     */
+    private boolean awaitPermit(int index, String url, CancellationSignal cancellationSignal) {
+        try {
+            mRateLimiter.acquire(new URL(url).getHost(), cancellationSignal);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (MalformedURLException e) {
+            Log.w(LOG_TAG, "Problem resolving batch query " + index, e);
+            return false;
+        }
+    }
+
+    /**
+     * Resolve one query from its request URL. Returns false if its request failed.
+     */
+    private boolean resolve(int index, String url, Listener listener,
+                            CancellationSignal cancellationSignal) {
+        try {
+            List<Book> books = QueryUtils.fetchEarthquakeData(url, cancellationSignal);
+            if (books == null) {
+                return false;
+            }
+            Book book = books.isEmpty() ? null : books.get(0);
+            mJournal.record(index, book);
+            if (listener != null) {
+                listener.onQueryResolved(index, book);
+            }
+            return true;
+        } catch (OperationCanceledException e) {
+            // Stopped with the batch
+            return false;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Problem resolving batch query " + index, e);
+            return false;
+        }
+    }
+
+    private static void acquire(Semaphore slots, CancellationSignal cancellationSignal) {
+        try {
+            while (!slots.tryAcquire(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        }
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            slots.release();
+            throw new OperationCanceledException();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.booklistingapp.BookActivity.LOG_TAG;
+
+/**
+ * Runs a {@link BatchLookup} of shared text, a text file or an interrupted batch, and
+ * delivers the books found in the order of the queries.
+ * <p>
+ * While the batch runs, the books found so far are handed to the partial results callback
+ * after every query, like {@link BookLoader} does. A cancelled or interrupted batch resumes
+ * from its {@link BatchJournal}.
+ */
+public class BatchLookupLoader extends AsyncTaskLoader<List<Book>> {
+
+    private static final String DIRECTORY_NAME = "batches";
+    // Batches not touched for this long are deleted when a new one starts
+    private static final long MAX_BATCH_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // Requests in flight; they run in the prefetch lane of the TaskScheduler, and staying below
+    // its concurrency leaves a thread there for the pages of a search and connection prewarming
+    private static final int CONCURRENCY = 1;
+    // Requests per second to one host, and the burst allowed before that applies
+    private static final double PERMITS_PER_SECOND = 5;
+    private static final int BURST = 5;
+
+    private static final RateLimiter sRateLimiter = new RateLimiter(PERMITS_PER_SECOND, BURST);
+
+    private final String mText;
+    private final Uri mUri;
+    private final boolean mCsv;
+    private final String mResumeId;
+
+    /**
+     * Last delivered results
+     */
+    private List<Book> mBooks;
+
+    private volatile String mBatchId;
+    private volatile int mQueryCount;
+    private volatile int mResolvedCount;
+    private volatile int mFoundCount;
+    private volatile int mFailedCount;
+
+    private volatile PartialResultPublisher.Callback mPartialResultsCallback;
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * Forwards partial results to the callback while this loader still wants them
+     */
+    private final PartialResultPublisher.Callback mPartialResults =
+            new PartialResultPublisher.Callback() {
+                @Override
+                public void onPartialResults(List<Book> books) {
+                    PartialResultPublisher.Callback callback = mPartialResultsCallback;
+                    if (callback != null && isStarted() && !isAbandoned()) {
+                        callback.onPartialResults(books);
+                    }
+                }
+            };
+
+    /**
+     * Create a loader for a new batch: the queries are the lines of the text, or of the file
+     * at the URI if the text is null. Resumes the batch if the same queries ran before.
+     */
+    public BatchLookupLoader(Context context, String text, Uri uri, boolean csv) {
+        super(context);
+        mText = text;
+        mUri = uri;
+        mCsv = csv;
+        mResumeId = null;
+    }
+
+    /**
+     * Create a loader resuming the batch with the given id
+     */
+    public BatchLookupLoader(Context context, String batchId) {
+        super(context);
+        mText = null;
+        mUri = null;
+        mCsv = false;
+        mResumeId = batchId;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mBooks != null) {
+            deliverResult(mBooks);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public List<Book> loadInBackground() {
+        final CancellationSignal cancellationSignal;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+        }
+        final PartialResultPublisher publisher = new PartialResultPublisher(mPartialResults);
+        try {
+            BatchJournal journal = openJournal();
+            if (journal == null) {
+                return null;
+            }
+            mBatchId = journal.getId();
+            mQueryCount = journal.getQueries().size();
+            final TreeMap<Integer, Book> found = new TreeMap<>();
+            for (Map.Entry<Integer, Book> result : journal.getResults().entrySet()) {
+                if (result.getValue() != null) {
+                    found.put(result.getKey(), result.getValue());
+                }
+            }
+            mResolvedCount = journal.getResolvedCount();
+            mFoundCount = found.size();
+            publisher.set(new ArrayList<>(found.values()));
+
+            BatchLookup lookup = new BatchLookup(journal,
+                    TaskScheduler.getInstance().executor(TaskScheduler.LANE_PREFETCH),
+                    CONCURRENCY, sRateLimiter, BatchLookup.booksApi());
+            mFailedCount = lookup.run(new BatchLookup.Listener() {
+                @Override
+                public void onQueryResolved(int index, Book book) {
+                    List<Book> books;
+                    synchronized (found) {
+                        if (book != null) {
+                            found.put(index, book);
+                        }
+                        mResolvedCount++;
+                        mFoundCount = found.size();
+                        books = new ArrayList<>(found.values());
+                    }
+                    // Also published for queries without a match, to update the progress
+                    publisher.set(books);
+                }
+            }, cancellationSignal);
+            return new ArrayList<>(found.values());
+        } finally {
+            publisher.close();
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(List<Book> books) {
+        mBooks = books;
+        if (isStarted()) {
+            super.deliverResult(books);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mBooks = null;
+    }
+
+    /**
+     * Hand the books found so far to the callback on the main thread while the batch runs.
+     * Must be called on the main thread; pass null to stop.
+     */
+    public void setPartialResultsCallback(PartialResultPublisher.Callback callback) {
+        mPartialResultsCallback = callback;
+    }
+
+    /**
+     * Id of the running batch for {@link #BatchLookupLoader(Context, String)}, or null before
+     * the queries are read
+     */
+    public String getBatchId() {
+        return mBatchId;
+    }
+
+    public int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * Queries resolved so far, with or without a match
+     */
+    public int getResolvedCount() {
+        return mResolvedCount;
+    }
+
+    public int getFoundCount() {
+        return mFoundCount;
+    }
+
+    /**
+     * Queries whose request failed in the last run; resuming the batch retries them
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    private BatchJournal openJournal() {
+        File root = new File(getContext().getFilesDir(), DIRECTORY_NAME);
+        try {
+            if (mResumeId != null) {
+                return BatchJournal.open(root, mResumeId);
+            }
+            BatchJournal.deleteExpired(root, MAX_BATCH_AGE_MILLIS);
+            return BatchJournal.create(root, readQueries());
+        } catch (IOException | SecurityException e) {
+            Log.e(LOG_TAG, "Problem reading the batch", e);
+            return null;
+        }
+    }
+
+    private List<String> readQueries() throws IOException {
+        if (mText != null) {
+            return BatchLookup.readQueries(new StringReader(mText), mCsv);
+        }
+        InputStream in = getContext().getContentResolver().openInputStream(mUri);
+        if (in == null) {
+            throw new IOException("Couldn't open " + mUri);
+        }
+        Reader reader = new InputStreamReader(in, Charset.forName("UTF-8"));
+        try {
+            return BatchLookup.readQueries(reader, mCsv);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -14,20 +14,65 @@ public class Book implements Parcelable {
             return new Book[size];
         }
     };
+    private String mId;
     private String mTitle;
     private String mAuthors;
     private String mUrl;
+    private String mThumbnailUrl;
+
+    /**
+     * Keys for {@link BookRefiner}, computed once when the book is created or, for books
+     * restored with keys of another locale, when first needed
+     */
+    private byte[] mTitleKey;
+    private byte[] mAuthorKey;
+    private String mSearchText;
 
     public Book(String title, String authors, String url) {
+        this(null, title, authors, url);
+    }
+
+    public Book(String id, String title, String authors, String url) {
+        this(id, title, authors, url, null);
+    }
+
+    public Book(String id, String title, String authors, String url, String thumbnailUrl) {
+        mId = id;
+        mTitle = title;
+        mAuthors = authors;
+        mUrl = url;
+        mThumbnailUrl = thumbnailUrl;
+        mTitleKey = BookRefiner.collationKey(title);
+        mAuthorKey = BookRefiner.collationKey(authors);
+        mSearchText = BookRefiner.searchText(title, authors);
+    }
+
+    /**
+     * Create a book with keys computed before, for {@link BookList}. Null keys are computed
+     * when first needed.
+     */
+    Book(String id, String title, String authors, String url, String thumbnailUrl,
+         byte[] titleKey, byte[] authorKey, String searchText) {
+        mId = id;
         mTitle = title;
         mAuthors = authors;
         mUrl = url;
+        mThumbnailUrl = thumbnailUrl;
+        mTitleKey = titleKey;
+        mAuthorKey = authorKey;
+        mSearchText = searchText;
     }
 
     private Book(Parcel in) {
-        mTitle = in.readString();
-        mAuthors = in.readString();
-        mUrl = in.readString();
+        this(in.readString(), in.readString(), in.readString(), in.readString(),
+                in.readString());
+    }
+
+    /**
+     * Google Books volume id, or null if unknown
+     */
+    public String getId() {
+        return mId;
     }
 
     public String getTitle() {
@@ -42,14 +87,50 @@ public class Book implements Parcelable {
         return mUrl;
     }
 
+    /**
+     * URL of the cover thumbnail, or null if the volume has none
+     */
+    public String getThumbnailUrl() {
+        return mThumbnailUrl;
+    }
+
+    /**
+     * Collation key of the title in the default locale
+     */
+    byte[] getTitleKey() {
+        if (mTitleKey == null) {
+            mTitleKey = BookRefiner.collationKey(mTitle);
+        }
+        return mTitleKey;
+    }
+
+    byte[] getAuthorKey() {
+        if (mAuthorKey == null) {
+            mAuthorKey = BookRefiner.collationKey(mAuthors);
+        }
+        return mAuthorKey;
+    }
+
+    /**
+     * Lowercase title and authors without accents, for filtering
+     */
+    String getSearchText() {
+        if (mSearchText == null) {
+            mSearchText = BookRefiner.searchText(mTitle, mAuthors);
+        }
+        return mSearchText;
+    }
+
     public int describeContents() {
         return 0;
     }
 
     public void writeToParcel(Parcel out, int flags) {
+        out.writeString(mId);
         out.writeString(mTitle);
         out.writeString(mAuthors);
         out.writeString(mUrl);
+        out.writeString(mThumbnailUrl);
     }
 
 }
@@ -1,34 +1,40 @@
 package com.example.android.booklistingapp;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcelable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.AdapterView;
+import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
-import android.widget.Toast;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class BookActivity extends AppCompatActivity
@@ -42,15 +48,53 @@ public class BookActivity extends AppCompatActivity
     private static final int BOOK_LOADER_ID = 1;
 
     /**
-     * Base URL for fetching data from the Google Books API (without the query)
+     * Constant value for the loader ID of the next (or previous) page of results.
      */
-    private static final String GOOGLE_BOOKS_BASE_URL =
-            "https://www.googleapis.com/books/v1/volumes?q=";
+    private static final int PAGE_LOADER_ID = 2;
 
     /**
-     * URL ending that specifies the max number of entries to return
+     * Constant value for the loader ID of the local book index search.
      */
-    private static final String GOOGLE_BOOKS_URL_ENDING = "&maxResults=40";
+    private static final int INDEX_LOADER_ID = 3;
+
+    /**
+     * Constant value for the loader ID that fetches the loaded pages again after the
+     * process was killed.
+     */
+    private static final int RESTORE_LOADER_ID = 4;
+
+    /**
+     * Constant value for the loader ID of a batch lookup of shared ISBNs or titles.
+     */
+    private static final int BATCH_LOADER_ID = 5;
+
+    /**
+     * Loaders reconnected to the activity after a configuration change
+     */
+    private static final int[] LOADER_IDS = {BOOK_LOADER_ID, PAGE_LOADER_ID, INDEX_LOADER_ID,
+            RESTORE_LOADER_ID, BATCH_LOADER_ID};
+
+    /**
+     * Request only the fields the list displays instead of the full volume resources
+     */
+    private static final boolean PROJECTED_REQUESTS = true;
+
+    /**
+     * Search as the user types: time to wait after the last keystroke before searching,
+     * and the minimum query length that triggers a search
+     */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 400;
+    private static final int MIN_INCREMENTAL_QUERY_LENGTH = 3;
+
+    /**
+     * Oldest expired response shown when the last results can't be restored from the network
+     */
+    private static final long RESTORE_MAX_STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * File in the app's files directory holding the last results, see {@link BookSnapshot}
+     */
+    private static final String SNAPSHOT_FILE_NAME = "last_results.bin";
 
     /**
      * Adapter for the list of books
@@ -73,9 +117,21 @@ public class BookActivity extends AppCompatActivity
     private EditText mQueryField;
 
     /**
-     * ListView with books
+     * RecyclerView with books
+     */
+    private RecyclerView bookListView;
+
+    /**
+     * Layout manager of the book list
+     */
+    private LinearLayoutManager mLayoutManager;
+
+    /**
+     * Bits (1 << loader id) of the loaders started and not finished yet. A loader that
+     * finished before a configuration change delivers its results again to the new activity,
+     * which must not handle them twice.
      */
-    private ListView bookListView;
+    private int mLoadsInFlight;
 
     /**
      * Book list instance state
@@ -83,97 +139,367 @@ public class BookActivity extends AppCompatActivity
     private Parcelable mListInstanceState;
 
     /**
-     * List of books to persist between activities
+     * Key of the list of books in the {@link BookResultStore}
+     */
+    private String mResultKey;
+
+    /**
+     * Pages of the current search that are loaded in the list
+     */
+    private final BookPager mPager = new BookPager();
+
+    /**
+     * Whether results from the local index may still be shown for the current search,
+     * i.e. the network results haven't arrived yet
+     */
+    private boolean mIndexResultsWanted;
+
+    /**
+     * Whether the list currently shows results from the local index
+     */
+    private boolean mShowingIndexResults;
+
+    /**
+     * Whether the list shows the books of the search that is still loading
+     */
+    private boolean mShowingPartialResults;
+
+    /**
+     * Shows the books of the running search as they are parsed
+     */
+    private final PartialResultPublisher.Callback mPartialResultsCallback =
+            new PartialResultPublisher.Callback() {
+                @Override
+                public void onPartialResults(List<Book> books) {
+                    onSearchProgress(books);
+                }
+            };
+
+    /**
+     * {@link SearchMetrics#start()} of the search whose results are loading
+     */
+    private long mSearchStart;
+
+    /**
+     * Bar showing the progress of a batch lookup, with its cancel and resume button
+     */
+    private View mBatchLayout;
+    private TextView mBatchProgressText;
+    private ProgressBar mBatchProgressBar;
+    private Button mBatchButton;
+
+    /**
+     * Id of the batch lookup shown in the list, or null
+     */
+    private String mBatchId;
+
+    /**
+     * Whether the batch lookup is running
+     */
+    private boolean mBatchRunning;
+
+    /**
+     * Shows the books of the running batch lookup as they are found
+     */
+    private final PartialResultPublisher.Callback mBatchPartialResultsCallback =
+            new PartialResultPublisher.Callback() {
+                @Override
+                public void onPartialResults(List<Book> books) {
+                    onBatchProgress(books);
+                }
+            };
+
+    /**
+     * Bar with the filter and sort order of the loaded books
+     */
+    private View mRefineLayout;
+    private EditText mRefineField;
+    private Button mRefineSortButton;
+
+    /**
+     * Sort order of the loaded books, one of the {@link BookRefiner} SORT constants
+     */
+    private int mRefineSort = BookRefiner.SORT_RELEVANCE;
+
+    /**
+     * Search made without a network, run as soon as the network is back, or null
+     */
+    private String mPendingQuery;
+
+    /**
+     * Adapts paging to the network and runs the pending search when it comes back
+     */
+    private final NetworkMonitor.Listener mNetworkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkChanged(int networkClass) {
+            mPager.setPrefetchDistance(
+                    NetworkMonitor.getPolicy(networkClass).getPrefetchDistance());
+            // Prefetch as many details as the new network allows, or stop
+            scheduleDetailPrefetch();
+            if (networkClass == NetworkMonitor.CLASS_NONE) {
+                if (mAdapter.getItemCount() == 0 && mPager.getQuery() == null) {
+                    mEmptyStateTextView.setText(R.string.no_internet_connection);
+                }
+            } else if (mPendingQuery != null) {
+                String query = mPendingQuery;
+                mPendingQuery = null;
+                // Keeps the results found offline in the local index until the new ones arrive
+                startSearch(query, false);
+            }
+        }
+    };
+
+    /**
+     * {@link SearchMetrics#start()} of the activity, until its first frame is drawn
      */
-    private ArrayList<Parcelable> mBooks;
+    private long mStartupStart;
+
+    /**
+     * Handler used to debounce searches while the user types
+     */
+    private final Handler mSearchHandler = new Handler();
+
+    /**
+     * Searches for the text in the query field once typing pauses
+     */
+    private final Runnable mIncrementalSearch = new Runnable() {
+        @Override
+        public void run() {
+            String query = mQueryField.getText().toString().trim();
+            if (query.length() >= MIN_INCREMENTAL_QUERY_LENGTH
+                    && !query.equals(mPager.getQuery())) {
+                // Keep the current results on screen until the new ones arrive
+                startSearch(query, false);
+            }
+        }
+    };
+
+    /**
+     * Prefetches the details of the rows around the screen once the list has settled
+     */
+    private final Runnable mPrefetchDetails = new Runnable() {
+        @Override
+        public void run() {
+            prefetchDetails();
+        }
+    };
 
     /**
      * Helper method for hiding the keyboard
      */
     private static void hideKeyboard(Activity activity) {
+        View focus = activity.getCurrentFocus();
+        if (focus == null) {
+            return;
+        }
         InputMethodManager inputMethodManager =
                 (InputMethodManager) activity.getSystemService(
                         Activity.INPUT_METHOD_SERVICE);
-        inputMethodManager.hideSoftInputFromWindow(
-                activity.getCurrentFocus().getWindowToken(), 0);
+        inputMethodManager.hideSoftInputFromWindow(focus.getWindowToken(), 0);
     }
 
     @Override
-    protected void onCreate(Bundle savedInstanceState) {
+    protected void onCreate(final Bundle savedInstanceState) {
+        mStartupStart = SearchMetrics.start();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.book_activity);
 
-        // Retrieve saved data if available
+        // Answer repeated searches from the disk cache
+        QueryUtils.setResponseCache(BookResponseCache.getInstance(this));
+
+        // Retrieve saved data if available. The books themselves outlive the activity in
+        // the result store, the saved state only holds their key
+        BookList books = null;
+        BookSnapshot snapshot = null;
         if (savedInstanceState != null) {
             mListInstanceState = savedInstanceState.getParcelable("book_list");
-            mBooks = savedInstanceState.getParcelableArrayList("books");
+            mResultKey = savedInstanceState.getString("result_key");
+            books = BookResultStore.getInstance().get(mResultKey);
+            mPager.restoreState(savedInstanceState);
+            mBatchId = savedInstanceState.getString("batch_id");
+            mBatchRunning = savedInstanceState.getBoolean("batch_running");
+            mRefineSort = savedInstanceState.getInt("refine_sort");
+            mPendingQuery = savedInstanceState.getString("pending_query");
+            mLoadsInFlight = savedInstanceState.getInt("loads_in_flight");
+        }
+        if (books == null) {
+            // New activity, or the process was killed since the state was saved
+            if (savedInstanceState == null && batchArgsOf(getIntent()) == null) {
+                // Cold start: show the results of the last session right away
+                snapshot = BookSnapshot.read(new File(getFilesDir(), SNAPSHOT_FILE_NAME));
+            }
+            if (snapshot != null) {
+                books = snapshot.getBooks();
+                snapshot.restorePager(mPager);
+            } else {
+                books = new BookList();
+            }
+            mResultKey = BookResultStore.getInstance().put(books);
         }
 
-        // Set touch listeners on views that will hide the keyboard when not needed
-        setupUI(findViewById(R.id.main_layout));
-        // Find a reference to the {@link ListView} in the layout
-        bookListView = (ListView) findViewById(R.id.list);
-        // Set empty view
+        // Find a reference to the {@link RecyclerView} in the layout
+        bookListView = (RecyclerView) findViewById(R.id.list);
+        mLayoutManager = new LinearLayoutManager(this);
+        bookListView.setLayoutManager(mLayoutManager);
+        bookListView.setHasFixedSize(true);
         mEmptyStateTextView = (TextView) findViewById(R.id.empty_text_view);
-        bookListView.setEmptyView(mEmptyStateTextView);
+        mRefineLayout = findViewById(R.id.refine_layout);
+        mRefineField = (EditText) findViewById(R.id.refine_text);
+        mRefineSortButton = (Button) findViewById(R.id.refine_sort_button);
         // Hide progress bar
         mProgressBar = (ProgressBar) findViewById(R.id.progress_bar);
         mProgressBar.setVisibility(View.GONE);
 
         // Search query Edit Text
         mQueryField = (EditText) findViewById(R.id.text);
-
-        // Set empty state text to display the intro text
-        if (connectionOk()) {
-            mEmptyStateTextView.setText(R.string.intro_text);
-        } else {
-            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        if (snapshot != null && snapshot.getQuery() != null) {
+            // Before the text watcher is added, so this doesn't search
+            mQueryField.setText(snapshot.getQuery());
         }
 
-        // Restore books data if available
-        if (mBooks != null && !mBooks.isEmpty()) {
-            mAdapter = new BookAdapter(this, (List) mBooks);
-        } else {
-            // Otherwise create a new adapter that takes an empty list of books as input
-            mAdapter = new BookAdapter(this, new ArrayList<Book>());
-        }
+        // Set empty state text to display the intro text. Starting the network monitor takes
+        // a binder call, so it waits until the first frame is drawn
+        mEmptyStateTextView.setText(R.string.intro_text);
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (isFinishing()) {
+                    return false;
+                }
+                NetworkMonitor monitor = NetworkMonitor.getInstance(BookActivity.this);
+                monitor.addListener(mNetworkListener);
+                mNetworkListener.onNetworkChanged(monitor.getNetworkClass());
+                if (monitor.isConnected() && savedInstanceState == null) {
+                    // Do the TCP and TLS handshakes while the user types the first query
+                    BookHttpClient.prewarm(BookUrlBuilder.GOOGLE_APIS_ROOT_URL);
+                }
+                return false;
+            }
+        });
+        // Time from creating the activity until its first frame, which shows the snapshot
+        bookListView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        bookListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        SearchMetrics.record(SearchMetrics.STAGE_STARTUP, mStartupStart);
+                        return true;
+                    }
+                });
+
+        // Create an adapter on the retained books (or an empty list)
+        mAdapter = new BookAdapter(this, books);
 
-        // Set the adapter on the {@link ListView}
+        // Set the adapter on the {@link RecyclerView}
         // so the list can be populated in the user interface
         bookListView.setAdapter(mAdapter);
 
-        // Restore position
-        if (mListInstanceState != null) {
-            bookListView.onRestoreInstanceState(mListInstanceState);
+        // Show the empty state text only while the list is empty
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+                scheduleDetailPrefetch();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+                scheduleDetailPrefetch();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+                scheduleDetailPrefetch();
+            }
+        });
+        updateEmptyView();
+
+        if (books.isEmpty() && mPager.getLoadedPageCount() > 0) {
+            // The books were lost with the process: fetch the loaded pages again,
+            // from the response cache when possible, and restore the position afterwards
+            restoreResults();
+        } else if (mListInstanceState != null) {
+            // Restore position
+            mLayoutManager.onRestoreInstanceState(mListInstanceState);
+            mListInstanceState = null;
+        } else if (snapshot != null && !books.isEmpty()) {
+            mLayoutManager.scrollToPositionWithOffset(
+                    Math.min(snapshot.getPosition(), books.size() - 1), snapshot.getOffset());
+        }
+        // A search still loading from before a configuration change shows up as it arrives
+        Loader<List<Book>> bookLoader = getSupportLoaderManager().getLoader(BOOK_LOADER_ID);
+        if (bookLoader instanceof BookLoader) {
+            ((BookLoader) bookLoader).setPartialResultsCallback(mPartialResultsCallback);
         }
 
-        // Set an item click listener on the ListView, which sends an intent to a web browser
-        // to open a website with more information about the selected book.
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Load more results as the user scrolls towards either end of the list
+        bookListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                if (connectionOk()) {
-                    // Find the current book that was clicked on
-                    Book currentBook = mAdapter.getItem(position);
-                    // Convert the String URL into a URI object (to pass into the Intent constructor)
-                    Uri bookUri = Uri.parse(currentBook.getUrl());
-                    // Create a new intent to view the book URI
-                    Intent websiteIntent = new Intent(Intent.ACTION_VIEW, bookUri);
-                    // Send the intent to launch a new activity
-                    startActivity(websiteIntent);
-                } else {
-                    Toast.makeText(BookActivity.this, "No Internet connection", Toast.LENGTH_LONG).show();
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    // The user may be about to open one of the rows now on screen
+                    scheduleDetailPrefetch();
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+                if (firstVisible == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+                // Load the covers of the visible rows first
+                ThumbnailLoader.getInstance(BookActivity.this)
+                        .setVisibleRange(firstVisible, lastVisible);
+                if (mAdapter.isRefined()) {
+                    // The rows shown aren't the pages of the search
+                    return;
+                }
+                int visibleCount = lastVisible - firstVisible + 1;
+                int pageStart = mPager.pageToLoad(firstVisible, visibleCount,
+                        mAdapter.getItemCount());
+                if (pageStart >= 0) {
+                    loadPage(pageStart);
                 }
             }
         });
 
+        // Set a click listener on the books, which shows the details of the selected book.
+        // They are usually prefetched, so they show without waiting for the network
+        mAdapter.setOnBookClickListener(new BookAdapter.OnBookClickListener() {
+            @Override
+            public void onBookClick(Book currentBook, int position) {
+                startActivity(BookDetailActivity.newIntent(BookActivity.this, currentBook,
+                        position));
+            }
+        });
+
         final ImageButton mSearchButton = (ImageButton) findViewById(R.id.btn_search);
         // Set click listener on search button
         mSearchButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                mAdapter.clear();
                 mQueryField.setCursorVisible(false);
-                populateUI(mQueryField.getText().toString());
+                startSearch(mQueryField.getText().toString().trim(), true);
+            }
+        });
+
+        // Search as the user types, once typing pauses for the debounce window
+        mQueryField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mSearchHandler.removeCallbacks(mIncrementalSearch);
+                mSearchHandler.postDelayed(mIncrementalSearch, SEARCH_DEBOUNCE_MILLIS);
             }
         });
 
@@ -198,19 +524,217 @@ public class BookActivity extends AppCompatActivity
                 return false;
             }
         });
+
+        // Filter and sort the loaded books as the user types
+        mRefineField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                refineResults();
+            }
+        });
+        mRefineSortButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mRefineSort = (mRefineSort + 1) % 3;
+                refineResults();
+            }
+        });
+        refineResults();
+
+        mBatchLayout = findViewById(R.id.batch_layout);
+        mBatchProgressText = (TextView) findViewById(R.id.batch_progress_text);
+        mBatchProgressBar = (ProgressBar) findViewById(R.id.batch_progress_bar);
+        mBatchButton = (Button) findViewById(R.id.batch_button);
+        mBatchButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (mBatchRunning) {
+                    cancelBatch();
+                } else if (mBatchId != null) {
+                    Bundle args = new Bundle();
+                    args.putString("batch_id", mBatchId);
+                    startBatch(args);
+                }
+            }
+        });
+        Loader<List<Book>> batchLoader = getSupportLoaderManager().getLoader(BATCH_LOADER_ID);
+        if (batchLoader instanceof BatchLookupLoader) {
+            // A batch still running from before a configuration change
+            ((BatchLookupLoader) batchLoader).setPartialResultsCallback(
+                    mBatchPartialResultsCallback);
+            updateBatchProgress((BatchLookupLoader) batchLoader);
+        } else if (savedInstanceState == null) {
+            startBatch(batchArgsOf(getIntent()));
+        } else if (mBatchRunning && mBatchId != null) {
+            // The process was killed during the batch: continue where it stopped
+            Bundle args = new Bundle();
+            args.putString("batch_id", mBatchId);
+            startBatch(args);
+        }
+        reconnectLoaders();
+    }
+
+    /**
+     * Have the loaders that survived a configuration change deliver to this activity instead
+     * of the destroyed one
+     */
+    private void reconnectLoaders() {
+        LoaderManager loaderManager = getSupportLoaderManager();
+        for (int id : LOADER_IDS) {
+            if (loaderManager.getLoader(id) == null) {
+                continue;
+            }
+            loaderManager.initLoader(id, null, this);
+            if ((id == BOOK_LOADER_ID || id == RESTORE_LOADER_ID) && isLoadInFlight(id)) {
+                mProgressBar.setVisibility(View.VISIBLE);
+            }
+        }
+    }
+
+    private boolean isLoadInFlight(int id) {
+        return (mLoadsInFlight & (1 << id)) != 0;
+    }
+
+    private void onLoadStarted(int id) {
+        mLoadsInFlight |= 1 << id;
+    }
+
+    private void onLoadStopped(int id) {
+        mLoadsInFlight &= ~(1 << id);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveSnapshot();
+    }
+
+    /**
+     * Hide the keyboard when the user touches anything but a text field
+     */
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN
+                && !isInside(mQueryField, event) && !isInside(mRefineField, event)) {
+            hideKeyboard(this);
+        }
+        return super.dispatchTouchEvent(event);
+    }
+
+    @Override
+    protected void onDestroy() {
+        Loader<List<Book>> bookLoader = getSupportLoaderManager().getLoader(BOOK_LOADER_ID);
+        if (bookLoader instanceof BookLoader) {
+            // The loader may outlive this activity
+            ((BookLoader) bookLoader).setPartialResultsCallback(null);
+        }
+        Loader<List<Book>> batchLoader = getSupportLoaderManager().getLoader(BATCH_LOADER_ID);
+        if (batchLoader instanceof BatchLookupLoader) {
+            ((BatchLookupLoader) batchLoader).setPartialResultsCallback(null);
+        }
+        NetworkMonitor.getInstance(this).removeListener(mNetworkListener);
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mIncrementalSearch);
+        bookListView.removeCallbacks(mPrefetchDetails);
+        bookListView.setAdapter(null);
+        if (isFinishing()) {
+            BookResultStore.getInstance().remove(mResultKey);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailLoader.getInstance(this).trimMemory(level);
+    }
+
+    /**
+     * Print the search, request, task lane and book detail metrics along with the activity
+     * state for
+     * {@code adb shell dumpsys activity}. The "--reset-metrics" argument clears them.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        SearchMetrics.dump(prefix, writer);
+        RequestExecutor.getDefault().dump(prefix, writer);
+        TaskScheduler.getInstance().dump(prefix, writer);
+        BookDetailCache.getInstance().dump(prefix, writer);
+        writer.print(prefix);
+        writer.println("Network: " + NetworkMonitor.getClassName(
+                NetworkMonitor.getInstance(this).getNetworkClass()));
+        if (args != null && Arrays.asList(args).contains("--reset-metrics")) {
+            SearchMetrics.reset();
+            BookDetailCache.getInstance().reset();
+        }
+    }
+
+    /**
+     * Start a new search, replacing the current results. Restarting the loader cancels
+     * the request of a search that is still running.
+     */
+    private void startSearch(String query, boolean clearList) {
+        mSearchHandler.removeCallbacks(mIncrementalSearch);
+        mPendingQuery = null;
+        clearRefinement();
+        if (mBatchId != null) {
+            // The search replaces the batch results
+            if (mBatchRunning) {
+                cancelBatch();
+            }
+            mBatchId = null;
+            mBatchLayout.setVisibility(View.GONE);
+            clearList = true;
+        }
+        if (clearList) {
+            mAdapter.clear();
+        }
+        // Smaller pages on metered and slow networks; the size stays for the whole search
+        NetworkMonitor.Policy policy = NetworkMonitor.getInstance(this).getPolicy();
+        mPager.reset(query, policy.getPageSize());
+        mPager.setPrefetchDistance(policy.getPrefetchDistance());
+        getSupportLoaderManager().destroyLoader(PAGE_LOADER_ID);
+        onLoadStopped(PAGE_LOADER_ID);
+        populateUI(query);
     }
 
     /**
      * Load data and display it
      */
     private void populateUI(String query) {
+        if (!query.equals("")) {
+            // Search the local index of previously fetched books: it answers offline and
+            // gives a first paint while the network request is in flight
+            mIndexResultsWanted = true;
+            Bundle indexArgs = new Bundle();
+            indexArgs.putString("query", query);
+            getSupportLoaderManager().restartLoader(INDEX_LOADER_ID, indexArgs, this);
+            onLoadStarted(INDEX_LOADER_ID);
+        }
         if (connectionOk()) {
             // Get a reference to the LoaderManager, in order to interact with loaders.
             LoaderManager loaderManager = getSupportLoaderManager();
             if (!query.equals("")) {
-                String mRequestUrl = buildUrl(query);
+                // Fetch the first few pages at once, so broad queries fill the list quickly;
+                // fewer of them on metered and slow networks
+                int initialPages = NetworkMonitor.getInstance(this).getPolicy()
+                        .getInitialPages();
+                String[] requestUrls = new String[initialPages];
+                for (int page = 0; page < initialPages; page++) {
+                    requestUrls[page] = buildUrl(query, page * mPager.getPageSize());
+                }
                 Bundle args = new Bundle();
-                args.putString("url", mRequestUrl);
+                args.putStringArray("urls", requestUrls);
+                mSearchStart = SearchMetrics.start();
+                mShowingPartialResults = false;
                 if (loaderManager.getLoader(BOOK_LOADER_ID) == null) {
                     // Initialize the loader. Pass in the int ID constant defined above and pass in null for
                     // the bundle. Pass in the BookActivity activity for the LoaderCallbacks parameter
@@ -219,97 +743,559 @@ public class BookActivity extends AppCompatActivity
                     // Restart the loader
                     loaderManager.restartLoader(BOOK_LOADER_ID, args, BookActivity.this);
                 }
+                onLoadStarted(BOOK_LOADER_ID);
             }
         } else {
-            // Set empty state text to display "No internet connection."
-            mEmptyStateTextView.setText(R.string.no_internet_connection);
+            if (!query.equals("")) {
+                // Searched as soon as the network is back
+                mPendingQuery = query;
+                mEmptyStateTextView.setText(R.string.search_queued);
+            } else {
+                // Set empty state text to display "No internet connection."
+                mEmptyStateTextView.setText(R.string.no_internet_connection);
+            }
             // Hide progress bar
             mProgressBar.setVisibility(View.GONE);
         }
     }
 
+    /**
+     * Fetch the pages that were loaded before the process was killed
+     */
+    private void restoreResults() {
+        int pages = mPager.getLoadedPageCount();
+        String[] requestUrls = new String[pages];
+        for (int page = 0; page < pages; page++) {
+            requestUrls[page] = buildUrl(mPager.getQuery(),
+                    mPager.getFirstPageStart() + page * mPager.getPageSize());
+        }
+        Bundle args = new Bundle();
+        args.putStringArray("urls", requestUrls);
+        // Reconnects to the restore loader if the activity was recreated again meanwhile
+        getSupportLoaderManager().initLoader(RESTORE_LOADER_ID, args, this);
+        onLoadStarted(RESTORE_LOADER_ID);
+    }
+
+    /**
+     * Load the page of the current search that starts at the given index
+     */
+    private void loadPage(int pageStart) {
+        if (!connectionOk()) {
+            return;
+        }
+        mPager.onPageRequested(pageStart);
+        Bundle args = new Bundle();
+        args.putString("url", buildUrl(mPager.getQuery(), pageStart));
+        getSupportLoaderManager().restartLoader(PAGE_LOADER_ID, args, this);
+        onLoadStarted(PAGE_LOADER_ID);
+    }
+
+    /**
+     * Apply the filter and sort order of the refine bar to the loaded books
+     */
+    private void refineResults() {
+        switch (mRefineSort) {
+            case BookRefiner.SORT_TITLE:
+                mRefineSortButton.setText(R.string.sort_title);
+                break;
+            case BookRefiner.SORT_AUTHOR:
+                mRefineSortButton.setText(R.string.sort_author);
+                break;
+            default:
+                mRefineSortButton.setText(R.string.sort_relevance);
+        }
+        mAdapter.refine(new BookRefiner(mRefineField.getText().toString(), mRefineSort));
+        updateEmptyView();
+    }
+
+    /**
+     * Show all loaded books in order again, e.g. for a new search
+     */
+    private void clearRefinement() {
+        mRefineSort = BookRefiner.SORT_RELEVANCE;
+        if (mRefineField.length() > 0) {
+            // Refines again through the text watcher
+            mRefineField.setText("");
+        } else {
+            refineResults();
+        }
+    }
+
+    /**
+     * Returns the arguments of a batch lookup of the text or file shared with the intent,
+     * or null if it doesn't share any
+     */
+    private static Bundle batchArgsOf(Intent intent) {
+        String text = null;
+        Uri uri = null;
+        if (Intent.ACTION_SEND.equals(intent.getAction())) {
+            text = intent.getStringExtra(Intent.EXTRA_TEXT);
+            if (text == null) {
+                uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            }
+        } else if (Intent.ACTION_VIEW.equals(intent.getAction())) {
+            uri = intent.getData();
+        }
+        if (text == null && uri == null) {
+            return null;
+        }
+        String type = intent.getType();
+        Bundle args = new Bundle();
+        args.putString("batch_text", text);
+        args.putParcelable("batch_uri", uri);
+        args.putBoolean("batch_csv", type != null
+                && (type.endsWith("/csv") || type.endsWith("comma-separated-values")));
+        return args;
+    }
+
+    /**
+     * Start (or resume) a batch lookup, replacing the current results
+     */
+    private void startBatch(Bundle args) {
+        if (args == null) {
+            return;
+        }
+        mSearchHandler.removeCallbacks(mIncrementalSearch);
+        LoaderManager loaderManager = getSupportLoaderManager();
+        loaderManager.destroyLoader(BOOK_LOADER_ID);
+        loaderManager.destroyLoader(PAGE_LOADER_ID);
+        loaderManager.destroyLoader(INDEX_LOADER_ID);
+        onLoadStopped(BOOK_LOADER_ID);
+        onLoadStopped(PAGE_LOADER_ID);
+        onLoadStopped(INDEX_LOADER_ID);
+        mIndexResultsWanted = false;
+        mShowingIndexResults = false;
+        mShowingPartialResults = false;
+        // Nothing to page through
+        mPager.reset(null);
+        mPendingQuery = null;
+        clearRefinement();
+        mAdapter.clear();
+        mBatchRunning = true;
+        mBatchId = args.getString("batch_id");
+        mBatchLayout.setVisibility(View.VISIBLE);
+        mBatchProgressText.setText(R.string.loading);
+        mBatchProgressBar.setIndeterminate(true);
+        mBatchButton.setText(R.string.batch_cancel);
+        mBatchButton.setVisibility(View.VISIBLE);
+        loaderManager.restartLoader(BATCH_LOADER_ID, args, this);
+        onLoadStarted(BATCH_LOADER_ID);
+    }
+
+    /**
+     * Stop the batch lookup, keeping what it found. It can be resumed later.
+     */
+    private void cancelBatch() {
+        Loader<List<Book>> loader = getSupportLoaderManager().getLoader(BATCH_LOADER_ID);
+        if (loader instanceof BatchLookupLoader) {
+            BatchLookupLoader batchLoader = (BatchLookupLoader) loader;
+            if (batchLoader.getBatchId() != null) {
+                mBatchId = batchLoader.getBatchId();
+            }
+            batchLoader.cancelLoad();
+        }
+        getSupportLoaderManager().destroyLoader(BATCH_LOADER_ID);
+        onLoadStopped(BATCH_LOADER_ID);
+        mBatchRunning = false;
+        mBatchProgressBar.setIndeterminate(false);
+        mBatchButton.setText(R.string.batch_resume);
+        mBatchButton.setVisibility(mBatchId != null ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Show the books the running batch lookup found so far
+     */
+    private void onBatchProgress(List<Book> books) {
+        Loader<List<Book>> loader = getSupportLoaderManager().getLoader(BATCH_LOADER_ID);
+        if (loader instanceof BatchLookupLoader) {
+            updateBatchProgress((BatchLookupLoader) loader);
+        }
+        mAdapter.replaceAll(books);
+    }
+
+    /**
+     * Show the results of a finished batch lookup
+     */
+    private void onBatchFinished(BatchLookupLoader loader, List<Book> books) {
+        mBatchRunning = false;
+        if (books == null) {
+            mBatchId = null;
+            mBatchLayout.setVisibility(View.GONE);
+            mAdapter.clear();
+            mEmptyStateTextView.setText(R.string.batch_unreadable);
+            return;
+        }
+        updateBatchProgress(loader);
+        mBatchProgressBar.setIndeterminate(false);
+        // Failed lookups are retried by resuming the batch
+        mBatchButton.setText(R.string.batch_resume);
+        mBatchButton.setVisibility(loader.getFailedCount() > 0 ? View.VISIBLE : View.GONE);
+        mAdapter.replaceAll(books);
+        if (books.isEmpty()) {
+            mEmptyStateTextView.setText(R.string.no_books_found);
+        }
+    }
+
+    private void updateBatchProgress(BatchLookupLoader loader) {
+        if (loader.getBatchId() != null) {
+            mBatchId = loader.getBatchId();
+        }
+        int total = loader.getQueryCount();
+        if (total == 0) {
+            return;
+        }
+        mBatchProgressBar.setIndeterminate(false);
+        mBatchProgressBar.setMax(total);
+        mBatchProgressBar.setProgress(loader.getResolvedCount());
+        if (loader.getFailedCount() > 0) {
+            mBatchProgressText.setText(getString(R.string.batch_failed,
+                    loader.getResolvedCount(), total, loader.getFoundCount(),
+                    loader.getFailedCount()));
+        } else {
+            mBatchProgressText.setText(getString(R.string.batch_progress,
+                    loader.getResolvedCount(), total, loader.getFoundCount()));
+        }
+    }
+
     @Override
     public Loader<List<Book>> onCreateLoader(int i, Bundle args) {
+        if (i == BATCH_LOADER_ID) {
+            BatchLookupLoader loader = args.getString("batch_id") != null
+                    ? new BatchLookupLoader(this, args.getString("batch_id"))
+                    : new BatchLookupLoader(this, args.getString("batch_text"),
+                    (Uri) args.getParcelable("batch_uri"), args.getBoolean("batch_csv"));
+            loader.setPartialResultsCallback(mBatchPartialResultsCallback);
+            return loader;
+        }
+        if (i == INDEX_LOADER_ID) {
+            return new BookIndexLoader(this, args.getString("query"));
+        }
+        if (i == PAGE_LOADER_ID) {
+            // Pages are loaded in the background without touching the empty state, behind
+            // the searches the user is waiting for
+            return new BookLoader(this, new String[]{args.getString("url")},
+                    TaskScheduler.LANE_PREFETCH);
+        }
         // Change empty state text
         mEmptyStateTextView.setText(R.string.loading);
         // Show progress bar
         mProgressBar.setVisibility(View.VISIBLE);
-        return new BookLoader(this, args.getString("url"));
+        BookLoader loader = new BookLoader(this, args.getStringArray("urls"));
+        if (i == RESTORE_LOADER_ID) {
+            loader.setMaxStaleMillis(RESTORE_MAX_STALE_MILLIS);
+        }
+        if (i == BOOK_LOADER_ID) {
+            // Show the first books while the rest of the response is still arriving
+            loader.setPartialResultsCallback(mPartialResultsCallback);
+        }
+        return loader;
     }
 
     @Override
     public void onLoadFinished(Loader<List<Book>> loader, List<Book> books) {
-        // If there is a valid list of {@link Book}s, then add them to the adapter's
-        // data set. This will trigger the ListView to update.
+        if (!isLoadInFlight(loader.getId())) {
+            // Handled before a configuration change already
+            return;
+        }
+        onLoadStopped(loader.getId());
+        if (loader.getId() == BATCH_LOADER_ID) {
+            onBatchFinished((BatchLookupLoader) loader, books);
+            return;
+        }
+        if (loader.getId() == PAGE_LOADER_ID) {
+            onPageLoaded(books);
+            return;
+        }
+        if (loader.getId() == INDEX_LOADER_ID) {
+            onIndexResultsLoaded(books);
+            return;
+        }
+        if (loader.getId() == RESTORE_LOADER_ID) {
+            onResultsRestored(books);
+            return;
+        }
+        mIndexResultsWanted = false;
+        boolean showingPartialResults = mShowingPartialResults;
+        mShowingPartialResults = false;
+        if (books == null && (mShowingIndexResults || showingPartialResults)) {
+            // The request failed, keep showing what the local index or the partial
+            // response found
+            mProgressBar.setVisibility(View.GONE);
+            return;
+        }
+        mShowingIndexResults = false;
+        if (!showingPartialResults) {
+            SearchMetrics.record(SearchMetrics.STAGE_FIRST_RESULT, mSearchStart);
+        }
+        long bindStart = SearchMetrics.start();
+        // If there is a valid list of {@link Book}s, then replace the results of the
+        // previous search (kept on screen while typing) with them. Only the rows that
+        // differ are updated.
         if (books != null && !books.isEmpty()) {
-            mAdapter.addAll(books);
+            mAdapter.replaceAll(books);
+            // Failed pages aren't counted, so paging loads them instead of leaving a gap
+            mPager.onPagesAppended(((BookLoader) loader).getLoadedPageCount(), books.size());
         } else {
+            mAdapter.clear();
             // Set empty state text to display "No books found."
             mEmptyStateTextView.setText(R.string.no_books_found);
         }
+        SearchMetrics.record(SearchMetrics.STAGE_BIND, bindStart);
+        SearchMetrics.record(SearchMetrics.STAGE_SEARCH, mSearchStart);
+        mSearchStart = 0;
         // Hide progress bar
         mProgressBar.setVisibility(View.GONE);
     }
 
+    /**
+     * Show the books of the running search parsed so far. They replace the previous results
+     * (or the local index results) like the final results do, so every frame only inserts
+     * the newly parsed rows.
+     */
+    private void onSearchProgress(List<Book> books) {
+        if (books.isEmpty()) {
+            return;
+        }
+        if (!mShowingPartialResults) {
+            mShowingPartialResults = true;
+            SearchMetrics.record(SearchMetrics.STAGE_FIRST_RESULT, mSearchStart);
+        }
+        mIndexResultsWanted = false;
+        mShowingIndexResults = false;
+        mAdapter.replaceAll(books);
+    }
+
+    /**
+     * Show the pages fetched again after the process was killed, at the saved position
+     */
+    private void onResultsRestored(List<Book> books) {
+        mProgressBar.setVisibility(View.GONE);
+        if (books == null || books.isEmpty()) {
+            mPager.reset(mPager.getQuery());
+            if (connectionOk()) {
+                mEmptyStateTextView.setText(R.string.no_books_found);
+            } else if (mPager.getQuery() != null) {
+                // Searched again as soon as the network is back
+                mPendingQuery = mPager.getQuery();
+                mEmptyStateTextView.setText(R.string.search_queued);
+            } else {
+                mEmptyStateTextView.setText(R.string.no_internet_connection);
+            }
+            return;
+        }
+        mAdapter.clear();
+        mAdapter.addAll(books);
+        mPager.onPagesRestored(books.size());
+        if (mListInstanceState != null) {
+            mLayoutManager.onRestoreInstanceState(mListInstanceState);
+            mListInstanceState = null;
+        }
+    }
+
+    /**
+     * Show books found in the local index, unless the network results already arrived
+     */
+    private void onIndexResultsLoaded(List<Book> books) {
+        if (!mIndexResultsWanted || books == null || books.isEmpty()) {
+            return;
+        }
+        mShowingIndexResults = true;
+        mAdapter.replaceAll(books);
+    }
+
+    /**
+     * Add a page loaded by the page loader to the list, trimming pages far away from the
+     * scroll position without moving the rows on screen.
+     */
+    private void onPageLoaded(List<Book> books) {
+        int pageStart = mPager.getLoadingPageStart();
+        if (pageStart < 0) {
+            // Result of a page load that is no longer wanted
+            return;
+        }
+        if (books == null) {
+            mPager.onPageFailed();
+            return;
+        }
+        int firstVisible = Math.max(mLayoutManager.findFirstVisibleItemPosition(), 0);
+        View firstChild = mLayoutManager.findViewByPosition(firstVisible);
+        int top = firstChild != null ? firstChild.getTop() : 0;
+        // Pages of the API overlap: the adapter leaves out the books it shows already
+        if (mPager.isPreviousPage(pageStart)) {
+            int added = mAdapter.prependPage(books);
+            int trimmed = mPager.onPagePrepended(added);
+            mAdapter.removeFromEnd(trimmed);
+            mLayoutManager.scrollToPositionWithOffset(firstVisible + added, top);
+        } else {
+            int added = mAdapter.appendPage(books);
+            int trimmed = mPager.onPageAppended(books.size(), added);
+            if (trimmed > 0) {
+                mAdapter.removeFromStart(trimmed);
+                mLayoutManager.scrollToPositionWithOffset(firstVisible - trimmed, top);
+            }
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<List<Book>> loader) {
         // Loader reset, so we can clear out our existing data.
-        mAdapter.clear();
+        if (loader.getId() == BOOK_LOADER_ID) {
+            mAdapter.clear();
+        }
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        // persist adapter items
-        List<Book> books = mAdapter.getItems();
-        outState.putParcelableArrayList("books", new ArrayList<>(books));
+        // persist the key of the retained books, not the books themselves
+        outState.putString("result_key", mResultKey);
 
         // persist position
-        outState.putParcelable("book_list", bookListView.onSaveInstanceState());
+        outState.putParcelable("book_list", mLayoutManager.onSaveInstanceState());
+
+        // persist loaded pages
+        mPager.saveState(outState);
+
+        // persist the batch lookup, which resumes from its journal
+        outState.putString("batch_id", mBatchId);
+        outState.putBoolean("batch_running", mBatchRunning);
+
+        // persist the sort order; the filter field keeps its own text
+        outState.putInt("refine_sort", mRefineSort);
+
+        // persist the search waiting for the network
+        outState.putString("pending_query", mPendingQuery);
+
+        // persist which loaders still owe their results, see reconnectLoaders()
+        outState.putInt("loads_in_flight", mLoadsInFlight);
 
     }
 
-    private boolean connectionOk() {
-        // Check if the device is connected to the Internet
-        ConnectivityManager cm =
-                (ConnectivityManager) this.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    /**
+     * Show the empty state text only while the list is empty
+     */
+    private void updateEmptyView() {
+        mEmptyStateTextView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+        boolean refined = mAdapter.isRefined();
+        if (refined && mAdapter.getItemCount() == 0 && !mAdapter.getItems().isEmpty()) {
+            mEmptyStateTextView.setText(R.string.refine_no_match);
+        }
+        // The refine bar is only offered for loaded books
+        mRefineLayout.setVisibility(refined || !mAdapter.getItems().isEmpty()
+                ? View.VISIBLE : View.GONE);
     }
 
     /**
-     * Build a URL string from user input
+     * Prefetch the book details once the list is laid out, replacing any prefetch scheduled
+     * before
      */
-    private String buildUrl(String query) {
-        String url = GOOGLE_BOOKS_BASE_URL;
-        try {
-            url += URLEncoder.encode(query, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e("BookActivity", "Error creating URL");
+    private void scheduleDetailPrefetch() {
+        bookListView.removeCallbacks(mPrefetchDetails);
+        bookListView.post(mPrefetchDetails);
+    }
+
+    /**
+     * Prefetch the details of the visible books, then of the rows below and above them in
+     * turn, as many as the network's policy allows
+     */
+    private void prefetchDetails() {
+        if (bookListView.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+            // Prefetched again when the list stops
+            return;
+        }
+        int budget = NetworkMonitor.getInstance(this).getPolicy().getDetailPrefetchRows();
+        if (budget == 0) {
+            BookDetailCache.getInstance().cancelPrefetches();
+            return;
+        }
+        int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+        if (firstVisible == RecyclerView.NO_POSITION) {
+            return;
         }
-        url += GOOGLE_BOOKS_URL_ENDING;
-        return url;
+        int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+        int itemCount = mAdapter.getItemCount();
+        List<String> ids = new ArrayList<>(budget);
+        for (int position = firstVisible; position <= lastVisible && ids.size() < budget;
+             position++) {
+            ids.add(mAdapter.getVolumeId(position));
+        }
+        for (int distance = 1; ids.size() < budget; distance++) {
+            int below = lastVisible + distance;
+            int above = firstVisible - distance;
+            if (below >= itemCount && above < 0) {
+                break;
+            }
+            // Scrolling on is likelier than back, so the row below comes first
+            if (below < itemCount) {
+                ids.add(mAdapter.getVolumeId(below));
+            }
+            if (above >= 0 && ids.size() < budget) {
+                ids.add(mAdapter.getVolumeId(above));
+            }
+        }
+        BookDetailCache.getInstance().prefetch(ids);
+    }
+
+    private boolean connectionOk() {
+        // Check if the device is connected to the Internet, as last reported by the system
+        return NetworkMonitor.getInstance(this).isConnected();
     }
 
     /**
-     * Set up touch listener for non-text box views to hide keyboard and cursor
+     * Build a URL string from user input for the page starting at the given index
      */
-    private void setupUI(View view) {
-        if (!(view instanceof EditText)) {
-            view.setOnTouchListener(new View.OnTouchListener() {
-                public boolean onTouch(View v, MotionEvent event) {
-                    hideKeyboard(BookActivity.this);
-                    return false;
+    private String buildUrl(String query, int startIndex) {
+        return new BookUrlBuilder(query)
+                .startIndex(startIndex)
+                .maxResults(mPager.getPageSize())
+                .projection(PROJECTED_REQUESTS)
+                .build();
+    }
+
+    /**
+     * Whether the touch event is on the shown view
+     */
+    private static boolean isInside(View view, MotionEvent event) {
+        Rect bounds = new Rect();
+        return view.isShown() && view.getGlobalVisibleRect(bounds)
+                && bounds.contains((int) event.getRawX(), (int) event.getRawY());
+    }
+
+    /**
+     * Write the loaded books, their pages and the scroll position to the snapshot file on a
+     * background thread, for the next cold start. Without books the snapshot is deleted.
+     */
+    private void saveSnapshot() {
+        final File file = new File(getFilesDir(), SNAPSHOT_FILE_NAME);
+        BookList books = mAdapter.getItems();
+        if (books.isEmpty()) {
+            TaskScheduler.getInstance().execute(TaskScheduler.LANE_MAINTENANCE, new Runnable() {
+                @Override
+                public void run() {
+                    file.delete();
                 }
             });
+            return;
         }
-        //If a layout container, iterate over children and seed recursion.
-        if (view instanceof ViewGroup) {
-            for (int i = 0; i < ((ViewGroup) view).getChildCount(); i++) {
-                View innerView = ((ViewGroup) view).getChildAt(i);
-                setupUI(innerView);
-            }
+        int position = 0;
+        int offset = 0;
+        if (!mAdapter.isRefined()) {
+            // Positions of a refined list don't match the books
+            position = Math.max(mLayoutManager.findFirstVisibleItemPosition(), 0);
+            View firstChild = mLayoutManager.findViewByPosition(position);
+            offset = firstChild != null ? firstChild.getTop() : 0;
         }
+        final BookSnapshot snapshot = new BookSnapshot(mPager, books, position, offset);
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_MAINTENANCE, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.write(file);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Problem writing the results snapshot", e);
+                }
+            }
+        });
     }
 }
\ No newline at end of file
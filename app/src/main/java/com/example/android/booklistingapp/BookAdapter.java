@@ -1,62 +1,637 @@
 package com.example.android.booklistingapp;
 
-import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.Layout;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.TextView;
+import android.widget.ImageView;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-public class BookAdapter extends ArrayAdapter<Book> {
+/**
+ * RecyclerView adapter showing a {@link BookList}.
+ * <p>
+ * When the results of a search replace the current ones, the difference between both lists
+ * is computed on a background thread and only the rows that were inserted, moved or removed
+ * are updated. Item ids are derived from the volume ids, so a book keeps its row across
+ * searches. Cover thumbnails are loaded by the {@link ThumbnailLoader}. The text layouts of
+ * the titles and authors are computed on the background thread as books are added, and kept
+ * in a {@link TextLayoutCache}, so binding a row doesn't measure text.
+ * <p>
+ * A {@link BookRefiner} can filter and sort the loaded books without another search. It runs
+ * on the same background thread; the list then shows only the rows it kept, in its order.
+ * Books added while it is active are shown once it has run over them again.
+ */
+public class BookAdapter extends RecyclerView.Adapter<BookAdapter.ViewHolder> {
 
-    private final List<Book> books;
+    /**
+     * Listener for clicks on a book
+     */
+    public interface OnBookClickListener {
+        void onBookClick(Book book, int position);
+    }
+
+    // Threads computing list differences stop after this many seconds without work
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    // 64-bit FNV-1a hash parameters, used for the stable item ids
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Executor sDiffExecutor = createDiffExecutor();
+
+    private final LayoutInflater mInflater;
+    private final ThumbnailLoader mThumbnailLoader;
+    private final TextLayoutCache mTextLayouts;
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final BookList books;
+    private OnBookClickListener mClickListener;
+
+    /**
+     * Incremented by every change of the list, so a difference computed against an older
+     * version of the list is not applied
+     */
+    private int mVersion;
+
+    /**
+     * Incremented by every call to {@link #replaceAll(List)}, so only the latest one wins
+     */
+    private int mReplaceGeneration;
 
-    public BookAdapter(Activity context, List<Book> books) {
-        super(context, 0, books);
+    /**
+     * Filter and sort of the books shown, or null to show all books in order
+     */
+    private BookRefiner mRefiner;
+
+    /**
+     * Positions in the books of the rows shown while refined, null otherwise
+     */
+    private int[] mRows;
+
+    /**
+     * Incremented by every call to {@link #refine(BookRefiner)}, so only the latest one wins
+     */
+    private int mRefineGeneration;
+
+    public BookAdapter(Context context, BookList books) {
+        mInflater = LayoutInflater.from(context);
+        mThumbnailLoader = ThumbnailLoader.getInstance(context);
+        mThumbnailWidth = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_width);
+        mThumbnailHeight = context.getResources().getDimensionPixelSize(
+                R.dimen.thumbnail_height);
+        mTextLayouts = new TextLayoutCache(context);
         this.books = books;
+        setHasStableIds(true);
+        if (!books.isEmpty()) {
+            precomputeLayouts(books.copy());
+        }
+    }
+
+    public void setOnBookClickListener(OnBookClickListener listener) {
+        mClickListener = listener;
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View listItemView = mInflater.inflate(R.layout.list_item, parent, false);
+        final ViewHolder holder = new ViewHolder(listItemView);
+        TextLayoutView.LayoutProvider layoutProvider = new TextLayoutView.LayoutProvider() {
+            @Override
+            public Layout getLayout(TextLayoutView view, int width) {
+                if (mTextLayouts.setWidth(width)) {
+                    // The rows are wider or narrower than estimated: lay all books out again
+                    precomputeLayouts(books.copy());
+                }
+                if (view == holder.titleView) {
+                    return mTextLayouts.get(holder.bookId, TextLayoutCache.FIELD_TITLE,
+                            holder.title);
+                }
+                return mTextLayouts.get(holder.bookId, TextLayoutCache.FIELD_AUTHOR,
+                        holder.author);
+            }
+        };
+        holder.titleView.setLayoutProvider(layoutProvider);
+        holder.authorView.setLayoutProvider(layoutProvider);
+        listItemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && mClickListener != null) {
+                    mClickListener.onBookClick(books.get(row(position)), position);
+                }
+            }
+        });
+        return holder;
+    }
 
-        View listItemView = convertView;
-        ViewHolder holder;
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        int row = row(position);
+        holder.bookId = stableId(books.getId(row), books.getUrl(row));
+        holder.title = books.getTitle(row);
+        holder.author = books.getAuthor(row);
+        holder.titleView.setTextLayout(mTextLayouts.get(holder.bookId,
+                TextLayoutCache.FIELD_TITLE, holder.title));
+        holder.authorView.setTextLayout(mTextLayouts.get(holder.bookId,
+                TextLayoutCache.FIELD_AUTHOR, holder.author));
+        bindThumbnail(holder, books.getThumbnailUrl(row), position);
+    }
 
-        if (listItemView == null) {
-            listItemView = LayoutInflater.from(getContext()).inflate(
-                    R.layout.list_item, parent, false);
-            holder = new ViewHolder(listItemView);
-            listItemView.setTag(holder);
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // The row may be shown again for another book: stop loading this one's cover
+        holder.clearThumbnail(mThumbnailLoader);
+    }
+
+    private void bindThumbnail(ViewHolder holder, String url, int position) {
+        if (url != null && url.equals(holder.thumbnailUrl)
+                && (holder.thumbnail != null || holder.thumbnailRequest != null)) {
+            // Already shown or loading, e.g. when the row only moved
+            return;
+        }
+        holder.clearThumbnail(mThumbnailLoader);
+        holder.thumbnailUrl = url;
+        if (url == null) {
+            return;
+        }
+        Bitmap cached = mThumbnailLoader.getCached(url);
+        if (cached != null) {
+            holder.onThumbnailLoaded(cached);
         } else {
-            holder = (ViewHolder) listItemView.getTag();
+            holder.thumbnailRequest = mThumbnailLoader.load(url, position, mThumbnailWidth,
+                    mThumbnailHeight, holder);
         }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows != null ? mRows.length : books.size();
+    }
 
-        Book currentBook = getItem(position);
-        String title = currentBook.getTitle();
-        String author = currentBook.getAuthor();
+    @Override
+    public long getItemId(int position) {
+        int row = row(position);
+        return stableId(books.getId(row), books.getUrl(row));
+    }
 
-        holder.titleTextView.setText(title);
-        holder.authorTextView.setText(author);
+    /**
+     * Returns a new {@link Book} for the row.
+     */
+    public Book getItem(int position) {
+        return books.get(row(position));
+    }
 
-        return listItemView;
+    /**
+     * Returns the Google Books volume id of the row's book, or null if unknown
+     */
+    public String getVolumeId(int position) {
+        return books.getId(row(position));
     }
 
-    public List<Book> getItems() {
+    /**
+     * Returns all loaded books, including those a refinement hides
+     */
+    public BookList getItems() {
         return books;
     }
 
-    static class ViewHolder {
-        TextView titleTextView;
-        TextView authorTextView;
+    /**
+     * Whether a refinement filters or sorts the books shown
+     */
+    public boolean isRefined() {
+        return mRefiner != null;
+    }
+
+    /**
+     * Filter and sort the loaded books, or show all of them in order again if the refiner is
+     * null or keeps everything. The rows are computed on a background thread. The refinement
+     * also applies to books added later, until it is removed.
+     */
+    public void refine(final BookRefiner refiner) {
+        final int generation = ++mRefineGeneration;
+        if (refiner == null || refiner.isIdentity()) {
+            mRefiner = null;
+            if (mRows != null) {
+                mRows = null;
+                notifyDataSetChanged();
+            }
+            return;
+        }
+        mRefiner = refiner;
+        refineInBackground(generation, refiner);
+    }
+
+    /**
+     * Apply the refiner to a snapshot of the books on the background thread, and show its
+     * rows unless the refinement or the books changed meanwhile.
+     */
+    private void refineInBackground(final int generation, final BookRefiner refiner) {
+        final BookList snapshot = books.copy();
+        final int version = mVersion;
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] rows = refiner.apply(snapshot);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mRefineGeneration) {
+                            // A newer refinement superseded this one
+                            return;
+                        }
+                        if (version != mVersion) {
+                            // The books changed meanwhile and are being refined again
+                            return;
+                        }
+                        mRows = rows;
+                        notifyDataSetChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Remove all books from the list
+     */
+    public void clear() {
+        int count = books.size();
+        mVersion++;
+        mReplaceGeneration++;
+        books.clear();
+        notifyBooksRemoved(0, count);
+    }
+
+    /**
+     * Add the books to the end of the list
+     */
+    public void addAll(List<Book> page) {
+        appendPage(page);
+    }
+
+    /**
+     * Replace the books in the list. The difference to the current books is computed on a
+     * background thread, then only the changed rows are updated.
+     */
+    public void replaceAll(List<Book> newBooks) {
+        final int generation = ++mReplaceGeneration;
+        precomputeLayouts(newBooks);
+        if (books.isEmpty() || newBooks.isEmpty()) {
+            // Nothing to compare
+            int oldCount = books.size();
+            mVersion++;
+            books.clear();
+            books.addAll(newBooks);
+            notifyBooksReplaced(oldCount, newBooks.size());
+            return;
+        }
+        diffInBackground(generation, newBooks);
+    }
+
+    private void diffInBackground(final int generation, final List<Book> newBooks) {
+        final BookList oldBooks = books.copy();
+        final int version = mVersion;
+        final BookRefiner refiner = mRefiner;
+        final int refineGeneration = mRefineGeneration;
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new BookDiffCallback(oldBooks, newBooks));
+                final int[] rows;
+                if (refiner != null) {
+                    // Refined along with the difference, so the rows switch in one frame
+                    BookList snapshot = new BookList(newBooks.size());
+                    snapshot.addAll(newBooks);
+                    rows = refiner.apply(snapshot);
+                } else {
+                    rows = null;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mReplaceGeneration) {
+                            // A newer replacement (or a clear) superseded this one
+                            return;
+                        }
+                        if (version != mVersion) {
+                            // Pages were added or removed meanwhile, compare again
+                            diffInBackground(generation, newBooks);
+                            return;
+                        }
+                        mVersion++;
+                        books.clear();
+                        books.addAll(newBooks);
+                        if (mRefiner == null) {
+                            diff.dispatchUpdatesTo(BookAdapter.this);
+                        } else if (mRefineGeneration == refineGeneration) {
+                            mRows = rows;
+                            notifyDataSetChanged();
+                        } else {
+                            // Refined differently meanwhile
+                            notifyBooksReplaced(oldBooks.size(), newBooks.size());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Add a page of books to the end of the list, leaving out the books already in it.
+     * Returns the number of books added.
+     */
+    public int appendPage(List<Book> page) {
+        page = withoutLoaded(page);
+        precomputeLayouts(page);
+        int start = books.size();
+        mVersion++;
+        books.addAll(page);
+        notifyBooksInserted(start, page.size());
+        return page.size();
+    }
+
+    /**
+     * Add a page of books to the start of the list, leaving out the books already in it.
+     * Returns the number of books added.
+     */
+    public int prependPage(List<Book> page) {
+        page = withoutLoaded(page);
+        precomputeLayouts(page);
+        mVersion++;
+        books.addAll(0, page);
+        notifyBooksInserted(0, page.size());
+        return page.size();
+    }
+
+    /**
+     * Returns the books of the page that aren't in the list yet, nor earlier in the page.
+     * Windows of the API's startIndex overlap, and a book shown twice would have its stable id
+     * twice.
+     */
+    private List<Book> withoutLoaded(List<Book> page) {
+        Set<String> loaded = new HashSet<>(books.size() * 2);
+        for (int i = 0; i < books.size(); i++) {
+            loaded.add(bookKey(books.getId(i), books.getUrl(i)));
+        }
+        List<Book> added = new ArrayList<>(page.size());
+        for (Book book : page) {
+            if (loaded.add(bookKey(book.getId(), book.getUrl()))) {
+                added.add(book);
+            }
+        }
+        return added.size() == page.size() ? page : added;
+    }
+
+    /**
+     * Identity of a book in the list: its volume id, or its info link if it has none
+     */
+    private static String bookKey(String volumeId, String url) {
+        return volumeId != null ? volumeId : url;
+    }
+
+    /**
+     * Remove the given number of books from the start of the list
+     */
+    public void removeFromStart(int count) {
+        int end = Math.min(count, books.size());
+        mVersion++;
+        books.removeRange(0, end);
+        notifyBooksRemoved(0, end);
+    }
+
+    /**
+     * Remove the given number of books from the end of the list
+     */
+    public void removeFromEnd(int count) {
+        int start = Math.max(0, books.size() - count);
+        int removed = books.size() - start;
+        mVersion++;
+        books.removeRange(start, books.size());
+        notifyBooksRemoved(start, removed);
+    }
+
+    private void precomputeLayouts(List<Book> newBooks) {
+        if (newBooks.isEmpty()) {
+            return;
+        }
+        BookList snapshot = new BookList(newBooks.size());
+        snapshot.addAll(newBooks);
+        precomputeLayouts(snapshot);
+    }
+
+    /**
+     * Lay the books out on the background thread. Queued before a difference computed for
+     * them, so their rows bind with layouts ready.
+     */
+    private void precomputeLayouts(final BookList snapshot) {
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTextLayouts.precompute(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Returns the position in the books of a row
+     */
+    private int row(int position) {
+        return mRows != null ? mRows[position] : position;
+    }
+
+    private void notifyBooksInserted(int start, int count) {
+        if (mRows == null) {
+            notifyItemRangeInserted(start, count);
+        } else {
+            // The rows keep showing the same books, the new ones follow once refined
+            for (int i = 0; i < mRows.length; i++) {
+                if (mRows[i] >= start) {
+                    mRows[i] += count;
+                }
+            }
+        }
+        refineChanges();
+    }
+
+    private void notifyBooksRemoved(int start, int count) {
+        if (mRows == null) {
+            notifyItemRangeRemoved(start, count);
+        } else {
+            // Drop the rows of the removed books right away, they can't be bound anymore
+            int[] rows = new int[mRows.length];
+            int kept = 0;
+            for (int row : mRows) {
+                if (row < start) {
+                    rows[kept++] = row;
+                } else if (row >= start + count) {
+                    rows[kept++] = row - count;
+                }
+            }
+            mRows = Arrays.copyOf(rows, kept);
+            notifyDataSetChanged();
+        }
+        refineChanges();
+    }
+
+    private void notifyBooksReplaced(int oldCount, int newCount) {
+        if (mRows == null) {
+            notifyItemRangeRemoved(0, oldCount);
+            notifyItemRangeInserted(0, newCount);
+        } else {
+            // The rows shown were of the old books
+            mRows = new int[0];
+            notifyDataSetChanged();
+        }
+        refineChanges();
+    }
+
+    /**
+     * Refine the changed books on the background thread, if a refinement is active. Until
+     * then the rows shown are those of the books that were already refined.
+     */
+    private void refineChanges() {
+        if (mRefiner != null) {
+            refineInBackground(mRefineGeneration, mRefiner);
+        }
+    }
+
+    /**
+     * Item id of a book: a hash of its volume id, or of its URL if it has no id
+     */
+    static long stableId(String volumeId, String url) {
+        String key = volumeId != null ? volumeId : url;
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // RecyclerView.NO_ID is -1
+        return hash == RecyclerView.NO_ID ? 0 : hash;
+    }
+
+    /**
+     * A single thread of its own rather than a {@link TaskScheduler} lane: the differences are
+     * short CPU work the list on screen waits for, and must not queue behind searches that
+     * hold the search lane while they wait for the network.
+     */
+    private static Executor createDiffExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "BookAdapter diff");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Compares the books shown in the list with the books replacing them
+     */
+    private static class BookDiffCallback extends DiffUtil.Callback {
+
+        private final BookList mOldBooks;
+        private final List<Book> mNewBooks;
+
+        BookDiffCallback(BookList oldBooks, List<Book> newBooks) {
+            mOldBooks = oldBooks;
+            mNewBooks = newBooks;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldBooks.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewBooks.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            Book newBook = mNewBooks.get(newPosition);
+            String oldId = mOldBooks.getId(oldPosition);
+            if (oldId != null || newBook.getId() != null) {
+                return oldId != null && oldId.equals(newBook.getId());
+            }
+            return mOldBooks.getUrl(oldPosition).equals(newBook.getUrl());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            Book newBook = mNewBooks.get(newPosition);
+            return equal(mOldBooks.getTitle(oldPosition), newBook.getTitle())
+                    && equal(mOldBooks.getAuthor(oldPosition), newBook.getAuthor());
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder implements ThumbnailLoader.Target {
+        TextLayoutView titleView;
+        TextLayoutView authorView;
+        ImageView thumbnailImageView;
+        // Book bound to the row, whose text is shown
+        long bookId;
+        String title;
+        String author;
+        // Cover shown (or being loaded) by the row
+        String thumbnailUrl;
+        Bitmap thumbnail;
+        ThumbnailLoader.Request thumbnailRequest;
 
         public ViewHolder(@NonNull View view) {
-            this.titleTextView = (TextView) view
+            super(view);
+            this.titleView = (TextLayoutView) view
                     .findViewById(R.id.textview_li_title);
-            this.authorTextView = (TextView) view
+            this.authorView = (TextLayoutView) view
                     .findViewById(R.id.textview_li_author);
+            this.thumbnailImageView = (ImageView) view
+                    .findViewById(R.id.imageview_li_thumbnail);
+        }
+
+        @Override
+        public void onThumbnailLoaded(Bitmap bitmap) {
+            thumbnailRequest = null;
+            thumbnail = bitmap;
+            thumbnailImageView.setImageBitmap(bitmap);
+        }
+
+        void clearThumbnail(ThumbnailLoader loader) {
+            if (thumbnailRequest != null) {
+                thumbnailRequest.cancel();
+                thumbnailRequest = null;
+            }
+            thumbnailImageView.setImageDrawable(null);
+            loader.release(thumbnail);
+            thumbnail = null;
+            thumbnailUrl = null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package com.example.android.booklistingapp;
+
+/**
+ * Details of a volume shown by {@link BookDetailActivity}, from the volume resource of the
+ * Google Books API. Everything but the title may be missing.
+ */
+final class BookDetail {
+
+    private final String mId;
+    private final String mTitle;
+    private final String mSubtitle;
+    private final String mAuthors;
+    private final String mPublisher;
+    private final String mPublishedDate;
+    /**
+     * Description as returned by the API, which may contain simple HTML markup
+     */
+    private final String mDescription;
+    /**
+     * Number of pages, or 0 if unknown
+     */
+    private final int mPageCount;
+    private final String mCategories;
+    private final String mThumbnailUrl;
+    private final String mInfoLink;
+
+    BookDetail(String id, String title, String subtitle, String authors, String publisher,
+               String publishedDate, String description, int pageCount, String categories,
+               String thumbnailUrl, String infoLink) {
+        mId = id;
+        mTitle = title;
+        mSubtitle = subtitle;
+        mAuthors = authors;
+        mPublisher = publisher;
+        mPublishedDate = publishedDate;
+        mDescription = description;
+        mPageCount = pageCount;
+        mCategories = categories;
+        mThumbnailUrl = thumbnailUrl;
+        mInfoLink = infoLink;
+    }
+
+    /**
+     * Returns a copy with the volume id, and the given info link if it has none
+     */
+    BookDetail withId(String id, String defaultInfoLink) {
+        return new BookDetail(id, mTitle, mSubtitle, mAuthors, mPublisher, mPublishedDate,
+                mDescription, mPageCount, mCategories, mThumbnailUrl,
+                mInfoLink != null ? mInfoLink : defaultInfoLink);
+    }
+
+    String getId() {
+        return mId;
+    }
+
+    String getTitle() {
+        return mTitle;
+    }
+
+    String getSubtitle() {
+        return mSubtitle;
+    }
+
+    String getAuthors() {
+        return mAuthors;
+    }
+
+    String getPublisher() {
+        return mPublisher;
+    }
+
+    String getPublishedDate() {
+        return mPublishedDate;
+    }
+
+    String getDescription() {
+        return mDescription;
+    }
+
+    int getPageCount() {
+        return mPageCount;
+    }
+
+    String getCategories() {
+        return mCategories;
+    }
+
+    String getThumbnailUrl() {
+        return mThumbnailUrl;
+    }
+
+    String getInfoLink() {
+        return mInfoLink;
+    }
+}
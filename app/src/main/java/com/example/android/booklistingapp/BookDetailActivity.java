@@ -0,0 +1,242 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
+import android.support.v7.app.AppCompatActivity;
+import android.text.Html;
+import android.text.TextUtils;
+import android.view.View;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Shows a book opened from the list: what the list knows about it right away, then its
+ * {@link BookDetail}, which is usually prefetched by the list already.
+ */
+public class BookDetailActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<BookDetail>, ThumbnailLoader.Target {
+
+    /**
+     * Extras with the book shown by the list
+     */
+    private static final String EXTRA_VOLUME_ID = "volume_id";
+    private static final String EXTRA_TITLE = "title";
+    private static final String EXTRA_AUTHORS = "authors";
+    private static final String EXTRA_URL = "url";
+    private static final String EXTRA_THUMBNAIL_URL = "thumbnail_url";
+    private static final String EXTRA_POSITION = "position";
+
+    /**
+     * Constant value for the loader ID of the book detail.
+     */
+    private static final int DETAIL_LOADER_ID = 1;
+
+    private TextView mTitleView;
+    private TextView mSubtitleView;
+    private TextView mAuthorsView;
+    private TextView mPublicationView;
+    private TextView mCategoriesView;
+    private TextView mDescriptionView;
+    private ProgressBar mProgressBar;
+    private ImageView mThumbnailView;
+
+    /**
+     * Cover shown, from the {@link ThumbnailLoader}, and its request while it loads
+     */
+    private Bitmap mThumbnail;
+    private ThumbnailLoader.Request mThumbnailRequest;
+
+    /**
+     * Page of the book on the web, opened by the button
+     */
+    private String mInfoLink;
+
+    /**
+     * Returns an intent showing the book, which is in the given row of the list
+     */
+    static Intent newIntent(Context context, Book book, int position) {
+        Intent intent = new Intent(context, BookDetailActivity.class);
+        intent.putExtra(EXTRA_VOLUME_ID, book.getId());
+        intent.putExtra(EXTRA_TITLE, book.getTitle());
+        intent.putExtra(EXTRA_AUTHORS, book.getAuthor());
+        intent.putExtra(EXTRA_URL, book.getUrl());
+        intent.putExtra(EXTRA_THUMBNAIL_URL, book.getThumbnailUrl());
+        intent.putExtra(EXTRA_POSITION, position);
+        return intent;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.book_detail_activity);
+        mTitleView = (TextView) findViewById(R.id.detail_title);
+        mSubtitleView = (TextView) findViewById(R.id.detail_subtitle);
+        mAuthorsView = (TextView) findViewById(R.id.detail_authors);
+        mPublicationView = (TextView) findViewById(R.id.detail_publication);
+        mCategoriesView = (TextView) findViewById(R.id.detail_categories);
+        mDescriptionView = (TextView) findViewById(R.id.detail_description);
+        mProgressBar = (ProgressBar) findViewById(R.id.detail_progress_bar);
+        mThumbnailView = (ImageView) findViewById(R.id.detail_thumbnail);
+
+        // Show what the list knows about the book in the first frame
+        Intent intent = getIntent();
+        mTitleView.setText(intent.getStringExtra(EXTRA_TITLE));
+        mAuthorsView.setText(intent.getStringExtra(EXTRA_AUTHORS));
+        mInfoLink = intent.getStringExtra(EXTRA_URL);
+        loadThumbnail(intent.getStringExtra(EXTRA_THUMBNAIL_URL),
+                intent.getIntExtra(EXTRA_POSITION, 0));
+
+        Button openButton = (Button) findViewById(R.id.detail_open_button);
+        openButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                openInBrowser();
+            }
+        });
+
+        String volumeId = intent.getStringExtra(EXTRA_VOLUME_ID);
+        if (volumeId == null) {
+            // Books from old snapshots may not have an id; the web page is all there is
+            return;
+        }
+        // Only the first creation counts as an open, not a configuration change
+        BookDetailCache cache = BookDetailCache.getInstance();
+        BookDetail detail = savedInstanceState == null
+                ? cache.open(volumeId) : cache.get(volumeId);
+        if (detail != null) {
+            showDetail(detail);
+        } else {
+            mProgressBar.setVisibility(View.VISIBLE);
+            Bundle args = new Bundle();
+            args.putString(EXTRA_VOLUME_ID, volumeId);
+            getSupportLoaderManager().initLoader(DETAIL_LOADER_ID, args, this);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mThumbnailRequest != null) {
+            mThumbnailRequest.cancel();
+            mThumbnailRequest = null;
+        }
+        if (mThumbnail != null) {
+            mThumbnailView.setImageDrawable(null);
+            ThumbnailLoader.getInstance(this).release(mThumbnail);
+            mThumbnail = null;
+        }
+    }
+
+    @Override
+    public Loader<BookDetail> onCreateLoader(int id, Bundle args) {
+        return new BookDetailLoader(this, args.getString(EXTRA_VOLUME_ID));
+    }
+
+    @Override
+    public void onLoadFinished(Loader<BookDetail> loader, BookDetail detail) {
+        mProgressBar.setVisibility(View.GONE);
+        if (detail != null) {
+            showDetail(detail);
+        } else {
+            mDescriptionView.setText(R.string.detail_unavailable);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<BookDetail> loader) {
+    }
+
+    @Override
+    public void onThumbnailLoaded(Bitmap bitmap) {
+        mThumbnailRequest = null;
+        mThumbnail = bitmap;
+        mThumbnailView.setImageBitmap(bitmap);
+    }
+
+    private void loadThumbnail(String url, int position) {
+        if (url == null) {
+            return;
+        }
+        ThumbnailLoader loader = ThumbnailLoader.getInstance(this);
+        Bitmap cached = loader.getCached(url);
+        if (cached != null) {
+            onThumbnailLoaded(cached);
+        } else {
+            // Same size as in the list, so it is shared with the row's cover
+            mThumbnailRequest = loader.load(url, position,
+                    getResources().getDimensionPixelSize(R.dimen.thumbnail_width),
+                    getResources().getDimensionPixelSize(R.dimen.thumbnail_height), this);
+        }
+    }
+
+    private void showDetail(BookDetail detail) {
+        mTitleView.setText(detail.getTitle());
+        setTextOrHide(mSubtitleView, detail.getSubtitle());
+        mAuthorsView.setText(detail.getAuthors());
+        setTextOrHide(mPublicationView, publicationOf(detail));
+        setTextOrHide(mCategoriesView, detail.getCategories());
+        String description = detail.getDescription();
+        mDescriptionView.setText(description != null ? fromHtml(description) : null);
+        if (detail.getInfoLink() != null) {
+            mInfoLink = detail.getInfoLink();
+        }
+    }
+
+    /**
+     * Returns the publisher, publication date and page count that are known, or null
+     */
+    private String publicationOf(BookDetail detail) {
+        StringBuilder publication = new StringBuilder();
+        String[] parts = {detail.getPublisher(), detail.getPublishedDate(),
+                detail.getPageCount() > 0
+                        ? getString(R.string.detail_pages, detail.getPageCount()) : null};
+        for (String part : parts) {
+            if (!TextUtils.isEmpty(part)) {
+                if (publication.length() > 0) {
+                    publication.append(", ");
+                }
+                publication.append(part);
+            }
+        }
+        return publication.length() > 0 ? publication.toString() : null;
+    }
+
+    private static void setTextOrHide(TextView view, String text) {
+        view.setText(text);
+        view.setVisibility(TextUtils.isEmpty(text) ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * Descriptions come with simple HTML markup, like paragraphs and emphasis
+     */
+    @SuppressWarnings("deprecation")
+    private static CharSequence fromHtml(String html) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Html.fromHtml(html, Html.FROM_HTML_MODE_COMPACT);
+        }
+        return Html.fromHtml(html);
+    }
+
+    /**
+     * Send an intent to a web browser to open a website with more information about the book
+     */
+    private void openInBrowser() {
+        if (mInfoLink == null) {
+            return;
+        }
+        if (NetworkMonitor.getInstance(this).isConnected()) {
+            startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(mInfoLink)));
+        } else {
+            Toast.makeText(this, R.string.no_internet_connection, Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Process wide in-memory cache of {@link BookDetail}s, filled ahead of time so a book opens
+ * without waiting for the network.
+ * <p>
+ * The list asks for the details of the rows on screen and around it with
+ * {@link #prefetch(List)}. They are fetched in that order in the details lane of the
+ * {@link TaskScheduler}, a few at a time, so they never hold up a search, the pages loaded
+ * ahead or the covers on screen. Each call replaces the books still waiting, so scrolling
+ * away drops them. Opening a book with {@link #open(String)} uses its cached detail or joins
+ * its prefetch when one is running; a book still waiting is fetched by the opener itself at
+ * full priority.
+ * <p>
+ * Entries are evicted in least recently used order once there are more than
+ * {@link #MAX_ENTRIES} of them or their approximate retained size exceeds {@link #MAX_BYTES}.
+ * How many opens were instant and how many prefetches were used or wasted are printed by
+ * {@link #dump(String, PrintWriter)}, for tuning the prefetch budget of
+ * {@link NetworkMonitor.Policy}.
+ */
+final class BookDetailCache {
+
+    // Maximum number of cached details, a few screens of rows
+    private static final int MAX_ENTRIES = 100;
+    // Maximum approximate retained size of all cached details; descriptions dominate
+    private static final long MAX_BYTES = 512 * 1024;
+    // Prefetches running at the same time, out of the details lane's threads
+    private static final int MAX_RUNNING_PREFETCHES = 2;
+    // Approximate size of a BookDetail with its String objects, without the characters
+    private static final int DETAIL_OVERHEAD_BYTES = 11 * 24;
+
+    private static final BookDetailCache INSTANCE = new BookDetailCache();
+
+    /**
+     * Cached details by volume id, in least recently used order
+     */
+    private final LinkedHashMap<String, BookDetail> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> mEntrySizes = new HashMap<>();
+    private long mSize;
+
+    /**
+     * Shares concurrent loads of the same volume
+     */
+    private final SingleFlight<BookDetail> mLoads = new SingleFlight<>(this,
+            new SingleFlight.Cache<BookDetail>() {
+                @Override
+                public BookDetail getCached(String id) {
+                    return mEntries.get(id);
+                }
+
+                @Override
+                public BookDetail put(String id, BookDetail detail) {
+                    BookDetailCache.this.put(id, detail);
+                    return detail;
+                }
+            });
+
+    /**
+     * Volume ids waiting to be prefetched, most wanted first
+     */
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private int mRunningPrefetches;
+
+    /**
+     * Volume ids being prefetched and not opened yet
+     */
+    private final Set<String> mPrefetching = new HashSet<>();
+
+    /**
+     * Cancels the running prefetches; replaced by {@link #cancelPrefetches()}
+     */
+    private CancellationSignal mPrefetchSignal = new CancellationSignal();
+
+    /**
+     * Ids of the cached details that were prefetched and not opened yet
+     */
+    private final Set<String> mUnopenedPrefetches = new HashSet<>();
+
+    // Counters for dump(), reset by reset()
+    private int mOpenHits;
+    private int mOpenJoins;
+    private int mOpenMisses;
+    private int mPrefetchesStarted;
+    private int mPrefetchesFailed;
+    private int mPrefetchesUsed;
+    private int mPrefetchesWasted;
+
+    private final Runnable mRunPrefetches = new Runnable() {
+        @Override
+        public void run() {
+            runPrefetches();
+        }
+    };
+
+    private BookDetailCache() {
+    }
+
+    static BookDetailCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached detail of the volume, or null. Doesn't count as an open.
+     */
+    synchronized BookDetail get(String id) {
+        return mEntries.get(id);
+    }
+
+    /**
+     * Called when the user opens a volume: returns its cached detail, or null if it has to be
+     * loaded with {@link #load(String, CancellationSignal)}. Counts the open as a hit, a join
+     * of a running fetch or a miss, and stops prefetching it.
+     */
+    synchronized BookDetail open(String id) {
+        mPending.remove(id);
+        BookDetail cached = mEntries.get(id);
+        if (cached != null) {
+            mOpenHits++;
+        } else if (mLoads.isInFlight(id)) {
+            mOpenJoins++;
+        } else {
+            mOpenMisses++;
+        }
+        if (cached != null ? mUnopenedPrefetches.remove(id) : mPrefetching.remove(id)) {
+            mPrefetchesUsed++;
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the detail of the volume, fetching it on the calling thread if it isn't cached.
+     * If it is already being fetched, wait for that fetch instead. Returns null if the fetch
+     * failed; failures are not cached.
+     * <p>
+     * Waiting stops with an {@link OperationCanceledException} when the cancellation signal
+     * is triggered. If the fetch being waited for is cancelled, the volume is fetched again.
+     */
+    BookDetail load(String id, CancellationSignal cancellationSignal) {
+        return mLoads.load(id, fetcher(id, cancellationSignal), cancellationSignal);
+    }
+
+    /**
+     * Prefetch the details of the volumes, in order, in place of the ones still waiting.
+     * Volumes already cached or being fetched are skipped.
+     */
+    synchronized void prefetch(List<String> ids) {
+        mPending.clear();
+        for (String id : ids) {
+            if (id != null && !mEntries.containsKey(id) && !mLoads.isInFlight(id)) {
+                mPending.add(id);
+            }
+        }
+        TaskScheduler scheduler = TaskScheduler.getInstance();
+        while (mRunningPrefetches < Math.min(MAX_RUNNING_PREFETCHES, mPending.size())) {
+            mRunningPrefetches++;
+            scheduler.execute(TaskScheduler.LANE_DETAILS, mRunPrefetches);
+        }
+    }
+
+    /**
+     * Drop the volumes waiting to be prefetched and cancel the running prefetches, e.g. when
+     * the network gets slow. Opens waiting for a cancelled prefetch fetch again.
+     */
+    void cancelPrefetches() {
+        CancellationSignal signal;
+        synchronized (this) {
+            mPending.clear();
+            signal = mPrefetchSignal;
+            mPrefetchSignal = new CancellationSignal();
+        }
+        signal.cancel();
+    }
+
+    /**
+     * Prefetch waiting volumes until there are none left
+     */
+    private void runPrefetches() {
+        while (true) {
+            String id;
+            CancellationSignal signal;
+            synchronized (this) {
+                id = mPending.poll();
+                if (id == null) {
+                    mRunningPrefetches--;
+                    return;
+                }
+                if (mEntries.containsKey(id) || mLoads.isInFlight(id)) {
+                    continue;
+                }
+                signal = mPrefetchSignal;
+                mPrefetching.add(id);
+                mPrefetchesStarted++;
+            }
+            BookDetail detail = null;
+            boolean canceled = false;
+            try {
+                detail = mLoads.load(id, fetcher(id, signal), signal);
+            } catch (OperationCanceledException e) {
+                canceled = true;
+            } catch (RuntimeException e) {
+                // Counted as failed below
+            }
+            synchronized (this) {
+                // Absent if it was opened meanwhile, which counted it as used
+                boolean unopened = mPrefetching.remove(id);
+                if (detail == null && !canceled) {
+                    mPrefetchesFailed++;
+                } else if (detail != null && unopened && mEntries.get(id) == detail) {
+                    mUnopenedPrefetches.add(id);
+                }
+            }
+        }
+    }
+
+    private static Callable<BookDetail> fetcher(final String id,
+                                                final CancellationSignal cancellationSignal) {
+        return new Callable<BookDetail>() {
+            @Override
+            public BookDetail call() {
+                return QueryUtils.fetchBookDetail(BookUrlBuilder.volumeUrl(id),
+                        cancellationSignal);
+            }
+        };
+    }
+
+    private synchronized void put(String id, BookDetail detail) {
+        remove(id);
+        long size = sizeOf(detail);
+        if (size > MAX_BYTES) {
+            return;
+        }
+        mEntries.put(id, detail);
+        mEntrySizes.put(id, size);
+        mSize += size;
+        trim();
+    }
+
+    /**
+     * Drop all cached details and the volumes waiting to be prefetched
+     */
+    void clear() {
+        cancelPrefetches();
+        synchronized (this) {
+            mEntries.clear();
+            mEntrySizes.clear();
+            mSize = 0;
+            mUnopenedPrefetches.clear();
+        }
+    }
+
+    /**
+     * Reset the counters printed by {@link #dump(String, PrintWriter)}
+     */
+    synchronized void reset() {
+        mOpenHits = 0;
+        mOpenJoins = 0;
+        mOpenMisses = 0;
+        mPrefetchesStarted = 0;
+        mPrefetchesFailed = 0;
+        mPrefetchesUsed = 0;
+        mPrefetchesWasted = 0;
+    }
+
+    /**
+     * Print the share of opens that were instant and what became of the prefetches
+     */
+    synchronized void dump(String prefix, PrintWriter writer) {
+        int opens = mOpenHits + mOpenJoins + mOpenMisses;
+        writer.print(prefix);
+        writer.println("Book details: entries=" + mEntries.size() + " bytes=" + mSize
+                + " pending=" + mPending.size() + " running=" + mRunningPrefetches);
+        writer.print(prefix);
+        writer.println(String.format("  opens=%d hits=%d joins=%d misses=%d hit_rate=%.2f",
+                opens, mOpenHits, mOpenJoins, mOpenMisses,
+                opens > 0 ? (double) mOpenHits / opens : 0.0));
+        writer.print(prefix);
+        writer.println(String.format("  prefetches=%d failed=%d used=%d wasted=%d "
+                        + "unopened=%d", mPrefetchesStarted, mPrefetchesFailed,
+                mPrefetchesUsed, mPrefetchesWasted, mUnopenedPrefetches.size()));
+    }
+
+    private void remove(String id) {
+        if (mEntries.remove(id) != null) {
+            mSize -= mEntrySizes.remove(id);
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, BookDetail>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mSize > MAX_BYTES) && iterator.hasNext()) {
+            String id = iterator.next().getKey();
+            iterator.remove();
+            mSize -= mEntrySizes.remove(id);
+            if (mUnopenedPrefetches.remove(id)) {
+                // Evicted before anyone opened it
+                mPrefetchesWasted++;
+            }
+        }
+    }
+
+    /**
+     * Approximate retained size of a detail
+     */
+    private static long sizeOf(BookDetail detail) {
+        return DETAIL_OVERHEAD_BYTES + 2L * (length(detail.getId()) + length(detail.getTitle())
+                + length(detail.getSubtitle()) + length(detail.getAuthors())
+                + length(detail.getPublisher()) + length(detail.getPublishedDate())
+                + length(detail.getDescription()) + length(detail.getCategories())
+                + length(detail.getThumbnailUrl()) + length(detail.getInfoLink()));
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Loads the {@link BookDetail} of a volume through the {@link BookDetailCache}, joining its
+ * prefetch if one is running.
+ */
+public class BookDetailLoader extends AsyncTaskLoader<BookDetail> {
+
+    private final String mVolumeId;
+
+    /**
+     * Last delivered detail
+     */
+    private BookDetail mDetail;
+
+    /**
+     * Cancels the load that is running in the background, if any
+     */
+    private CancellationSignal mCancellationSignal;
+
+    public BookDetailLoader(Context context, String volumeId) {
+        super(context);
+        mVolumeId = volumeId;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mDetail == null) {
+            mDetail = BookDetailCache.getInstance().get(mVolumeId);
+        }
+        if (mDetail != null) {
+            deliverResult(mDetail);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public BookDetail loadInBackground() {
+        final CancellationSignal cancellationSignal;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+        }
+        try {
+            // The user is waiting for it, so it runs in the search lane rather than the details
+            // lane, where it would queue behind prefetches and the bound on background work.
+            // It only competes with searches briefly: the detail screen covers the search
+            // field, so at most the searches already running share the lane with it.
+            return TaskScheduler.getInstance().await(TaskScheduler.LANE_SEARCH,
+                    new Callable<BookDetail>() {
+                        @Override
+                        public BookDetail call() {
+                            return BookDetailCache.getInstance().load(mVolumeId,
+                                    cancellationSignal);
+                        }
+                    }, cancellationSignal);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(BookDetail detail) {
+        mDetail = detail;
+        if (isStarted()) {
+            super.deliverResult(detail);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mDetail = null;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.android.booklistingapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared setup of the app's HTTP connections, so they reuse pooled keep-alive sockets.
+ * <p>
+ * {@link HttpURLConnection} keeps a socket for the next request to the same host only if the
+ * response body was read to the end and closed without calling
+ * {@link HttpURLConnection#disconnect()}, which closes the socket and makes the next request
+ * pay for a new TCP and TLS handshake. {@link #release(HttpURLConnection, InputStream)} does
+ * that, and only disconnects connections that can't be reused. Responses are requested
+ * gzip compressed and inflated while they stream in.
+ */
+final class BookHttpClient {
+
+    private static final String GZIP = "gzip";
+    // Sockets kept alive per host: enough for the parallel page fetches, hedged requests and
+    // thumbnail downloads (the platform default is 5)
+    private static final String MAX_CONNECTIONS = "8";
+    // Leftover body bytes worth reading to save a socket; more than that is cheaper to drop
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    // Timeout of the pre-warm request in milliseconds
+    private static final int PREWARM_TIMEOUT = 10000;
+
+    static {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", MAX_CONNECTIONS);
+        }
+    }
+
+    //An empty private constructor makes sure that the class is not going to be initialised.
+    private BookHttpClient() {
+    }
+
+    /**
+     * Open a GET request to the URL that accepts a gzip compressed response
+     */
+    static HttpURLConnection open(URL url, int connectTimeout, int readTimeout)
+            throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(readTimeout);
+        // Setting the header ourselves turns off the platform's transparent decompression,
+        // which also drops the Content-Encoding header; getBody() inflates the stream instead
+        urlConnection.setRequestProperty("Accept-Encoding", GZIP);
+        return urlConnection;
+    }
+
+    /**
+     * Returns the response body of the connection, inflated if it is compressed
+     */
+    static InputStream getBody(HttpURLConnection urlConnection) throws IOException {
+        return decode(urlConnection, urlConnection.getInputStream());
+    }
+
+    /**
+     * Inflate the given raw body of the connection if the response is compressed
+     */
+    static InputStream decode(HttpURLConnection urlConnection, InputStream body)
+            throws IOException {
+        if (GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+            return new GZIPInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * Finish with the connection: read what is left of the body, if not much, and close it so
+     * the socket goes back to the pool. Connections without a body, with a large unread
+     * remainder or that failed are disconnected.
+     */
+    static void release(HttpURLConnection urlConnection, InputStream body) {
+        boolean reusable = false;
+        if (body != null) {
+            try {
+                reusable = drain(body);
+            } catch (IOException e) {
+                // The socket is broken, drop it
+            }
+            try {
+                body.close();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+        if (!reusable) {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Open a connection to the server of the URL in the prefetch lane, so the TCP and TLS
+     * handshakes are done before the first search needs them.
+     */
+    static void prewarm(final String url) {
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_PREFETCH, new Runnable() {
+            @Override
+            public void run() {
+                HttpURLConnection urlConnection = null;
+                InputStream body = null;
+                try {
+                    urlConnection = open(new URL(url), PREWARM_TIMEOUT, PREWARM_TIMEOUT);
+                    urlConnection.setRequestMethod("HEAD");
+                    urlConnection.getResponseCode();
+                    body = urlConnection.getErrorStream();
+                    if (body == null) {
+                        body = urlConnection.getInputStream();
+                    }
+                } catch (IOException e) {
+                    // Nothing to pre-warm, the first search connects as usual
+                } finally {
+                    if (urlConnection != null) {
+                        release(urlConnection, body);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the stream to its end. Returns false if it holds more than
+     * {@link #MAX_DRAIN_BYTES}.
+     */
+    private static boolean drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[4096];
+        int drained = 0;
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            drained += read;
+            if (drained > MAX_DRAIN_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Local full-text index of every book fetched from the Google Books API.
+ * <p>
+ * Books are stored in a regular table and their title and authors in an FTS4 table sharing
+ * the same row ids. The index answers searches while offline and gives a first paint while
+ * a network search is in flight. Once it holds more than its row limit, the books that were
+ * seen least recently are evicted.
+ */
+final class BookIndex extends SQLiteOpenHelper {
+
+    // Database file name and schema version
+    private static final String DATABASE_NAME = "book_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    // Default maximum number of indexed books (roughly 300 bytes each on disk)
+    private static final int DEFAULT_MAX_ROWS = 20000;
+    // Rows evicted beyond the limit, so eviction doesn't run after every insert
+    private static final int EVICTION_SLACK = 500;
+
+    private static final String TABLE_BOOKS = "books";
+    private static final String TABLE_FTS = "books_fts";
+
+    private static BookIndex sInstance;
+
+    private final int mMaxRows;
+
+    /**
+     * Approximate row count, so eviction doesn't need a COUNT(*) after every batch
+     */
+    private int mRowCount = -1;
+
+    BookIndex(Context context, String name, int maxRows) {
+        super(context, name, null, DATABASE_VERSION);
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Returns the app wide index.
+     */
+    static synchronized BookIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookIndex(context.getApplicationContext(), DATABASE_NAME,
+                    DEFAULT_MAX_ROWS);
+        }
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_BOOKS + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "volume_id TEXT NOT NULL UNIQUE, "
+                + "title TEXT NOT NULL, "
+                + "authors TEXT, "
+                + "url TEXT NOT NULL, "
+                + "thumbnail_url TEXT, "
+                + "last_seen INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX books_last_seen ON " + TABLE_BOOKS + " (last_seen)");
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts4(title, authors)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKS);
+        onCreate(db);
+    }
+
+    /**
+     * Add the books to the index, or mark them as recently seen if they are already in it.
+     * All books are written in a single transaction.
+     */
+    synchronized void insertBooks(List<Book> books) {
+        if (books == null || books.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        long now = System.currentTimeMillis();
+        int inserted = 0;
+        db.beginTransaction();
+        SQLiteStatement insertBook = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_BOOKS
+                + " (volume_id, title, authors, url, thumbnail_url, last_seen)"
+                + " VALUES (?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertFts = db.compileStatement("INSERT INTO " + TABLE_FTS
+                + " (docid, title, authors) VALUES (?, ?, ?)");
+        SQLiteStatement touchBook = db.compileStatement("UPDATE " + TABLE_BOOKS
+                + " SET last_seen = ? WHERE volume_id = ?");
+        try {
+            for (Book book : books) {
+                String key = keyOf(book);
+                insertBook.bindString(1, key);
+                insertBook.bindString(2, book.getTitle());
+                bindNullable(insertBook, 3, book.getAuthor());
+                insertBook.bindString(4, book.getUrl());
+                bindNullable(insertBook, 5, book.getThumbnailUrl());
+                insertBook.bindLong(6, now);
+                long rowId = insertBook.executeInsert();
+                if (rowId != -1) {
+                    insertFts.bindLong(1, rowId);
+                    insertFts.bindString(2, book.getTitle());
+                    bindNullable(insertFts, 3, book.getAuthor());
+                    insertFts.executeInsert();
+                    inserted++;
+                } else {
+                    touchBook.bindLong(1, now);
+                    touchBook.bindString(2, key);
+                    touchBook.executeUpdateDelete();
+                }
+            }
+            if (mRowCount >= 0) {
+                mRowCount += inserted;
+            }
+            evictIfNeeded(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertBook.close();
+            insertFts.close();
+            touchBook.close();
+        }
+    }
+
+    /**
+     * Returns the indexed books matching every word of the query (as a prefix), most
+     * recently seen first.
+     */
+    List<Book> search(String query, int limit) {
+        List<Book> books = new ArrayList<>();
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return books;
+        }
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT b.volume_id, b.title, b.authors, b.url, b.thumbnail_url"
+                + " FROM " + TABLE_FTS + " f JOIN " + TABLE_BOOKS + " b ON b._id = f.docid"
+                + " WHERE " + TABLE_FTS + " MATCH ?"
+                + " ORDER BY b.last_seen DESC LIMIT " + limit, new String[]{match});
+        try {
+            while (cursor.moveToNext()) {
+                books.add(new Book(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getString(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return books;
+    }
+
+    /**
+     * Number of indexed books
+     */
+    int size() {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE_BOOKS, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void evictIfNeeded(SQLiteDatabase db) {
+        if (mRowCount < 0) {
+            mRowCount = (int) DatabaseUtils.queryNumEntries(db, TABLE_BOOKS);
+        }
+        if (mRowCount <= mMaxRows) {
+            return;
+        }
+        int excess = mRowCount - mMaxRows + EVICTION_SLACK;
+        String oldest = "SELECT _id FROM " + TABLE_BOOKS + " ORDER BY last_seen LIMIT " + excess;
+        db.execSQL("DELETE FROM " + TABLE_FTS + " WHERE docid IN (" + oldest + ")");
+        db.execSQL("DELETE FROM " + TABLE_BOOKS + " WHERE _id IN (" + oldest + ")");
+        mRowCount = (int) DatabaseUtils.queryNumEntries(db, TABLE_BOOKS);
+    }
+
+    /**
+     * Turn user input into an FTS prefix query, dropping characters with a meaning in
+     * the MATCH syntax. Returns null if no words are left.
+     */
+    static String toMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String token : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(token).append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    private static String keyOf(Book book) {
+        return book.getId() != null ? book.getId() : book.getUrl();
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.support.v4.content.AsyncTaskLoader;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Loads the books matching a query from the local {@link BookIndex}.
+ */
+public class BookIndexLoader extends AsyncTaskLoader<List<Book>> {
+
+    /**
+     * Maximum number of books returned from the index
+     */
+    private static final int MAX_RESULTS = 200;
+
+    private String mQuery;
+
+    /**
+     * Last delivered results
+     */
+    private List<Book> mBooks;
+
+    public BookIndexLoader(Context context, String query) {
+        super(context);
+        this.mQuery = query;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mBooks != null) {
+            deliverResult(mBooks);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public List<Book> loadInBackground() {
+        // Answers the user's query, so it runs in the search lane ahead of background work
+        return TaskScheduler.getInstance().await(TaskScheduler.LANE_SEARCH,
+                new Callable<List<Book>>() {
+                    @Override
+                    public List<Book> call() {
+                        return BookIndex.getInstance(getContext()).search(mQuery, MAX_RESULTS);
+                    }
+                }, null);
+    }
+
+    @Override
+    public void deliverResult(List<Book> books) {
+        mBooks = books;
+        if (isStarted()) {
+            super.deliverResult(books);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mBooks = null;
+    }
+}
@@ -0,0 +1,321 @@
+package com.example.android.booklistingapp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compact, column oriented list of books.
+ * <p>
+ * Instead of one {@link Book} object per row the list keeps one array per field, and equal
+ * author strings are shared between rows. The whole list is written to a {@link Parcel} in
+ * one pass, with every distinct author string written only once. The keys of
+ * {@link BookRefiner} are written along, and only used when the default locale is still the
+ * one they were computed in.
+ */
+public class BookList implements Parcelable {
+
+    public static final Parcelable.Creator<BookList> CREATOR = new Parcelable.Creator<BookList>() {
+        public BookList createFromParcel(Parcel in) {
+            return new BookList(in);
+        }
+
+        public BookList[] newArray(int size) {
+            return new BookList[size];
+        }
+    };
+
+    // Initial capacity of the columns
+    private static final int DEFAULT_CAPACITY = 40;
+
+    private String[] mIds;
+    private String[] mTitles;
+    private String[] mAuthors;
+    private String[] mUrls;
+    private String[] mThumbnailUrls;
+    // Keys for BookRefiner, taken from the books so they are only computed once; a null key
+    // is computed when first needed
+    private byte[][] mTitleKeys;
+    private byte[][] mAuthorKeys;
+    private String[] mSearchTexts;
+    private int mSize;
+
+    /**
+     * Shared instances of the author strings in the list
+     */
+    private final HashMap<String, String> mAuthorPool = new HashMap<>();
+
+    public BookList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BookList(int capacity) {
+        mIds = new String[capacity];
+        mTitles = new String[capacity];
+        mAuthors = new String[capacity];
+        mUrls = new String[capacity];
+        mThumbnailUrls = new String[capacity];
+        mTitleKeys = new byte[capacity][];
+        mAuthorKeys = new byte[capacity][];
+        mSearchTexts = new String[capacity];
+    }
+
+    private BookList(Parcel in) {
+        this(in.readInt());
+        mSize = mIds.length;
+        // Keys computed in another locale would sort wrongly: leave them to be computed again
+        boolean keysValid = Locale.getDefault().toString().equals(in.readString());
+        // Distinct authors first, then an index into them for every row
+        String[] authorTable = in.createStringArray();
+        byte[][] authorKeyTable = new byte[authorTable.length][];
+        for (int i = 0; i < authorTable.length; i++) {
+            String author = authorTable[i];
+            if (author != null) {
+                mAuthorPool.put(author, author);
+            }
+            authorKeyTable[i] = in.createByteArray();
+        }
+        for (int i = 0; i < mSize; i++) {
+            mIds[i] = in.readString();
+            mTitles[i] = in.readString();
+            int authorIndex = in.readInt();
+            mAuthors[i] = authorIndex >= 0 ? authorTable[authorIndex] : null;
+            mUrls[i] = in.readString();
+            mThumbnailUrls[i] = in.readString();
+            byte[] titleKey = in.createByteArray();
+            mSearchTexts[i] = in.readString();
+            if (keysValid) {
+                // Equal authors share their key
+                mTitleKeys[i] = titleKey;
+                mAuthorKeys[i] = authorIndex >= 0 ? authorKeyTable[authorIndex] : null;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public String getId(int position) {
+        return mIds[position];
+    }
+
+    public String getTitle(int position) {
+        return mTitles[position];
+    }
+
+    public String getAuthor(int position) {
+        return mAuthors[position];
+    }
+
+    public String getUrl(int position) {
+        return mUrls[position];
+    }
+
+    public String getThumbnailUrl(int position) {
+        return mThumbnailUrls[position];
+    }
+
+    /**
+     * Collation key of the title, see {@link BookRefiner}
+     */
+    byte[] getTitleKey(int position) {
+        if (mTitleKeys[position] == null) {
+            mTitleKeys[position] = BookRefiner.collationKey(mTitles[position]);
+        }
+        return mTitleKeys[position];
+    }
+
+    byte[] getAuthorKey(int position) {
+        if (mAuthorKeys[position] == null) {
+            mAuthorKeys[position] = BookRefiner.collationKey(mAuthors[position]);
+        }
+        return mAuthorKeys[position];
+    }
+
+    String getSearchText(int position) {
+        if (mSearchTexts[position] == null) {
+            mSearchTexts[position] = BookRefiner.searchText(mTitles[position],
+                    mAuthors[position]);
+        }
+        return mSearchTexts[position];
+    }
+
+    /**
+     * Returns a {@link Book} for the row. Allocates a new object, so avoid it in bind code.
+     */
+    public Book get(int position) {
+        return new Book(mIds[position], mTitles[position], mAuthors[position], mUrls[position],
+                mThumbnailUrls[position], mTitleKeys[position], mAuthorKeys[position],
+                mSearchTexts[position]);
+    }
+
+    /**
+     * Returns a snapshot of the list, sharing the strings but not the columns
+     */
+    public BookList copy() {
+        BookList copy = new BookList(0);
+        copy.mIds = Arrays.copyOf(mIds, mSize);
+        copy.mTitles = Arrays.copyOf(mTitles, mSize);
+        copy.mAuthors = Arrays.copyOf(mAuthors, mSize);
+        copy.mUrls = Arrays.copyOf(mUrls, mSize);
+        copy.mThumbnailUrls = Arrays.copyOf(mThumbnailUrls, mSize);
+        copy.mTitleKeys = Arrays.copyOf(mTitleKeys, mSize);
+        copy.mAuthorKeys = Arrays.copyOf(mAuthorKeys, mSize);
+        copy.mSearchTexts = Arrays.copyOf(mSearchTexts, mSize);
+        copy.mSize = mSize;
+        return copy;
+    }
+
+    public void add(Book book) {
+        ensureCapacity(mSize + 1);
+        set(mSize, book);
+        mSize++;
+    }
+
+    public void addAll(List<Book> books) {
+        addAll(mSize, books);
+    }
+
+    /**
+     * Insert the books at the given position
+     */
+    public void addAll(int position, List<Book> books) {
+        int count = books.size();
+        ensureCapacity(mSize + count);
+        shift(position, position + count, mSize - position);
+        for (int i = 0; i < count; i++) {
+            set(position + i, books.get(i));
+        }
+        mSize += count;
+    }
+
+    /**
+     * Remove the rows from start (inclusive) to end (exclusive)
+     */
+    public void removeRange(int start, int end) {
+        shift(end, start, mSize - end);
+        int newSize = mSize - (end - start);
+        clearColumns(newSize, mSize);
+        mSize = newSize;
+    }
+
+    public void clear() {
+        clearColumns(0, mSize);
+        mSize = 0;
+        mAuthorPool.clear();
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mSize);
+        HashMap<String, Integer> authorIndexes = new HashMap<>();
+        String[] authorTable = new String[mSize];
+        int authorCount = 0;
+        int[] authorRows = new int[mSize];
+        int[] rowAuthors = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            String author = mAuthors[i];
+            if (author == null) {
+                rowAuthors[i] = -1;
+                continue;
+            }
+            Integer index = authorIndexes.get(author);
+            if (index == null) {
+                index = authorCount++;
+                authorIndexes.put(author, index);
+                authorTable[index] = author;
+                authorRows[index] = i;
+            }
+            rowAuthors[i] = index;
+        }
+        out.writeString(Locale.getDefault().toString());
+        out.writeStringArray(Arrays.copyOf(authorTable, authorCount));
+        for (int i = 0; i < authorCount; i++) {
+            out.writeByteArray(mAuthorKeys[authorRows[i]]);
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeString(mIds[i]);
+            out.writeString(mTitles[i]);
+            out.writeInt(rowAuthors[i]);
+            out.writeString(mUrls[i]);
+            out.writeString(mThumbnailUrls[i]);
+            out.writeByteArray(mTitleKeys[i]);
+            out.writeString(mSearchTexts[i]);
+        }
+    }
+
+    private void set(int position, Book book) {
+        mIds[position] = book.getId();
+        mTitles[position] = book.getTitle();
+        mAuthors[position] = shareAuthor(book.getAuthor());
+        mUrls[position] = book.getUrl();
+        mThumbnailUrls[position] = book.getThumbnailUrl();
+        mTitleKeys[position] = book.getTitleKey();
+        mAuthorKeys[position] = book.getAuthorKey();
+        mSearchTexts[position] = book.getSearchText();
+    }
+
+    private String shareAuthor(String author) {
+        if (author == null) {
+            return null;
+        }
+        String shared = mAuthorPool.get(author);
+        if (shared == null) {
+            mAuthorPool.put(author, author);
+            shared = author;
+        }
+        return shared;
+    }
+
+    private void shift(int from, int to, int count) {
+        if (count <= 0 || from == to) {
+            return;
+        }
+        System.arraycopy(mIds, from, mIds, to, count);
+        System.arraycopy(mTitles, from, mTitles, to, count);
+        System.arraycopy(mAuthors, from, mAuthors, to, count);
+        System.arraycopy(mUrls, from, mUrls, to, count);
+        System.arraycopy(mThumbnailUrls, from, mThumbnailUrls, to, count);
+        System.arraycopy(mTitleKeys, from, mTitleKeys, to, count);
+        System.arraycopy(mAuthorKeys, from, mAuthorKeys, to, count);
+        System.arraycopy(mSearchTexts, from, mSearchTexts, to, count);
+    }
+
+    private void clearColumns(int from, int to) {
+        Arrays.fill(mIds, from, to, null);
+        Arrays.fill(mTitles, from, to, null);
+        Arrays.fill(mAuthors, from, to, null);
+        Arrays.fill(mUrls, from, to, null);
+        Arrays.fill(mThumbnailUrls, from, to, null);
+        Arrays.fill(mTitleKeys, from, to, null);
+        Arrays.fill(mAuthorKeys, from, to, null);
+        Arrays.fill(mSearchTexts, from, to, null);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIds.length + (mIds.length >> 1));
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mTitles = Arrays.copyOf(mTitles, newCapacity);
+        mAuthors = Arrays.copyOf(mAuthors, newCapacity);
+        mUrls = Arrays.copyOf(mUrls, newCapacity);
+        mThumbnailUrls = Arrays.copyOf(mThumbnailUrls, newCapacity);
+        mTitleKeys = Arrays.copyOf(mTitleKeys, newCapacity);
+        mAuthorKeys = Arrays.copyOf(mAuthorKeys, newCapacity);
+        mSearchTexts = Arrays.copyOf(mSearchTexts, newCapacity);
+    }
+}
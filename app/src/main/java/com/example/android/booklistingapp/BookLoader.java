@@ -2,29 +2,335 @@ package com.example.android.booklistingapp;
 
 import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 public class BookLoader extends AsyncTaskLoader<List<Book>> {
 
-    private String mUrl;
+    /**
+     * URLs of the pages to load, in list order
+     */
+    private String[] mUrls;
+
+    /**
+     * Keys of the pages in the {@link BookResultCache}
+     */
+    private String[] mCacheKeys;
+
+    /**
+     * Last delivered results
+     */
+    private List<Book> mBooks;
+
+    /**
+     * {@link TaskScheduler} lane the pages are fetched in
+     */
+    private final int mLane;
+
+    /**
+     * How long after expiry a cached response may still be served when the network fails,
+     * 0 to never serve one
+     */
+    private volatile long mMaxStaleMillis;
+
+    /**
+     * Pages of the last results that loaded before the first failed one
+     */
+    private volatile int mLoadedPageCount;
+
+    /**
+     * Cancels the load that is running in the background, if any
+     */
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * Per page cancellation signals of the running load, cancelled with it
+     */
+    private final List<CancellationSignal> mPageSignals = new ArrayList<>();
+
+    /**
+     * Receives the books of a running load as they are parsed, if set
+     */
+    private volatile PartialResultPublisher.Callback mPartialResultsCallback;
+
+    /**
+     * Publishes the books of the running load, if it is progressive
+     */
+    private PartialResultPublisher mPublisher;
+
+    /**
+     * Forwards partial results to the callback while this loader still wants them
+     */
+    private final PartialResultPublisher.Callback mPartialResults =
+            new PartialResultPublisher.Callback() {
+                @Override
+                public void onPartialResults(List<Book> books) {
+                    PartialResultPublisher.Callback callback = mPartialResultsCallback;
+                    if (callback != null && isStarted() && !isAbandoned()) {
+                        callback.onPartialResults(books);
+                    }
+                }
+            };
 
     public BookLoader(Context context, String url) {
+        this(context, new String[]{url});
+    }
+
+    /**
+     * Create a loader for several pages of results. The pages are fetched concurrently
+     * and merged in order.
+     */
+    public BookLoader(Context context, String[] urls) {
+        this(context, urls, TaskScheduler.LANE_SEARCH);
+    }
+
+    /**
+     * Create a loader for several pages of results, fetched in the given
+     * {@link TaskScheduler} lane.
+     */
+    public BookLoader(Context context, String[] urls, int lane) {
         super(context);
-        this.mUrl = url;
+        this.mUrls = urls;
+        this.mLane = lane;
+        this.mCacheKeys = new String[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            mCacheKeys[i] = BookResultCache.normalizeKey(urls[i]);
+        }
     }
 
     @Override
     protected void onStartLoading() {
-        forceLoad();
+        if (mBooks == null) {
+            // Answer repeated searches straight from memory, without a background load
+            mBooks = getCachedBooks();
+            if (mBooks != null) {
+                mLoadedPageCount = mUrls.length;
+            }
+        }
+        if (mBooks != null) {
+            deliverResult(mBooks);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
     public List<Book> loadInBackground() {
         // Don't perform the request if the URL is null.
-        if (mUrl == null) {
+        if (mUrls.length == 0 || mUrls[0] == null) {
             return null;
         }
-        return QueryUtils.fetchEarthquakeData(mUrl);
+        final CancellationSignal cancellationSignal;
+        final ProgressiveResults progressiveResults;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+            mPublisher = mPartialResultsCallback != null
+                    ? new PartialResultPublisher(mPartialResults) : null;
+            progressiveResults = mPublisher != null ? new ProgressiveResults(mPublisher) : null;
+        }
+        long loadStart = SearchMetrics.start();
+        try {
+            if (mUrls.length == 1) {
+                // The loader's own thread only waits, so the page runs at its lane's priority
+                List<Book> books = TaskScheduler.getInstance().await(mLane,
+                        new Callable<List<Book>>() {
+                            @Override
+                            public List<Book> call() {
+                                return loadPage(0, cancellationSignal, progressiveResults);
+                            }
+                        }, cancellationSignal);
+                mLoadedPageCount = books != null ? 1 : 0;
+                return books;
+            }
+            MultiPageFetcher.Result result = MultiPageFetcher.getDefault().fetch(
+                    new MultiPageFetcher.PageSource() {
+                        @Override
+                        public List<Book> fetchPage(int page) {
+                            // Books of later pages are shown once the pages before them are
+                            return loadPage(page, newPageSignal(),
+                                    page == 0 ? progressiveResults : null);
+                        }
+                    }, mUrls.length, progressiveResults);
+            cancellationSignal.throwIfCanceled();
+            mLoadedPageCount = result.getLeadingPages();
+            if (result.getFailedPages() == mUrls.length) {
+                return null;
+            }
+            return result.getBooks();
+        } finally {
+            SearchMetrics.record(SearchMetrics.STAGE_LOAD, loadStart);
+            synchronized (this) {
+                mCancellationSignal = null;
+                mPageSignals.clear();
+                if (mPublisher != null) {
+                    // The final results follow
+                    mPublisher.close();
+                    mPublisher = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        // Disconnect the HTTP requests and stop parsing instead of letting a superseded
+        // load run to completion
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+            for (CancellationSignal pageSignal : mPageSignals) {
+                pageSignal.cancel();
+            }
+            if (mPublisher != null) {
+                mPublisher.close();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(List<Book> books) {
+        mBooks = books;
+        if (isStarted()) {
+            super.deliverResult(books);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mBooks = null;
+    }
+
+    /**
+     * Load progressively: while a load is running, hand the books parsed so far to the
+     * callback on the main thread, at most once per frame. The final results are delivered
+     * as usual. Must be called on the main thread; pass null to stop.
+     */
+    public void setPartialResultsCallback(PartialResultPublisher.Callback callback) {
+        mPartialResultsCallback = callback;
+    }
+
+    /**
+     * Serve cached responses that expired at most this long ago when the network request
+     * fails, instead of failing the page. Meant for showing old results again, where some
+     * results beat none.
+     */
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        mMaxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Number of pages this loader fetches
+     */
+    public int getPageCount() {
+        return mUrls.length;
+    }
+
+    /**
+     * Number of pages, from the first one, that the delivered results hold. Less than
+     * {@link #getPageCount()} when a page failed: the pages from there on are left for
+     * paging to load, even if later ones succeeded.
+     */
+    public int getLoadedPageCount() {
+        return mLoadedPageCount;
+    }
+
+    private List<Book> loadPage(final int page, final CancellationSignal cancellationSignal,
+                                final QueryUtils.OnBookParsedListener listener) {
+        return BookResultCache.getInstance().load(mCacheKeys[page], new Callable<List<Book>>() {
+            @Override
+            public List<Book> call() {
+                final List<Book> books = QueryUtils.fetchEarthquakeData(mUrls[page],
+                        cancellationSignal, listener, mMaxStaleMillis);
+                // Keep everything we fetch searchable offline, without holding up the results
+                TaskScheduler.getInstance().execute(TaskScheduler.LANE_MAINTENANCE,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                BookIndex.getInstance(getContext()).insertBooks(books);
+                            }
+                        });
+                return books;
+            }
+        }, cancellationSignal);
+    }
+
+    /**
+     * Returns a cancellation signal for one page of a multi-page load. A signal only holds one
+     * listener, so concurrent pages each get their own.
+     */
+    private synchronized CancellationSignal newPageSignal() {
+        CancellationSignal pageSignal = new CancellationSignal();
+        if (mCancellationSignal == null || mCancellationSignal.isCanceled()) {
+            pageSignal.cancel();
+        } else {
+            mPageSignals.add(pageSignal);
+        }
+        return pageSignal;
+    }
+
+    /**
+     * Returns the results if every page is in the {@link BookResultCache}, otherwise null.
+     */
+    private List<Book> getCachedBooks() {
+        List<List<Book>> pages = new ArrayList<>(mUrls.length);
+        for (String key : mCacheKeys) {
+            List<Book> page = key != null ? BookResultCache.getInstance().get(key) : null;
+            if (page == null) {
+                return null;
+            }
+            pages.add(page);
+        }
+        return pages.size() == 1 ? pages.get(0) : MultiPageFetcher.mergePages(pages);
+    }
+
+    /**
+     * Collects the books of a progressive load: the books of the first page as they are
+     * parsed, then the merged pages.
+     */
+    private static final class ProgressiveResults
+            implements QueryUtils.OnBookParsedListener, MultiPageFetcher.Listener {
+
+        private final PartialResultPublisher mPublisher;
+        private final Set<String> mStreamedIds = new HashSet<>();
+        private final List<Book> mMergedBooks = new ArrayList<>();
+        private int mStreamedCount;
+        private boolean mPagesMerged;
+
+        ProgressiveResults(PartialResultPublisher publisher) {
+            mPublisher = publisher;
+        }
+
+        @Override
+        public synchronized void onBookParsed(int position, Book book) {
+            // Retried and hedged requests parse the same books again; only take each once
+            if (mPagesMerged || position != mStreamedCount) {
+                return;
+            }
+            mStreamedCount++;
+            // Dropped like the merge drops them, so the merged pages only add books
+            if (book.getId() == null || mStreamedIds.add(book.getId())) {
+                mPublisher.add(book);
+            }
+        }
+
+        @Override
+        public synchronized void onPagesMerged(List<Book> books, int mergedPages) {
+            mPagesMerged = true;
+            mMergedBooks.addAll(books);
+            mPublisher.set(mMergedBooks);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,306 @@
+package com.example.android.booklistingapp;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps track of which pages of a search are loaded in the list.
+ * <p>
+ * Pages are fetched with the API's startIndex parameter. The next page is requested while
+ * the user is still a prefetch distance of rows away from the end of the list. To keep
+ * memory bounded during long sessions at most {@link #MAX_LOADED_PAGES} pages stay loaded;
+ * pages trimmed from the top are fetched again when the user scrolls back up. The page size
+ * is fixed for a search, the prefetch distance can change at any time; both follow the
+ * {@link NetworkMonitor.Policy} of the network.
+ */
+final class BookPager {
+
+    /**
+     * Default number of books requested per page (the API allows at most 40)
+     */
+    static final int PAGE_SIZE = 40;
+    // Maximum number of pages kept in the list
+    private static final int MAX_LOADED_PAGES = 10;
+
+    /**
+     * Current search query
+     */
+    private String mQuery;
+
+    /**
+     * startIndex of the first loaded page
+     */
+    private int mFirstPageStart;
+
+    /**
+     * Number of books in each loaded chunk of pages, in list order
+     */
+    private ArrayList<Integer> mPageCounts = new ArrayList<>();
+
+    /**
+     * Number of pages in each loaded chunk (the first search loads several pages at once)
+     */
+    private ArrayList<Integer> mPageSpans = new ArrayList<>();
+
+    /**
+     * Whether the last page of the results has been loaded
+     */
+    private boolean mEndReached;
+
+    /**
+     * startIndex of the page being loaded, or -1
+     */
+    private int mLoadingPageStart = -1;
+
+    /**
+     * Number of books requested per page of the current search
+     */
+    private int mPageSize = PAGE_SIZE;
+
+    /**
+     * Number of rows left before the end (or the start) of the list that triggers a load
+     */
+    private int mPrefetchDistance = PAGE_SIZE / 2;
+
+    /**
+     * Start paging a new search with the given page size.
+     */
+    void reset(String query, int pageSize) {
+        reset(query);
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Start paging a new search with the same page size.
+     */
+    void reset(String query) {
+        mQuery = query;
+        mFirstPageStart = 0;
+        mPageCounts.clear();
+        mPageSpans.clear();
+        mEndReached = false;
+        mLoadingPageStart = -1;
+    }
+
+    String getQuery() {
+        return mQuery;
+    }
+
+    int getPageSize() {
+        return mPageSize;
+    }
+
+    void setPrefetchDistance(int prefetchDistance) {
+        mPrefetchDistance = prefetchDistance;
+    }
+
+    /**
+     * Returns the startIndex of the page to load for the given scroll position,
+     * or -1 if nothing needs to be loaded.
+     */
+    int pageToLoad(int firstVisible, int visibleCount, int loadedCount) {
+        if (mQuery == null || mLoadingPageStart >= 0 || mPageCounts.isEmpty()) {
+            return -1;
+        }
+        if (!mEndReached && firstVisible + visibleCount >= loadedCount - mPrefetchDistance) {
+            return nextPageStart();
+        }
+        if (mFirstPageStart > 0 && firstVisible <= mPrefetchDistance) {
+            return mFirstPageStart - mPageSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Called when the page with the given startIndex starts loading.
+     */
+    void onPageRequested(int pageStart) {
+        mLoadingPageStart = pageStart;
+    }
+
+    /**
+     * startIndex of the page being loaded, or -1
+     */
+    int getLoadingPageStart() {
+        return mLoadingPageStart;
+    }
+
+    /**
+     * Returns true if the loaded page goes before the pages already in the list.
+     */
+    boolean isPreviousPage(int pageStart) {
+        return !mPageCounts.isEmpty() && pageStart < mFirstPageStart;
+    }
+
+    /**
+     * Add a page that was appended to the end of the list. Returns the number of rows that
+     * must be removed from the start of the list to stay within {@link #MAX_LOADED_PAGES}.
+     */
+    int onPageAppended(int count) {
+        return onPagesAppended(1, count);
+    }
+
+    /**
+     * Like {@link #onPageAppended(int)}, for several consecutive pages loaded together.
+     */
+    int onPagesAppended(int pages, int count) {
+        return appendPages(pages, count, count == 0);
+    }
+
+    /**
+     * Like {@link #onPageAppended(int)}, for a page of which only some books were added to
+     * the list because the others were in it already. The end of the results is only reached
+     * when the page itself was empty.
+     */
+    int onPageAppended(int fetchedCount, int addedCount) {
+        return appendPages(1, addedCount, fetchedCount == 0);
+    }
+
+    private int appendPages(int pages, int count, boolean endReached) {
+        mLoadingPageStart = -1;
+        if (endReached) {
+            mEndReached = true;
+            return 0;
+        }
+        mPageCounts.add(count);
+        mPageSpans.add(pages);
+        int trimmed = 0;
+        while (loadedPages() > MAX_LOADED_PAGES && mPageCounts.size() > 1) {
+            trimmed += mPageCounts.remove(0);
+            mFirstPageStart += mPageSpans.remove(0) * mPageSize;
+        }
+        return trimmed;
+    }
+
+    /**
+     * Add a page that was inserted at the start of the list. Returns the number of rows that
+     * must be removed from the end of the list to stay within {@link #MAX_LOADED_PAGES}.
+     */
+    int onPagePrepended(int count) {
+        mLoadingPageStart = -1;
+        mPageCounts.add(0, count);
+        mPageSpans.add(0, 1);
+        mFirstPageStart -= mPageSize;
+        int trimmed = 0;
+        while (loadedPages() > MAX_LOADED_PAGES && mPageCounts.size() > 1) {
+            trimmed += mPageCounts.remove(mPageCounts.size() - 1);
+            mPageSpans.remove(mPageSpans.size() - 1);
+            // Pages after the trimmed one can be loaded again
+            mEndReached = false;
+        }
+        return trimmed;
+    }
+
+    /**
+     * startIndex of the first loaded page
+     */
+    int getFirstPageStart() {
+        return mFirstPageStart;
+    }
+
+    /**
+     * Number of pages loaded in the list
+     */
+    int getLoadedPageCount() {
+        return loadedPages();
+    }
+
+    /**
+     * Called when the loaded pages were fetched again after the process was killed. If the
+     * pages don't hold the same number of books anymore they are tracked as one chunk.
+     */
+    void onPagesRestored(int count) {
+        mLoadingPageStart = -1;
+        int loadedCount = 0;
+        for (int pageCount : mPageCounts) {
+            loadedCount += pageCount;
+        }
+        if (loadedCount != count) {
+            int pages = loadedPages();
+            mPageCounts.clear();
+            mPageSpans.clear();
+            if (count > 0) {
+                mPageCounts.add(count);
+                mPageSpans.add(pages);
+            }
+        }
+    }
+
+    /**
+     * Called when loading a page failed. Paging stops until the next search.
+     */
+    void onPageFailed() {
+        mLoadingPageStart = -1;
+        mEndReached = true;
+    }
+
+    /**
+     * Number of books in each loaded chunk of pages
+     */
+    ArrayList<Integer> getPageCounts() {
+        return new ArrayList<>(mPageCounts);
+    }
+
+    /**
+     * Number of pages in each loaded chunk
+     */
+    ArrayList<Integer> getPageSpans() {
+        return new ArrayList<>(mPageSpans);
+    }
+
+    boolean isEndReached() {
+        return mEndReached;
+    }
+
+    /**
+     * Restore the state read from a {@link BookSnapshot}
+     */
+    void restore(String query, int pageSize, int firstPageStart, ArrayList<Integer> pageCounts,
+                 ArrayList<Integer> pageSpans, boolean endReached) {
+        reset(query, pageSize);
+        mFirstPageStart = firstPageStart;
+        if (pageCounts.size() == pageSpans.size()) {
+            mPageCounts.addAll(pageCounts);
+            mPageSpans.addAll(pageSpans);
+        }
+        mEndReached = endReached;
+    }
+
+    void saveState(Bundle outState) {
+        outState.putString("pager_query", mQuery);
+        outState.putInt("pager_page_size", mPageSize);
+        outState.putInt("pager_first_page_start", mFirstPageStart);
+        outState.putIntegerArrayList("pager_page_counts", mPageCounts);
+        outState.putIntegerArrayList("pager_page_spans", mPageSpans);
+        outState.putBoolean("pager_end_reached", mEndReached);
+    }
+
+    void restoreState(Bundle savedState) {
+        mQuery = savedState.getString("pager_query");
+        mPageSize = savedState.getInt("pager_page_size", PAGE_SIZE);
+        mFirstPageStart = savedState.getInt("pager_first_page_start");
+        ArrayList<Integer> pageCounts = savedState.getIntegerArrayList("pager_page_counts");
+        ArrayList<Integer> pageSpans = savedState.getIntegerArrayList("pager_page_spans");
+        if (pageCounts == null || pageSpans == null || pageCounts.size() != pageSpans.size()) {
+            pageCounts = new ArrayList<>();
+            pageSpans = new ArrayList<>();
+        }
+        mPageCounts = pageCounts;
+        mPageSpans = pageSpans;
+        mEndReached = savedState.getBoolean("pager_end_reached");
+        mLoadingPageStart = -1;
+    }
+
+    private int nextPageStart() {
+        return mFirstPageStart + loadedPages() * mPageSize;
+    }
+
+    private int loadedPages() {
+        int pages = 0;
+        for (int span : mPageSpans) {
+            pages += span;
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.android.booklistingapp;
+
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Filters and sorts loaded books without a new search.
+ * <p>
+ * The keys it works on are computed once per {@link Book}, when it is created: locale aware
+ * collation keys of the title and authors, compared as plain byte arrays, and a lowercase,
+ * accent-free search text that filter tokens are matched against as substrings. Refining
+ * thousands of books then takes a few milliseconds.
+ */
+final class BookRefiner {
+
+    /**
+     * Keep the order of the results
+     */
+    static final int SORT_RELEVANCE = 0;
+    /**
+     * Sort by title, then authors
+     */
+    static final int SORT_TITLE = 1;
+    /**
+     * Sort by authors, then title
+     */
+    static final int SORT_AUTHOR = 2;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final byte[] EMPTY_KEY = new byte[0];
+
+    // Collators aren't thread safe, and books are parsed on several threads
+    private static final ThreadLocal<Collator> sCollator = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            Collator collator = Collator.getInstance();
+            // Ignore case, but not accents, when sorting
+            collator.setStrength(Collator.SECONDARY);
+            return collator;
+        }
+    };
+
+    private final String[] mTokens;
+    private final int mSort;
+
+    /**
+     * Create a refiner keeping the books that contain every word of the filter in their title
+     * or authors, ignoring case and accents, in the given sort order
+     */
+    BookRefiner(String filter, int sort) {
+        String folded = filter != null ? fold(filter).trim() : "";
+        mTokens = folded.isEmpty() ? new String[0] : WHITESPACE.split(folded);
+        mSort = sort;
+    }
+
+    /**
+     * Whether the refiner keeps all books in their order
+     */
+    boolean isIdentity() {
+        return mTokens.length == 0 && mSort == SORT_RELEVANCE;
+    }
+
+    /**
+     * Returns the positions of the matching books in the list, in sort order
+     */
+    int[] apply(final BookList books) {
+        int size = books.size();
+        Integer[] rows = new Integer[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (matches(books.getSearchText(i))) {
+                rows[count++] = i;
+            }
+        }
+        if (mSort != SORT_RELEVANCE) {
+            Arrays.sort(rows, 0, count, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareRows(books, a, b);
+                }
+            });
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = rows[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the collation key of the text in the default locale
+     */
+    static byte[] collationKey(String text) {
+        if (text == null) {
+            return EMPTY_KEY;
+        }
+        return sCollator.get().getCollationKey(text).toByteArray();
+    }
+
+    /**
+     * Returns the text filters are matched against for a book
+     */
+    static String searchText(String title, String authors) {
+        StringBuilder text = new StringBuilder();
+        if (title != null) {
+            text.append(fold(title));
+        }
+        // Keeps a filter word from matching across the title and the authors
+        text.append('\n');
+        if (authors != null) {
+            text.append(fold(authors));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Lowercase the text and remove its accents
+     */
+    static String fold(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private boolean matches(String searchText) {
+        for (String token : mTokens) {
+            if (searchText.indexOf(token) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compareRows(BookList books, int a, int b) {
+        int diff;
+        if (mSort == SORT_TITLE) {
+            diff = compareKeys(books.getTitleKey(a), books.getTitleKey(b));
+            if (diff == 0) {
+                diff = compareKeys(books.getAuthorKey(a), books.getAuthorKey(b));
+            }
+        } else {
+            diff = compareKeys(books.getAuthorKey(a), books.getAuthorKey(b));
+            if (diff == 0) {
+                diff = compareKeys(books.getTitleKey(a), books.getTitleKey(b));
+            }
+        }
+        // Equal books keep their order
+        return diff != 0 ? diff : a - b;
+    }
+
+    /**
+     * Compare collation keys as unsigned bytes, like {@link java.text.CollationKey} does
+     */
+    static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,653 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Disk backed cache of Google Books API responses, keyed by request URL.
+ * <p>
+ * Bodies are stored gzip compressed and the cache is kept under a byte budget by evicting
+ * the least recently used entries. A fresh entry is served without touching the network, a
+ * stale one is revalidated with a conditional GET (If-None-Match / If-Modified-Since).
+ * Callers that would rather show old results than none, like restoring the last results,
+ * can ask for a stale entry to be served when the network request fails.
+ * <p>
+ * Search results don't change from one minute to the next, so an entry is considered fresh
+ * for at least {@link #DEFAULT_FRESHNESS_MILLIS}, even when the server asks for immediate
+ * revalidation. "no-store" responses are never written.
+ */
+final class BookResponseCache {
+
+    // Name of the cache directory inside the app cache dir
+    private static final String DIRECTORY_NAME = "book-responses";
+    // Default byte budget of the compressed bodies on disk
+    private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    // Minimum time a response is served without revalidation
+    static final long DEFAULT_FRESHNESS_MILLIS = 5 * 60 * 1000;
+
+    // Meta file format marker and version
+    private static final int META_MAGIC = 0x426b5263;
+    private static final int META_VERSION = 1;
+    // Suffixes of the two files making up an entry
+    private static final String META_SUFFIX = ".0";
+    private static final String BODY_SUFFIX = ".1";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // HTTP response codes handled by the cache
+    private static final int HTTP_200_SUCCESSFUL = 200;
+    private static final int HTTP_304_NOT_MODIFIED = 304;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static BookResponseCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mFreshnessMillis;
+
+    /**
+     * Compressed size of every entry, in least recently used order
+     */
+    private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mInitialized;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mConditionalHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mStaleHitCount = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    BookResponseCache(File directory, long maxBytes, long freshnessMillis) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mFreshnessMillis = freshnessMillis;
+    }
+
+    /**
+     * Returns the app wide cache, stored in the app cache dir.
+     */
+    static synchronized BookResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(),
+                    DIRECTORY_NAME);
+            sInstance = new BookResponseCache(directory, DEFAULT_MAX_BYTES,
+                    DEFAULT_FRESHNESS_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Perform a GET request for the given URL, answering it from the cache when possible.
+     * The caller reads {@link Response#getBody()}, calls {@link Response#commit()} once the
+     * body has been consumed successfully and always closes the response.
+     * <p>
+     * If a cancellation signal is given, triggering it disconnects the network request;
+     * the caller clears the signal's listener when it is done.
+     */
+    Response get(URL url, int connectTimeout, int readTimeout,
+                 CancellationSignal cancellationSignal) throws IOException {
+        return get(url, connectTimeout, readTimeout, 0, cancellationSignal);
+    }
+
+    /**
+     * Like {@link #get(URL, int, int, CancellationSignal)}, but if the network request fails
+     * serve an entry that expired at most {@code maxStaleMillis} ago instead. Only for
+     * callers with no use for a retry, as the failure is hidden from them.
+     */
+    Response get(URL url, int connectTimeout, int readTimeout, long maxStaleMillis,
+                 CancellationSignal cancellationSignal) throws IOException {
+        String key = keyOf(url.toString());
+        mRequestCount.incrementAndGet();
+        Meta meta = readMeta(key, url.toString());
+
+        Response fresh = openFresh(key, meta);
+        if (fresh != null) {
+            return fresh;
+        }
+
+        final HttpURLConnection urlConnection =
+                BookHttpClient.open(url, connectTimeout, readTimeout);
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    urlConnection.disconnect();
+                }
+            });
+        }
+        try {
+            if (meta != null) {
+                if (meta.etag.length() > 0) {
+                    urlConnection.setRequestProperty("If-None-Match", meta.etag);
+                }
+                if (meta.lastModified.length() > 0) {
+                    urlConnection.setRequestProperty("If-Modified-Since", meta.lastModified);
+                }
+            }
+            urlConnection.connect();
+            int responseCode = urlConnection.getResponseCode();
+
+            if (responseCode == HTTP_304_NOT_MODIFIED && meta != null) {
+                InputStream body = openBody(key);
+                if (body != null) {
+                    meta.expiresAt = expiresAt(urlConnection.getHeaderField("Cache-Control"));
+                    // The empty body lets the socket be reused for the next request
+                    BookHttpClient.release(urlConnection, urlConnection.getInputStream());
+                    writeMeta(key, meta);
+                    mConditionalHitCount.incrementAndGet();
+                    mBytesSaved.addAndGet(meta.bodyLength);
+                    return new Response(HTTP_200_SUCCESSFUL, body, null, null,
+                            Response.SOURCE_CONDITIONAL_CACHE);
+                }
+            }
+
+            mMissCount.incrementAndGet();
+            if (responseCode != HTTP_200_SUCCESSFUL) {
+                return new Response(responseCode, null, urlConnection, null,
+                        Response.SOURCE_NETWORK);
+            }
+
+            String cacheControl = urlConnection.getHeaderField("Cache-Control");
+            Editor editor = null;
+            if (cacheControl == null
+                    || !cacheControl.toLowerCase(Locale.US).contains("no-store")) {
+                Meta newMeta = new Meta();
+                newMeta.url = url.toString();
+                newMeta.etag = nonNull(urlConnection.getHeaderField("ETag"));
+                newMeta.lastModified = nonNull(urlConnection.getHeaderField("Last-Modified"));
+                newMeta.expiresAt = expiresAt(cacheControl);
+                editor = new Editor(key, newMeta);
+            }
+            // Counted as it arrives, compressed, like the requests made without the cache
+            InputStream body = BookHttpClient.decode(urlConnection,
+                    SearchMetrics.countBytes(urlConnection.getInputStream(), false));
+            if (editor != null) {
+                body = editor.tee(body);
+            }
+            return new Response(responseCode, body, urlConnection, editor, Response.SOURCE_NETWORK);
+        } catch (IOException | RuntimeException e) {
+            urlConnection.disconnect();
+            if (e instanceof IOException && meta != null
+                    && System.currentTimeMillis() - meta.expiresAt <= maxStaleMillis
+                    && (cancellationSignal == null || !cancellationSignal.isCanceled())) {
+                // Offline or the server is unreachable: a stale entry beats no results
+                InputStream body = openBody(key);
+                if (body != null) {
+                    mStaleHitCount.incrementAndGet();
+                    mBytesSaved.addAndGet(meta.bodyLength);
+                    return new Response(HTTP_200_SUCCESSFUL, body, null, null,
+                            Response.SOURCE_STALE_CACHE);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the response for the given URL if a fresh entry can answer it without the
+     * network, otherwise null. Only hits are counted as requests, the caller is expected to
+     * fall back to {@link #get(URL, int, int, CancellationSignal)}.
+     */
+    Response getFresh(URL url) {
+        String key = keyOf(url.toString());
+        Response fresh = openFresh(key, readMeta(key, url.toString()));
+        if (fresh != null) {
+            mRequestCount.incrementAndGet();
+        }
+        return fresh;
+    }
+
+    private Response openFresh(String key, Meta meta) {
+        if (meta == null || meta.expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        InputStream body = openBody(key);
+        if (body == null) {
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        mBytesSaved.addAndGet(meta.bodyLength);
+        return new Response(HTTP_200_SUCCESSFUL, body, null, null, Response.SOURCE_CACHE);
+    }
+
+    /**
+     * Number of requests made through the cache
+     */
+    long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Number of requests answered from a fresh entry without using the network
+     */
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Number of requests answered from a revalidated (304 Not Modified) entry
+     */
+    long getConditionalHitCount() {
+        return mConditionalHitCount.get();
+    }
+
+    /**
+     * Number of requests answered from a stale entry because the network request failed
+     */
+    long getStaleHitCount() {
+        return mStaleHitCount.get();
+    }
+
+    /**
+     * Number of requests whose body had to be downloaded
+     */
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Number of uncompressed body bytes served from disk instead of the network
+     */
+    long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * Total compressed size of the cached bodies and their metadata
+     */
+    synchronized long size() {
+        ensureInitialized();
+        return mSize;
+    }
+
+    /**
+     * Delete every entry.
+     */
+    synchronized void evictAll() {
+        ensureInitialized();
+        trimToSize(0);
+    }
+
+    private long expiresAt(String cacheControl) {
+        long maxAgeMillis = 0;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeMillis = Long.parseLong(directive.substring(8)) * 1000;
+                    } catch (NumberFormatException e) {
+                        maxAgeMillis = 0;
+                    }
+                }
+            }
+        }
+        return System.currentTimeMillis() + Math.max(maxAgeMillis, mFreshnessMillis);
+    }
+
+    private InputStream openBody(String key) {
+        File file = new File(mDirectory, key + BODY_SUFFIX);
+        try {
+            InputStream body = new GZIPInputStream(
+                    SearchMetrics.countBytes(new FileInputStream(file), true));
+            synchronized (this) {
+                ensureInitialized();
+                // Mark the entry as recently used
+                mIndex.get(key);
+            }
+            return body;
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    private Meta readMeta(String key, String url) {
+        File file = new File(mDirectory, key + META_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION) {
+                remove(key);
+                return null;
+            }
+            Meta meta = new Meta();
+            meta.url = in.readUTF();
+            meta.etag = in.readUTF();
+            meta.lastModified = in.readUTF();
+            meta.expiresAt = in.readLong();
+            meta.bodyLength = in.readLong();
+            // Guard against hash collisions
+            return url.equals(meta.url) ? meta : null;
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeMeta(String key, Meta meta) throws IOException {
+        File temp = new File(mDirectory, key + META_SUFFIX + uniqueTempSuffix());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(META_MAGIC);
+            out.writeInt(META_VERSION);
+            out.writeUTF(meta.url);
+            out.writeUTF(meta.etag);
+            out.writeUTF(meta.lastModified);
+            out.writeLong(meta.expiresAt);
+            out.writeLong(meta.bodyLength);
+        } finally {
+            out.close();
+        }
+        File file = new File(mDirectory, key + META_SUFFIX);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write cache entry " + file);
+        }
+    }
+
+    private synchronized void remove(String key) {
+        ensureInitialized();
+        Long size = mIndex.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDirectory, key + META_SUFFIX).delete();
+        new File(mDirectory, key + BODY_SUFFIX).delete();
+    }
+
+    private synchronized void onEntryWritten(String key) {
+        ensureInitialized();
+        Long oldSize = mIndex.remove(key);
+        if (oldSize != null) {
+            mSize -= oldSize;
+        }
+        long size = entrySize(key);
+        mIndex.put(key, size);
+        mSize += size;
+        trimToSize(mMaxBytes);
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue();
+            new File(mDirectory, eldest.getKey() + META_SUFFIX).delete();
+            new File(mDirectory, eldest.getKey() + BODY_SUFFIX).delete();
+        }
+    }
+
+    private long entrySize(String key) {
+        return new File(mDirectory, key + META_SUFFIX).length()
+                + new File(mDirectory, key + BODY_SUFFIX).length();
+    }
+
+    /**
+     * Build the LRU index from the files on disk, oldest first.
+     */
+    private void ensureInitialized() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(META_SUFFIX)) {
+                String key = name.substring(0, name.length() - META_SUFFIX.length());
+                long size = entrySize(key);
+                mIndex.put(key, size);
+                mSize += size;
+            }
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * File name of the entry for a URL: the hex SHA-1 of the URL
+     */
+    static String keyOf(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes(UTF_8));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * Temp file suffix of the current thread, so a hedged request for the same URL doesn't
+     * write to the same file
+     */
+    private static String uniqueTempSuffix() {
+        return "." + Thread.currentThread().getId() + TEMP_SUFFIX;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Metadata stored next to each cached body
+     */
+    private static class Meta {
+        String url;
+        String etag;
+        String lastModified;
+        long expiresAt;
+        long bodyLength;
+    }
+
+    /**
+     * Result of {@link #get(URL, int, int, CancellationSignal)}.
+     */
+    static final class Response {
+
+        static final int SOURCE_NETWORK = 0;
+        static final int SOURCE_CACHE = 1;
+        static final int SOURCE_CONDITIONAL_CACHE = 2;
+        static final int SOURCE_STALE_CACHE = 3;
+
+        private final int mResponseCode;
+        private final InputStream mBody;
+        private final HttpURLConnection mConnection;
+        private final Editor mEditor;
+        private final int mSource;
+
+        private Response(int responseCode, InputStream body, HttpURLConnection connection,
+                         Editor editor, int source) {
+            mResponseCode = responseCode;
+            mBody = body;
+            mConnection = connection;
+            mEditor = editor;
+            mSource = source;
+        }
+
+        int getResponseCode() {
+            return mResponseCode;
+        }
+
+        /**
+         * The (uncompressed) response body, or null if the response code isn't 200
+         */
+        InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * One of {@link #SOURCE_NETWORK}, {@link #SOURCE_CACHE},
+         * {@link #SOURCE_CONDITIONAL_CACHE} or {@link #SOURCE_STALE_CACHE}
+         */
+        int getSource() {
+            return mSource;
+        }
+
+        /**
+         * Store the downloaded body in the cache. Must only be called once the body has been
+         * consumed successfully; any unread remainder is read before the entry is stored.
+         */
+        void commit() throws IOException {
+            if (mEditor != null) {
+                mEditor.commit(mBody);
+            }
+        }
+
+        /**
+         * Release the connection, keeping its socket alive when the body was read. An
+         * uncommitted download is discarded.
+         */
+        void close() {
+            if (mEditor != null) {
+                mEditor.abort();
+            }
+            if (mConnection != null) {
+                BookHttpClient.release(mConnection, mBody);
+            } else {
+                closeQuietly(mBody);
+            }
+        }
+    }
+
+    /**
+     * Writes a network body to disk while it is being read.
+     */
+    private final class Editor {
+
+        private final String mKey;
+        private final Meta mMeta;
+        private final File mTempFile;
+        private OutputStream mOut;
+        private long mLength;
+        private boolean mDone;
+
+        Editor(String key, Meta meta) {
+            mKey = key;
+            mMeta = meta;
+            mTempFile = new File(mDirectory, key + BODY_SUFFIX + uniqueTempSuffix());
+        }
+
+        InputStream tee(InputStream source) throws IOException {
+            synchronized (BookResponseCache.this) {
+                ensureInitialized();
+            }
+            mOut = new GZIPOutputStream(new FileOutputStream(mTempFile));
+            return new FilterInputStream(source) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int count) throws IOException {
+            if (!mDone) {
+                mOut.write(buffer, offset, count);
+                mLength += count;
+            }
+        }
+
+        void commit(InputStream body) throws IOException {
+            if (mDone) {
+                return;
+            }
+            // Drain whatever the parser left unread so the stored body is complete
+            byte[] buffer = new byte[4096];
+            while (body.read(buffer) != -1) {
+                // Bytes are copied by the tee
+            }
+            mDone = true;
+            mOut.close();
+            mMeta.bodyLength = mLength;
+            File bodyFile = new File(mDirectory, mKey + BODY_SUFFIX);
+            if (!mTempFile.renameTo(bodyFile)) {
+                mTempFile.delete();
+                throw new IOException("Unable to write cache entry " + bodyFile);
+            }
+            writeMeta(mKey, mMeta);
+            onEntryWritten(mKey);
+        }
+
+        void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            closeQuietly(mOut);
+            mTempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Process wide in-memory cache of parsed search results.
+ * <p>
+ * Entries are keyed by the normalized request URL and evicted in least recently used order
+ * once there are more than {@link #MAX_ENTRIES} of them or their approximate retained size
+ * exceeds {@link #MAX_BYTES}. Concurrent loads of the same key share one fetch.
+ */
+final class BookResultCache {
+
+    // Maximum number of cached result lists
+    private static final int MAX_ENTRIES = 32;
+    // Maximum approximate retained size of all cached books
+    private static final long MAX_BYTES = 1024 * 1024;
+    // Approximate size of a Book with its four String objects, without the characters
+    private static final int BOOK_OVERHEAD_BYTES = 5 * 24;
+
+    private static final BookResultCache INSTANCE = new BookResultCache();
+
+    /**
+     * Cached results, in least recently used order
+     */
+    private final LinkedHashMap<String, List<Book>> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> mEntrySizes = new HashMap<>();
+    private long mSize;
+
+    /**
+     * Loads currently in flight
+     */
+    private final SingleFlight<List<Book>> mLoads = new SingleFlight<>(this,
+            new SingleFlight.Cache<List<Book>>() {
+                @Override
+                public List<Book> getCached(String key) {
+                    return mEntries.get(key);
+                }
+
+                @Override
+                public List<Book> put(String key, List<Book> books) {
+                    return BookResultCache.this.put(key, books);
+                }
+            });
+
+    private BookResultCache() {
+    }
+
+    static BookResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a key that is equal for URLs that only differ in the case or spacing of
+     * their search query.
+     */
+    static String normalizeKey(String url) {
+        if (url == null) {
+            return null;
+        }
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            return url;
+        }
+        StringBuilder key = new StringBuilder(url.length());
+        key.append(url, 0, queryStart + 1);
+        String[] params = url.substring(queryStart + 1).split("&");
+        for (int i = 0; i < params.length; i++) {
+            String param = params[i];
+            if (i > 0) {
+                key.append('&');
+            }
+            if (param.startsWith("q=")) {
+                key.append("q=").append(normalizeQuery(param.substring(2)));
+            } else {
+                key.append(param);
+            }
+        }
+        return key.toString();
+    }
+
+    private static String normalizeQuery(String encodedQuery) {
+        String query;
+        try {
+            query = URLDecoder.decode(encodedQuery, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            query = encodedQuery;
+        }
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the cached results for the key, or null.
+     */
+    synchronized List<Book> get(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Returns the cached results for the key, loading them with the given loader if needed.
+     * If another thread is already loading the same key, wait for its result instead of
+     * loading it again. Null results (failed requests) are not cached.
+     * <p>
+     * Waiting stops with an {@link OperationCanceledException} when the cancellation signal
+     * is triggered. If the load being waited for is cancelled by its owner, the key is
+     * loaded again.
+     */
+    List<Book> load(String key, Callable<List<Book>> loader,
+                    CancellationSignal cancellationSignal) {
+        return mLoads.load(key, loader, cancellationSignal);
+    }
+
+    /**
+     * Cache the results for the key and return the cached, unmodifiable copy.
+     */
+    synchronized List<Book> put(String key, List<Book> books) {
+        List<Book> entry = Collections.unmodifiableList(new ArrayList<>(books));
+        remove(key);
+        long size = sizeOf(entry);
+        if (size > MAX_BYTES) {
+            return entry;
+        }
+        mEntries.put(key, entry);
+        mEntrySizes.put(key, size);
+        mSize += size;
+        trim();
+        return entry;
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mEntrySizes.clear();
+        mSize = 0;
+    }
+
+    private void remove(String key) {
+        if (mEntries.remove(key) != null) {
+            mSize -= mEntrySizes.remove(key);
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, List<Book>>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mSize > MAX_BYTES) && iterator.hasNext()) {
+            String key = iterator.next().getKey();
+            iterator.remove();
+            mSize -= mEntrySizes.remove(key);
+        }
+    }
+
+    /**
+     * Approximate retained size of a result list
+     */
+    private static long sizeOf(List<Book> books) {
+        long size = 0;
+        for (Book book : books) {
+            size += BOOK_OVERHEAD_BYTES;
+            size += 2L * (length(book.getId()) + length(book.getTitle())
+                    + length(book.getAuthor()) + length(book.getUrl()));
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.booklistingapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Process wide store of the book lists shown by the activities.
+ * <p>
+ * The saved instance state only carries the key of a list, so a configuration change takes
+ * the same time however many books are loaded. When the process has been killed in the
+ * meantime the key is unknown and the activity rebuilds its list from the response cache.
+ */
+final class BookResultStore {
+
+    // Maximum number of lists kept, e.g. for several tasks showing the activity
+    private static final int MAX_ENTRIES = 4;
+
+    private static final BookResultStore sInstance = new BookResultStore();
+
+    private final LinkedHashMap<String, BookList> mLists =
+            new LinkedHashMap<String, BookList>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BookList> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private BookResultStore() {
+    }
+
+    static BookResultStore getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Keep the list and return the key to find it again. Keys are random, so a key saved
+     * before the process was killed can't match a list of the new process.
+     */
+    synchronized String put(BookList books) {
+        String key = UUID.randomUUID().toString();
+        mLists.put(key, books);
+        return key;
+    }
+
+    /**
+     * Returns the list stored under the key, or null if it isn't in this process.
+     */
+    synchronized BookList get(String key) {
+        return key != null ? mLists.get(key) : null;
+    }
+
+    synchronized void remove(String key) {
+        mLists.remove(key);
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.android.booklistingapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * The last results shown, with the pages they came from and the scroll position, in a compact
+ * binary file, so a cold start shows them again in its first frame.
+ * <p>
+ * The file is read through a memory mapping and needs no parsing beyond reading lengths and
+ * copying bytes. After a magic number, a version and the length of the body, the body holds
+ * length-prefixed UTF-8 strings and big-endian ints: the pager state, the scroll position,
+ * a table of the distinct authors, then every book. The collation keys and search text of
+ * {@link BookRefiner} are stored as well, so reading computes none of them; the keys are only
+ * used when the default locale is still the one they were computed in, otherwise they are
+ * computed when first needed. A file of another version or with a wrong length is ignored.
+ */
+final class BookSnapshot {
+
+    // "BKSN"
+    private static final int MAGIC = 0x424b534e;
+    // Incremented whenever the layout changes; older files are then ignored
+    private static final int VERSION = 3;
+    // Magic, version and body length
+    private static final int HEADER_SIZE = 12;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mQuery;
+    private final int mPageSize;
+    private final int mFirstPageStart;
+    private final ArrayList<Integer> mPageCounts;
+    private final ArrayList<Integer> mPageSpans;
+    private final boolean mEndReached;
+    private final BookList mBooks;
+    private final int mPosition;
+    private final int mOffset;
+
+    /**
+     * Capture the state of the pager and the books, which are copied. Call on the main thread,
+     * then write the snapshot on a background thread.
+     */
+    BookSnapshot(BookPager pager, BookList books, int position, int offset) {
+        this(pager.getQuery(), pager.getPageSize(), pager.getFirstPageStart(),
+                pager.getPageCounts(), pager.getPageSpans(), pager.isEndReached(), books.copy(),
+                position, offset);
+    }
+
+    private BookSnapshot(String query, int pageSize, int firstPageStart,
+                         ArrayList<Integer> pageCounts, ArrayList<Integer> pageSpans,
+                         boolean endReached, BookList books, int position, int offset) {
+        mQuery = query;
+        mPageSize = pageSize;
+        mFirstPageStart = firstPageStart;
+        mPageCounts = pageCounts;
+        mPageSpans = pageSpans;
+        mEndReached = endReached;
+        mBooks = books;
+        mPosition = position;
+        mOffset = offset;
+    }
+
+    /**
+     * Read the snapshot in the file. Returns null if there is none or it can't be used.
+     */
+    static BookSnapshot read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+                return read(buffer);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a snapshot from the buffer. Returns null if it isn't a complete snapshot of the
+     * current version.
+     */
+    static BookSnapshot read(ByteBuffer buffer) {
+        try {
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION || buffer.getInt() != buffer.remaining()) {
+                return null;
+            }
+            String query = getString(buffer);
+            int pageSize = buffer.getInt();
+            int firstPageStart = buffer.getInt();
+            boolean endReached = buffer.get() != 0;
+            int chunks = getCount(buffer, 8);
+            ArrayList<Integer> pageCounts = new ArrayList<>(chunks);
+            ArrayList<Integer> pageSpans = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                pageCounts.add(buffer.getInt());
+                pageSpans.add(buffer.getInt());
+            }
+            int position = buffer.getInt();
+            int offset = buffer.getInt();
+
+            // Keys computed in another locale would sort wrongly: leave them to be computed again
+            boolean keysValid = Locale.getDefault().toString().equals(getString(buffer));
+            String[] authors = new String[getCount(buffer, 8)];
+            byte[][] authorKeys = new byte[authors.length][];
+            for (int i = 0; i < authors.length; i++) {
+                authors[i] = getString(buffer);
+                authorKeys[i] = getBytes(buffer);
+            }
+            int size = getCount(buffer, 24);
+            BookList books = new BookList(size);
+            for (int i = 0; i < size; i++) {
+                String id = getString(buffer);
+                String title = getString(buffer);
+                byte[] titleKey = getBytes(buffer);
+                String searchText = getString(buffer);
+                int authorIndex = buffer.getInt();
+                String url = getString(buffer);
+                String thumbnailUrl = getString(buffer);
+                String author = authorIndex >= 0 ? authors[authorIndex] : null;
+                byte[] authorKey = authorIndex >= 0 ? authorKeys[authorIndex] : null;
+                books.add(new Book(id, title, author, url, thumbnailUrl,
+                        keysValid ? titleKey : null, keysValid ? authorKey : null, searchText));
+            }
+            return new BookSnapshot(query, pageSize, firstPageStart, pageCounts, pageSpans,
+                    endReached, books, position, offset);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            // Not a snapshot this version wrote
+            return null;
+        }
+    }
+
+    /**
+     * Write the snapshot to the file, replacing the previous one only once it is complete
+     */
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(toByteArray());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't write " + file);
+        }
+    }
+
+    /**
+     * Returns the snapshot in its file layout
+     */
+    byte[] toByteArray() throws IOException {
+        SnapshotOutputStream body = new SnapshotOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        putString(out, mQuery);
+        out.writeInt(mPageSize);
+        out.writeInt(mFirstPageStart);
+        out.writeByte(mEndReached ? 1 : 0);
+        out.writeInt(mPageCounts.size());
+        for (int i = 0; i < mPageCounts.size(); i++) {
+            out.writeInt(mPageCounts.get(i));
+            out.writeInt(mPageSpans.get(i));
+        }
+        out.writeInt(mPosition);
+        out.writeInt(mOffset);
+
+        putString(out, Locale.getDefault().toString());
+        int size = mBooks.size();
+        HashMap<String, Integer> authorIndexes = new HashMap<>();
+        ArrayList<Integer> authorRows = new ArrayList<>();
+        int[] rowAuthors = new int[size];
+        for (int i = 0; i < size; i++) {
+            String author = mBooks.getAuthor(i);
+            if (author == null) {
+                rowAuthors[i] = -1;
+                continue;
+            }
+            Integer index = authorIndexes.get(author);
+            if (index == null) {
+                index = authorRows.size();
+                authorIndexes.put(author, index);
+                authorRows.add(i);
+            }
+            rowAuthors[i] = index;
+        }
+        out.writeInt(authorRows.size());
+        for (int row : authorRows) {
+            putString(out, mBooks.getAuthor(row));
+            putBytes(out, mBooks.getAuthorKey(row));
+        }
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            putString(out, mBooks.getId(i));
+            putString(out, mBooks.getTitle(i));
+            putBytes(out, mBooks.getTitleKey(i));
+            putString(out, mBooks.getSearchText(i));
+            out.writeInt(rowAuthors[i]);
+            putString(out, mBooks.getUrl(i));
+            putString(out, mBooks.getThumbnailUrl(i));
+        }
+        out.flush();
+
+        ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + body.size());
+        file.putInt(MAGIC);
+        file.putInt(VERSION);
+        file.putInt(body.size());
+        file.put(body.getBuffer(), 0, body.size());
+        return file.array();
+    }
+
+    String getQuery() {
+        return mQuery;
+    }
+
+    BookList getBooks() {
+        return mBooks;
+    }
+
+    /**
+     * Adapter position of the first visible row
+     */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Offset of the first visible row from the top of the list
+     */
+    int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Restore the pages of the snapshot into the pager
+     */
+    void restorePager(BookPager pager) {
+        pager.restore(mQuery, mPageSize, mFirstPageStart, mPageCounts, mPageSpans, mEndReached);
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        putBytes(out, value != null ? value.getBytes(UTF_8) : null);
+    }
+
+    private static void putBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = getBytes(buffer);
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    /**
+     * Read the number of items that follow, each taking at least the given number of bytes
+     */
+    private static int getCount(ByteBuffer buffer, int minItemSize) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / minItemSize) {
+            throw new IllegalArgumentException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        // Throws BufferUnderflowException if the length is wrong
+        byte[] bytes = new byte[Math.min(length, buffer.remaining() + 1)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Byte array stream exposing its buffer, so the body isn't copied once more
+     */
+    private static final class SnapshotOutputStream extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.booklistingapp;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import static com.example.android.booklistingapp.BookActivity.LOG_TAG;
+
+/**
+ * Builds Google Books API volume search URLs.
+ * <p>
+ * In projection mode (the default) the request asks for a partial response that only
+ * contains the fields {@link QueryUtils} reads ({@link QueryUtils#VOLUME_FIELDS}), which cuts
+ * the response to a small fraction of the full volume resources.
+ */
+final class BookUrlBuilder {
+
+    /**
+     * Root of the Google Books API server, for connecting ahead of the first request
+     */
+    static final String GOOGLE_APIS_ROOT_URL = "https://www.googleapis.com/";
+
+    /**
+     * Base URL for fetching data from the Google Books API (without the query)
+     */
+    private static final String GOOGLE_BOOKS_BASE_URL =
+            GOOGLE_APIS_ROOT_URL + "books/v1/volumes?q=";
+
+    /**
+     * Base URL of a volume resource (without the volume id)
+     */
+    private static final String GOOGLE_BOOKS_VOLUME_URL =
+            GOOGLE_APIS_ROOT_URL + "books/v1/volumes/";
+
+    /**
+     * URL parameters that specify the index of the first entry and the max number of entries
+     * to return
+     */
+    private static final String GOOGLE_BOOKS_START_INDEX = "&startIndex=";
+    private static final String GOOGLE_BOOKS_MAX_RESULTS = "&maxResults=";
+
+    /**
+     * URL parameters that select a partial response
+     */
+    private static final String GOOGLE_BOOKS_FIELDS = "&fields=";
+    private static final String GOOGLE_BOOKS_PROJECTION_LITE = "&projection=lite";
+
+    private final String mQuery;
+    private int mStartIndex;
+    private int mMaxResults = BookPager.PAGE_SIZE;
+    private boolean mProjection = true;
+
+    BookUrlBuilder(String query) {
+        mQuery = query;
+    }
+
+    BookUrlBuilder startIndex(int startIndex) {
+        mStartIndex = startIndex;
+        return this;
+    }
+
+    BookUrlBuilder maxResults(int maxResults) {
+        mMaxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * Whether to request only the fields the app uses
+     */
+    BookUrlBuilder projection(boolean projection) {
+        mProjection = projection;
+        return this;
+    }
+
+    String build() {
+        StringBuilder url = new StringBuilder(GOOGLE_BOOKS_BASE_URL);
+        url.append(encode(mQuery));
+        url.append(GOOGLE_BOOKS_START_INDEX).append(mStartIndex);
+        url.append(GOOGLE_BOOKS_MAX_RESULTS).append(mMaxResults);
+        if (mProjection) {
+            url.append(GOOGLE_BOOKS_FIELDS).append(encode(QueryUtils.VOLUME_FIELDS));
+            url.append(GOOGLE_BOOKS_PROJECTION_LITE);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Returns the URL of the details of a volume, asking only for the fields
+     * {@link BookDetail} holds ({@link QueryUtils#DETAIL_FIELDS})
+     */
+    static String volumeUrl(String id) {
+        return GOOGLE_BOOKS_VOLUME_URL + encode(id) + "?fields="
+                + encode(QueryUtils.DETAIL_FIELDS);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(LOG_TAG, "Error creating URL", e);
+            return "";
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.android.booklistingapp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches several pages of a search concurrently and merges them in page order.
+ * <p>
+ * At most {@link #getParallelism()} pages are fetched at the same time. Pages are merged as
+ * soon as all pages before them are done, books that appear on more than one page are only
+ * kept the first time (by volume id), and pages that fail are skipped without losing the
+ * pages that succeeded.
+ */
+final class MultiPageFetcher {
+
+    /**
+     * Default maximum number of pages fetched at the same time
+     */
+    static final int DEFAULT_PARALLELISM = 4;
+
+    // Idle worker threads are stopped after this many seconds
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static MultiPageFetcher sDefault;
+
+    private final int mParallelism;
+    private final Executor mExecutor;
+
+    /**
+     * Create a fetcher with its own pool of parallelism threads
+     */
+    MultiPageFetcher(int parallelism) {
+        mParallelism = parallelism;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "MultiPageFetcher #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Create a fetcher running its pages on the given executor, which runs at most
+     * parallelism of them at the same time
+     */
+    MultiPageFetcher(int parallelism, Executor executor) {
+        mParallelism = parallelism;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the app wide fetcher, running pages in the search lane of the
+     * {@link TaskScheduler}.
+     */
+    static synchronized MultiPageFetcher getDefault() {
+        if (sDefault == null) {
+            sDefault = new MultiPageFetcher(DEFAULT_PARALLELISM,
+                    TaskScheduler.getInstance().executor(TaskScheduler.LANE_SEARCH));
+        }
+        return sDefault;
+    }
+
+    int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Fetch pages 0 to pageCount - 1 from the source and return the merged books. The
+     * listener, if not null, is called on the calling thread every time more pages have been
+     * merged.
+     */
+    Result fetch(final PageSource source, int pageCount, Listener listener) {
+        CompletionService<List<Book>> completionService =
+                new ExecutorCompletionService<>(mExecutor);
+        List<Future<List<Book>>> futures = new ArrayList<>(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            final int page = i;
+            futures.add(completionService.submit(new Callable<List<Book>>() {
+                @Override
+                public List<Book> call() throws Exception {
+                    return source.fetchPage(page);
+                }
+            }));
+        }
+
+        Result result = new Result(pageCount);
+        Set<String> seenIds = new HashSet<>();
+        int mergedPages = 0;
+        try {
+            for (int completed = 0; completed < pageCount; completed++) {
+                Future<List<Book>> future = completionService.take();
+                int page = futures.indexOf(future);
+                result.mPages[page] = pageOf(future);
+                result.mDone[page] = true;
+
+                // Merge every page whose predecessors are all done
+                int firstNew = result.mBooks.size();
+                while (mergedPages < pageCount && result.mDone[mergedPages]) {
+                    merge(result, mergedPages, seenIds);
+                    mergedPages++;
+                }
+                if (listener != null && result.mBooks.size() > firstNew) {
+                    listener.onPagesMerged(
+                            result.mBooks.subList(firstNew, result.mBooks.size()), mergedPages);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<List<Book>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Merge already fetched pages in order, dropping books seen on an earlier page.
+     */
+    static List<Book> mergePages(List<List<Book>> pages) {
+        List<Book> books = new ArrayList<>();
+        Set<String> seenIds = new HashSet<>();
+        for (List<Book> page : pages) {
+            for (Book book : page) {
+                if (book.getId() == null || seenIds.add(book.getId())) {
+                    books.add(book);
+                }
+            }
+        }
+        return books;
+    }
+
+    private static List<Book> pageOf(Future<List<Book>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static void merge(Result result, int page, Set<String> seenIds) {
+        List<Book> books = result.mPages[page];
+        result.mPages[page] = null;
+        if (books == null) {
+            result.mFailedPages++;
+            return;
+        }
+        if (result.mFailedPages == 0) {
+            result.mLeadingPages++;
+        }
+        int added = 0;
+        for (Book book : books) {
+            if (book.getId() == null || seenIds.add(book.getId())) {
+                result.mBooks.add(book);
+                added++;
+            }
+        }
+        result.mPageCounts[page] = added;
+    }
+
+    /**
+     * Fetches a single page of results.
+     */
+    interface PageSource {
+        /**
+         * Returns the books on the given page (0 based), or null if the request failed.
+         */
+        List<Book> fetchPage(int page) throws Exception;
+    }
+
+    /**
+     * Receives books as pages are merged.
+     */
+    interface Listener {
+        /**
+         * Called with the newly merged books and the number of pages merged so far.
+         */
+        void onPagesMerged(List<Book> books, int mergedPages);
+    }
+
+    /**
+     * Merged result of a fetch.
+     */
+    static final class Result {
+
+        private final List<Book> mBooks = new ArrayList<>();
+        private final List<Book>[] mPages;
+        private final boolean[] mDone;
+        private final int[] mPageCounts;
+        private int mFailedPages;
+        private int mLeadingPages;
+
+        @SuppressWarnings("unchecked")
+        private Result(int pageCount) {
+            mPages = (List<Book>[]) new List<?>[pageCount];
+            mDone = new boolean[pageCount];
+            mPageCounts = new int[pageCount];
+        }
+
+        /**
+         * All books of the successful pages, in page order and without duplicates
+         */
+        List<Book> getBooks() {
+            return mBooks;
+        }
+
+        /**
+         * Number of books each page contributed to {@link #getBooks()}
+         */
+        int[] getPageCounts() {
+            return mPageCounts;
+        }
+
+        int getFailedPages() {
+            return mFailedPages;
+        }
+
+        /**
+         * Number of pages that loaded before the first failed one, or all pages if none
+         * failed. Paging continues after these; the pages after a gap are loaded again.
+         */
+        int getLeadingPages() {
+            return mLeadingPages;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.android.booklistingapp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.telephony.TelephonyManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the state of the network up to date from connectivity broadcasts, so checking it is a
+ * field read instead of a binder call, and classifies the link as unmetered, metered or slow.
+ * <p>
+ * Every class comes with a {@link Policy} for the requests made over it: smaller pages and
+ * less prefetching on metered links, and no cover downloads and longer timeouts on slow ones.
+ * The timeouts of the {@link RequestExecutor} and the cover downloads of the
+ * {@link ThumbnailLoader} follow the policy by themselves; listeners are told about every
+ * change, on the main thread.
+ */
+final class NetworkMonitor {
+
+    /**
+     * Receives changes of the network class on the main thread
+     */
+    interface Listener {
+        void onNetworkChanged(int networkClass);
+    }
+
+    /**
+     * No network
+     */
+    static final int CLASS_NONE = 0;
+    /**
+     * Wi-Fi, Ethernet and other links that aren't billed by the byte
+     */
+    static final int CLASS_UNMETERED = 1;
+    /**
+     * Mobile data and metered Wi-Fi hotspots
+     */
+    static final int CLASS_METERED = 2;
+    /**
+     * 2G mobile data
+     */
+    static final int CLASS_SLOW = 3;
+
+    private static final String[] CLASS_NAMES = {"none", "unmetered", "metered", "slow"};
+
+    private static final Policy[] POLICIES = {
+            // Nothing is requested without a network; searches wait for it
+            new Policy(BookPager.PAGE_SIZE, 3, BookPager.PAGE_SIZE / 2, true, 0,
+                    QueryUtils.CONNECT_TIMEOUT, QueryUtils.CONNECTION_READ_TIMEOUT),
+            new Policy(BookPager.PAGE_SIZE, 3, BookPager.PAGE_SIZE / 2, true, 12,
+                    QueryUtils.CONNECT_TIMEOUT, QueryUtils.CONNECTION_READ_TIMEOUT),
+            new Policy(20, 2, 10, true, 4,
+                    QueryUtils.CONNECT_TIMEOUT, QueryUtils.CONNECTION_READ_TIMEOUT),
+            new Policy(10, 1, 5, false, 0,
+                    2 * QueryUtils.CONNECT_TIMEOUT, 2 * QueryUtils.CONNECTION_READ_TIMEOUT)};
+
+    private static NetworkMonitor sInstance;
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private final List<Listener> mListeners = new ArrayList<>();
+    private volatile int mNetworkClass;
+
+    private NetworkMonitor(Context context) {
+        mContext = context;
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mNetworkClass = queryNetworkClass();
+        applyPolicy();
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Returns the app wide monitor. Must be called on the main thread.
+     */
+    static synchronized NetworkMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NetworkMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the class of the network, one of the CLASS constants
+     */
+    int getNetworkClass() {
+        return mNetworkClass;
+    }
+
+    boolean isConnected() {
+        return mNetworkClass != CLASS_NONE;
+    }
+
+    /**
+     * Returns the request policy for the current network
+     */
+    Policy getPolicy() {
+        return POLICIES[mNetworkClass];
+    }
+
+    static Policy getPolicy(int networkClass) {
+        return POLICIES[networkClass];
+    }
+
+    static String getClassName(int networkClass) {
+        return CLASS_NAMES[networkClass];
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the class of a network from its state
+     *
+     * @param type    {@link ConnectivityManager} network type
+     * @param subtype {@link TelephonyManager} network type of mobile networks
+     */
+    static int classify(boolean connected, int type, int subtype, boolean metered) {
+        if (!connected) {
+            return CLASS_NONE;
+        }
+        if (type == ConnectivityManager.TYPE_MOBILE) {
+            switch (subtype) {
+                case TelephonyManager.NETWORK_TYPE_GPRS:
+                case TelephonyManager.NETWORK_TYPE_EDGE:
+                case TelephonyManager.NETWORK_TYPE_CDMA:
+                case TelephonyManager.NETWORK_TYPE_1xRTT:
+                case TelephonyManager.NETWORK_TYPE_IDEN:
+                    return CLASS_SLOW;
+                default:
+                    return CLASS_METERED;
+            }
+        }
+        return metered ? CLASS_METERED : CLASS_UNMETERED;
+    }
+
+    private void update() {
+        int networkClass = queryNetworkClass();
+        if (networkClass == mNetworkClass) {
+            return;
+        }
+        mNetworkClass = networkClass;
+        applyPolicy();
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onNetworkChanged(networkClass);
+        }
+    }
+
+    private int queryNetworkClass() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null) {
+            return CLASS_NONE;
+        }
+        return classify(info.isConnectedOrConnecting(), info.getType(), info.getSubtype(),
+                ConnectivityManagerCompat.isActiveNetworkMetered(mConnectivityManager));
+    }
+
+    private void applyPolicy() {
+        Policy policy = getPolicy();
+        RequestExecutor.getDefault().setMaxTimeouts(policy.getConnectTimeout(),
+                policy.getReadTimeout());
+        ThumbnailLoader.getInstance(mContext).setDownloadsAllowed(policy.isLoadingThumbnails());
+    }
+
+    /**
+     * How requests are made over a class of network
+     */
+    static final class Policy {
+
+        private final int mPageSize;
+        private final int mInitialPages;
+        private final int mPrefetchDistance;
+        private final boolean mLoadingThumbnails;
+        private final int mDetailPrefetchRows;
+        private final int mConnectTimeout;
+        private final int mReadTimeout;
+
+        Policy(int pageSize, int initialPages, int prefetchDistance, boolean loadingThumbnails,
+               int detailPrefetchRows, int connectTimeout, int readTimeout) {
+            mPageSize = pageSize;
+            mInitialPages = initialPages;
+            mPrefetchDistance = prefetchDistance;
+            mLoadingThumbnails = loadingThumbnails;
+            mDetailPrefetchRows = detailPrefetchRows;
+            mConnectTimeout = connectTimeout;
+            mReadTimeout = readTimeout;
+        }
+
+        /**
+         * Books requested per page, the API's maxResults
+         */
+        int getPageSize() {
+            return mPageSize;
+        }
+
+        /**
+         * Pages fetched at once when a search starts
+         */
+        int getInitialPages() {
+            return mInitialPages;
+        }
+
+        /**
+         * Rows left before the end of the list that trigger loading the next page
+         */
+        int getPrefetchDistance() {
+            return mPrefetchDistance;
+        }
+
+        /**
+         * Whether covers that aren't cached are downloaded
+         */
+        boolean isLoadingThumbnails() {
+            return mLoadingThumbnails;
+        }
+
+        /**
+         * Rows on and around the screen whose details are prefetched, or 0 for none
+         */
+        int getDetailPrefetchRows() {
+            return mDetailPrefetchRows;
+        }
+
+        /**
+         * Longest connect timeout in milliseconds; the executor adapts below it
+         */
+        int getConnectTimeout() {
+            return mConnectTimeout;
+        }
+
+        int getReadTimeout() {
+            return mReadTimeout;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.booklistingapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands the books of a load that is still running to the main thread, at most once per
+ * frame.
+ * <p>
+ * Background threads add books as they are parsed. The first books are posted right away, so
+ * the first row shows as soon as it is parsed; books added while a delivery is pending are
+ * coalesced into it, and later deliveries wait until a frame has passed since the previous
+ * one. Every delivery is a snapshot of all books added so far.
+ */
+final class PartialResultPublisher {
+
+    /**
+     * Receives the books loaded so far on the main thread
+     */
+    interface Callback {
+        void onPartialResults(List<Book> books);
+    }
+
+    // Minimum time between two deliveries, one frame at 60 fps
+    private static final long FRAME_MILLIS = 16;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Callback mCallback;
+
+    /**
+     * Books added so far, guarded by this
+     */
+    private final List<Book> mBooks = new ArrayList<>();
+    private boolean mDeliveryPending;
+    private long mLastDelivery;
+    private boolean mClosed;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            List<Book> snapshot;
+            synchronized (PartialResultPublisher.this) {
+                mDeliveryPending = false;
+                if (mClosed) {
+                    return;
+                }
+                mLastDelivery = SystemClock.uptimeMillis();
+                snapshot = new ArrayList<>(mBooks);
+            }
+            mCallback.onPartialResults(snapshot);
+        }
+    };
+
+    PartialResultPublisher(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Add a book at the end of the results. May be called from any thread.
+     */
+    synchronized void add(Book book) {
+        if (mClosed) {
+            return;
+        }
+        mBooks.add(book);
+        scheduleDelivery();
+    }
+
+    /**
+     * Replace the books added so far, e.g. with merged pages. May be called from any thread.
+     */
+    synchronized void set(List<Book> books) {
+        if (mClosed) {
+            return;
+        }
+        mBooks.clear();
+        mBooks.addAll(books);
+        scheduleDelivery();
+    }
+
+    /**
+     * Stop delivering, dropping a pending delivery. Called when the load finishes or is
+     * cancelled; the final results replace the partial ones.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mMainHandler.removeCallbacks(mDeliver);
+    }
+
+    private void scheduleDelivery() {
+        if (mDeliveryPending) {
+            // Coalesced into the delivery of this frame
+            return;
+        }
+        mDeliveryPending = true;
+        long nextFrame = mLastDelivery + FRAME_MILLIS;
+        if (mLastDelivery == 0 || SystemClock.uptimeMillis() >= nextFrame) {
+            mMainHandler.post(mDeliver);
+        } else {
+            mMainHandler.postAtTime(mDeliver, nextFrame);
+        }
+    }
+}
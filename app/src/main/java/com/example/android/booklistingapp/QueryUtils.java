@@ -1,6 +1,10 @@
 package com.example.android.booklistingapp;
 
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -25,24 +29,106 @@ import static com.example.android.booklistingapp.BookActivity.LOG_TAG;
  */
 final class QueryUtils {
 
-    // URL connection read timeout in milliseconds
-    private static final int CONNECTION_READ_TIMEOUT = 10000;
-    // URL connect timeout in milliseconds
-    private static final int CONNECT_TIMEOUT = 15000;
+    // Longest URL connection read timeout in milliseconds
+    static final int CONNECTION_READ_TIMEOUT = 10000;
+    // Longest URL connect timeout in milliseconds
+    static final int CONNECT_TIMEOUT = 15000;
     // HTTP successful response code
     private static final int HTTP_200_SUCCESSFUL = 200;
+    // Parse the response straight off the connection instead of buffering it into a String first
+    private static final boolean STREAMING_PARSE = true;
+    // Author string used when a volume does not list any authors
+    private static final String UNKNOWN_AUTHOR = "Unknown";
+    // Info page of a volume, for responses that leave out the infoLink
+    private static final String INFO_LINK_BASE = "https://books.google.com/books?id=";
+
+    /**
+     * Partial response selector listing every field the parsers read. Keep in sync with
+     * {@link #readBooksFromStream(InputStream)} and {@link #extractFeatureFromJson(String)}.
+     */
+    static final String VOLUME_FIELDS =
+            "items(id,volumeInfo(title,authors,infoLink,imageLinks/thumbnail))";
+
+    /**
+     * Partial response selector for the details of one volume. Keep in sync with
+     * {@link #readBookDetail(InputStream, CancellationSignal)}.
+     */
+    static final String DETAIL_FIELDS = "id,volumeInfo(title,subtitle,authors,publisher,"
+            + "publishedDate,description,pageCount,categories,infoLink,imageLinks/thumbnail)";
+
+    // Disk cache used by the streaming fetch, if one has been installed
+    private static volatile BookResponseCache sResponseCache;
 
     //An empty private constructor makes sure that the class is not going to be initialised.
     private QueryUtils() {
     }
 
+    /**
+     * Receives every {@link Book} as soon as it is parsed from a streaming response, on the
+     * thread parsing it.
+     */
+    interface OnBookParsedListener {
+        /**
+         * Called with the position of the book in the response. Retried and hedged requests
+         * parse the same positions again.
+         */
+        void onBookParsed(int position, Book book);
+    }
+
+    /**
+     * Install the disk cache used to answer repeated requests.
+     */
+    static void setResponseCache(BookResponseCache responseCache) {
+        sResponseCache = responseCache;
+    }
+
     /**
      * Query the Google Books API and return a list of {@link Book} objects.
      */
     public static List<Book> fetchEarthquakeData(String requestUrl) {
+        return fetchEarthquakeData(requestUrl, null);
+    }
+
+    /**
+     * Query the Google Books API and return a list of {@link Book} objects. When the
+     * cancellation signal is triggered the connection is closed and parsing stops with an
+     * {@link OperationCanceledException}.
+     */
+    public static List<Book> fetchEarthquakeData(String requestUrl,
+                                                 CancellationSignal cancellationSignal) {
+        return fetchEarthquakeData(requestUrl, cancellationSignal, null);
+    }
+
+    /**
+     * Like {@link #fetchEarthquakeData(String, CancellationSignal)}, but also hand every book
+     * to the listener, if not null, while the response is still streaming in.
+     */
+    static List<Book> fetchEarthquakeData(String requestUrl,
+                                          CancellationSignal cancellationSignal,
+                                          OnBookParsedListener listener) {
+        return fetchEarthquakeData(requestUrl, cancellationSignal, listener, 0);
+    }
+
+    /**
+     * Like {@link #fetchEarthquakeData(String, CancellationSignal, OnBookParsedListener)},
+     * but if the request fails serve a cached response that expired at most
+     * {@code maxStaleMillis} ago instead.
+     */
+    static List<Book> fetchEarthquakeData(String requestUrl,
+                                          CancellationSignal cancellationSignal,
+                                          OnBookParsedListener listener, long maxStaleMillis) {
         // Create URL object
         URL url = createUrl(requestUrl);
 
+        if (STREAMING_PARSE) {
+            try {
+                return fetchBooksStreaming(url, cancellationSignal, listener, maxStaleMillis);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem making the HTTP request.", e);
+                return null;
+            }
+        }
+
         // Perform HTTP request to the URL and receive a JSON response back
         String jsonResponse = null;
         try {
@@ -59,12 +145,13 @@ final class QueryUtils {
      * Return a list of {@link Book} objects that has been built up from
      * parsing the given JSON response.
      */
-    private static List<Book> extractFeatureFromJson(String bookJSON) {
+    static List<Book> extractFeatureFromJson(String bookJSON) {
         // If the JSON string is empty or null, then return early.
         if (TextUtils.isEmpty(bookJSON)) {
             return null;
         }
 
+        long parseStart = SearchMetrics.start();
         // Create an empty ArrayList that we can start adding books to
         List<Book> books = new ArrayList<>();
 
@@ -76,8 +163,13 @@ final class QueryUtils {
             JSONObject baseJsonResponse = new JSONObject(bookJSON);
 
             // Extract the JSONArray associated with the key called "items",
-            // which represents a list of books.
-            JSONArray bookArray = baseJsonResponse.getJSONArray("items");
+            // which represents a list of books. Partial responses leave it out
+            // when nothing was found.
+            JSONArray bookArray = baseJsonResponse.optJSONArray("items");
+            if (bookArray == null) {
+                SearchMetrics.record(SearchMetrics.STAGE_PARSE, parseStart);
+                return books;
+            }
 
             // For each book in the bookArray, create an {@link Book} object
             for (int i = 0; i < bookArray.length(); i++) {
@@ -86,23 +178,33 @@ final class QueryUtils {
                 // For a given book, extract the JSONObject associated with the
                 // key called "volumeInfo", which represents a list of properties
                 // for that book.
+                String id = currentBook.optString("id", null);
                 JSONObject properties = currentBook.getJSONObject("volumeInfo");
                 String title = properties.getString("title");
-                String url = properties.getString("infoLink");
-                String authors = "";
-                if (properties.has("authors")) {
-                    JSONArray authorsJSONArray = properties.getJSONArray("authors");
+                String url = properties.optString("infoLink", null);
+                if (url == null) {
+                    if (id == null) {
+                        continue;
+                    }
+                    url = INFO_LINK_BASE + id;
+                }
+                String authors = UNKNOWN_AUTHOR;
+                JSONArray authorsJSONArray = properties.optJSONArray("authors");
+                if (authorsJSONArray != null && authorsJSONArray.length() > 0) {
+                    StringBuilder joined = new StringBuilder();
                     for (int j = 0; j < authorsJSONArray.length(); j++) {
-                        authors += authorsJSONArray.getString(j);
-                        if (j < authorsJSONArray.length() - 1) {
-                            authors += ", ";
+                        if (j > 0) {
+                            joined.append(", ");
                         }
+                        joined.append(authorsJSONArray.getString(j));
                     }
-                } else {
-                    authors = "Unknown";
+                    authors = joined.toString();
                 }
+                JSONObject imageLinks = properties.optJSONObject("imageLinks");
+                String thumbnailUrl = imageLinks != null
+                        ? secureThumbnailUrl(imageLinks.optString("thumbnail", null)) : null;
                 // Create a new {@link Book} object
-                Book book = new Book(title, authors, url);
+                Book book = new Book(id, title, authors, url, thumbnailUrl);
                 // Add the new {@link Book} to the list of books.
                 books.add(book);
             }
@@ -114,10 +216,521 @@ final class QueryUtils {
             Log.e("QueryUtils", "Problem parsing the book JSON results", e);
         }
 
+        SearchMetrics.record(SearchMetrics.STAGE_PARSE, parseStart);
         // Return the list of books
         return books;
     }
 
+    /**
+     * Make an HTTP request to the given URL and parse the {@link Book}s directly from the
+     * response stream, without holding the raw response or a JSON tree in memory. Failed
+     * and slow requests are retried or hedged by the {@link RequestExecutor}.
+     */
+    private static List<Book> fetchBooksStreaming(URL url,
+                                                  CancellationSignal cancellationSignal,
+                                                  final OnBookParsedListener listener,
+                                                  long maxStaleMillis)
+            throws IOException {
+        return fetchStreaming(url, cancellationSignal, maxStaleMillis,
+                new ResponseParser<List<Book>>() {
+                    @Override
+                    public List<Book> parse(InputStream body,
+                                            CancellationSignal cancellationSignal)
+                            throws IOException {
+                        return readBooksFromStream(body, cancellationSignal, listener);
+                    }
+                });
+    }
+
+    /**
+     * Query the Google Books API for the details of one volume, see
+     * {@link BookUrlBuilder#volumeUrl(String)}. Returns null if the request failed or the
+     * volume has no title. When the cancellation signal is triggered the connection is closed
+     * and parsing stops with an {@link OperationCanceledException}.
+     */
+    static BookDetail fetchBookDetail(String requestUrl, CancellationSignal cancellationSignal) {
+        try {
+            return fetchStreaming(createUrl(requestUrl), cancellationSignal, 0,
+                    new ResponseParser<BookDetail>() {
+                        @Override
+                        public BookDetail parse(InputStream body,
+                                                CancellationSignal cancellationSignal)
+                                throws IOException {
+                            return readBookDetail(body, cancellationSignal);
+                        }
+                    });
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem making the HTTP request.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Parses a successful response body as it streams in
+     */
+    private interface ResponseParser<T> {
+        T parse(InputStream body, CancellationSignal cancellationSignal) throws IOException;
+    }
+
+    /**
+     * Make an HTTP request to the given URL through the disk cache, if one is installed, and
+     * parse the response as it streams in. Failed and slow requests are retried or hedged by
+     * the {@link RequestExecutor}, unless a cached response that expired at most
+     * {@code maxStaleMillis} ago can be served instead.
+     */
+    private static <T> T fetchStreaming(final URL url, CancellationSignal cancellationSignal,
+                                        final long maxStaleMillis,
+                                        final ResponseParser<T> parser)
+            throws IOException {
+        // If the URL is null, then return early.
+        if (url == null) {
+            return null;
+        }
+
+        final BookResponseCache responseCache = sResponseCache;
+        if (responseCache != null) {
+            // A fresh entry needs neither retries nor a thread of the executor
+            long requestStart = SearchMetrics.start();
+            BookResponseCache.Response fresh = responseCache.getFresh(url);
+            if (fresh != null) {
+                return readResponse(fresh, requestStart, cancellationSignal, parser);
+            }
+        }
+        return RequestExecutor.getDefault().execute(new RequestExecutor.Attempt<T>() {
+            @Override
+            public T run(CancellationSignal attemptSignal, int connectTimeout,
+                         int readTimeout, RequestExecutor.Timing timing) throws IOException {
+                if (responseCache != null) {
+                    return fetchCached(responseCache, url, attemptSignal, connectTimeout,
+                            readTimeout, maxStaleMillis, timing, parser);
+                }
+                return fetchOnce(url, attemptSignal, connectTimeout, readTimeout, timing,
+                        parser);
+            }
+        }, cancellationSignal);
+    }
+
+    /**
+     * Make a single request for
+     * {@link #fetchStreaming(URL, CancellationSignal, long, ResponseParser)}.
+     */
+    private static <T> T fetchOnce(URL url, CancellationSignal cancellationSignal,
+                                   int connectTimeout, int readTimeout,
+                                   RequestExecutor.Timing timing, ResponseParser<T> parser)
+            throws IOException {
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        try {
+            urlConnection = BookHttpClient.open(url, connectTimeout, readTimeout);
+            disconnectOnCancel(urlConnection, cancellationSignal);
+            long requestStart = SearchMetrics.start();
+            urlConnection.connect();
+            SearchMetrics.record(SearchMetrics.STAGE_CONNECT, requestStart);
+            // If the request was successful (response code 200),
+            // then parse the response as it arrives.
+            int responseCode = urlConnection.getResponseCode();
+            timing.onFirstByte();
+            if (responseCode == HTTP_200_SUCCESSFUL) {
+                SearchMetrics.record(SearchMetrics.STAGE_FIRST_BYTE, requestStart);
+                inputStream = BookHttpClient.decode(urlConnection,
+                        SearchMetrics.countBytes(urlConnection.getInputStream(), false));
+                long bodyStart = SearchMetrics.start();
+                T result = parser.parse(inputStream, cancellationSignal);
+                SearchMetrics.record(SearchMetrics.STAGE_BODY, bodyStart);
+                return result;
+            }
+            throwIfRetryable(responseCode);
+            Log.e(LOG_TAG, "Error response code: " + responseCode);
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+            if (urlConnection != null) {
+                // Keeps the socket alive for the next request if the body was read
+                BookHttpClient.release(urlConnection, inputStream);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #fetchOnce(URL, CancellationSignal, int, int, RequestExecutor.Timing,
+     * ResponseParser)}, but answer the request from the disk cache when possible and store
+     * the downloaded response in it.
+     */
+    private static <T> T fetchCached(BookResponseCache responseCache, URL url,
+                                     CancellationSignal cancellationSignal,
+                                     int connectTimeout, int readTimeout,
+                                     long maxStaleMillis, RequestExecutor.Timing timing,
+                                     ResponseParser<T> parser)
+            throws IOException {
+        try {
+            long requestStart = SearchMetrics.start();
+            BookResponseCache.Response response = responseCache.get(url, connectTimeout,
+                    readTimeout, maxStaleMillis, cancellationSignal);
+            if (response.getSource() == BookResponseCache.Response.SOURCE_NETWORK) {
+                timing.onFirstByte();
+            } else {
+                timing.onResponse();
+            }
+            return readResponse(response, requestStart, cancellationSignal, parser);
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+        }
+    }
+
+    /**
+     * Parse a response of the disk cache and close it, storing the body in the cache if it
+     * was downloaded and parsed successfully. Failing to store it doesn't fail the request.
+     */
+    private static <T> T readResponse(BookResponseCache.Response response, long requestStart,
+                                      CancellationSignal cancellationSignal,
+                                      ResponseParser<T> parser)
+            throws IOException {
+        InputStream body = null;
+        try {
+            int responseCode = response.getResponseCode();
+            if (responseCode == HTTP_200_SUCCESSFUL) {
+                SearchMetrics.record(SearchMetrics.STAGE_FIRST_BYTE, requestStart);
+                body = response.getBody();
+                long bodyStart = SearchMetrics.start();
+                T result = parser.parse(body, cancellationSignal);
+                SearchMetrics.record(SearchMetrics.STAGE_BODY, bodyStart);
+                try {
+                    response.commit();
+                } catch (IOException e) {
+                    // The books were parsed already; only the cache misses this response
+                    Log.e(LOG_TAG, "Problem storing the response in the cache", e);
+                }
+                return result;
+            }
+            throwIfRetryable(responseCode);
+            Log.e(LOG_TAG, "Error response code: " + responseCode);
+        } finally {
+            if (body != null) {
+                body.close();
+            }
+            response.close();
+        }
+        return null;
+    }
+
+    /**
+     * Fail the attempt with a {@link RequestExecutor.ServerErrorException} if a request that
+     * got this response code is worth retrying.
+     */
+    private static void throwIfRetryable(int responseCode)
+            throws RequestExecutor.ServerErrorException {
+        if (RequestExecutor.ServerErrorException.isRetryable(responseCode)) {
+            throw new RequestExecutor.ServerErrorException(responseCode);
+        }
+    }
+
+    /**
+     * Close the connection from whichever thread triggers the cancellation signal, so a
+     * blocked connect or read fails right away.
+     */
+    static void disconnectOnCancel(final HttpURLConnection urlConnection,
+                                   CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    urlConnection.disconnect();
+                }
+            });
+        }
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    /**
+     * Pull-parse a Google Books volumes response from the {@link InputStream} and return
+     * the list of {@link Book}s it contains. Every field the app doesn't use is skipped.
+     */
+    static List<Book> readBooksFromStream(InputStream inputStream) throws IOException {
+        return readBooksFromStream(inputStream, null);
+    }
+
+    /**
+     * Like {@link #readBooksFromStream(InputStream)}, but stop with an
+     * {@link OperationCanceledException} once the cancellation signal is triggered.
+     */
+    static List<Book> readBooksFromStream(InputStream inputStream,
+                                          CancellationSignal cancellationSignal)
+            throws IOException {
+        return readBooksFromStream(inputStream, cancellationSignal, null);
+    }
+
+    /**
+     * Like {@link #readBooksFromStream(InputStream, CancellationSignal)}, but also hand every
+     * book to the listener, if not null, as soon as it is parsed.
+     */
+    static List<Book> readBooksFromStream(InputStream inputStream,
+                                          CancellationSignal cancellationSignal,
+                                          OnBookParsedListener listener)
+            throws IOException {
+        List<Book> books = new ArrayList<>();
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("items") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        throwIfCanceled(cancellationSignal);
+                        Book book = readItem(reader);
+                        if (book != null) {
+                            books.add(book);
+                            if (listener != null) {
+                                listener.onBookParsed(books.size() - 1, book);
+                            }
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Unexpected JSON structure; keep the books parsed so far, like the JSONObject path.
+            Log.e(LOG_TAG, "Problem parsing the book JSON results", e);
+        }
+        return books;
+    }
+
+    /**
+     * Read one element of the "items" array. Returns null if it is not a usable volume.
+     */
+    private static Book readItem(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String id = null;
+        Book volume = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id") && reader.peek() == JsonToken.STRING) {
+                id = reader.nextString();
+            } else if (name.equals("volumeInfo") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                volume = readVolumeInfo(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (volume == null) {
+            return null;
+        }
+        // Lite and partial responses may leave out the info link, build it from the id
+        String url = volume.getUrl();
+        if (url == null && id != null) {
+            url = INFO_LINK_BASE + id;
+        }
+        // Title and info link are mandatory, just like in the JSONObject path.
+        if (volume.getTitle() == null || url == null) {
+            return null;
+        }
+        // Only now that the volume is usable, the book with its refiner keys is created
+        return new Book(id, volume.getTitle(), volume.getAuthor(), url,
+                volume.getThumbnailUrl());
+    }
+
+    /**
+     * Read the "volumeInfo" object of a volume, keeping only the title, authors, info link and
+     * thumbnail.
+     * The returned book has no id, isn't validated yet and has no refiner keys, see
+     * {@link #readItem(JsonReader)}.
+     */
+    private static Book readVolumeInfo(JsonReader reader) throws IOException {
+        String title = null;
+        String url = null;
+        String authors = null;
+        String thumbnailUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("title")) {
+                title = reader.nextString();
+            } else if (name.equals("infoLink")) {
+                url = reader.nextString();
+            } else if (name.equals("authors") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                authors = readAuthors(reader);
+            } else if (name.equals("imageLinks") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                thumbnailUrl = readThumbnailUrl(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Book(null, title, authors != null ? authors : UNKNOWN_AUTHOR, url,
+                thumbnailUrl, null, null, null);
+    }
+
+    /**
+     * Read the "imageLinks" object of a volume, keeping only the thumbnail.
+     */
+    private static String readThumbnailUrl(JsonReader reader) throws IOException {
+        String thumbnailUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("thumbnail") && reader.peek() == JsonToken.STRING) {
+                thumbnailUrl = secureThumbnailUrl(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return thumbnailUrl;
+    }
+
+    /**
+     * The API returns http:// links for thumbnails that are also served over https
+     */
+    private static String secureThumbnailUrl(String url) {
+        if (url != null && url.startsWith("http://")) {
+            return "https://" + url.substring("http://".length());
+        }
+        return url;
+    }
+
+    /**
+     * Join the "authors" array into a single comma separated String.
+     */
+    private static String readAuthors(JsonReader reader) throws IOException {
+        String authors = readJoined(reader);
+        return authors != null ? authors : UNKNOWN_AUTHOR;
+    }
+
+    /**
+     * Join the strings of an array into a single comma separated String, or null if it has
+     * none.
+     */
+    private static String readJoined(JsonReader reader) throws IOException {
+        StringBuilder joined = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                if (joined.length() > 0) {
+                    joined.append(", ");
+                }
+                joined.append(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return joined.length() > 0 ? joined.toString() : null;
+    }
+
+    /**
+     * Pull-parse a Google Books volume resource from the {@link InputStream}. Returns null if
+     * it has no title. Stops with an {@link OperationCanceledException} once the cancellation
+     * signal is triggered.
+     */
+    static BookDetail readBookDetail(InputStream inputStream,
+                                     CancellationSignal cancellationSignal)
+            throws IOException {
+        String id = null;
+        BookDetail detail = null;
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                throwIfCanceled(cancellationSignal);
+                String name = reader.nextName();
+                if (name.equals("id") && reader.peek() == JsonToken.STRING) {
+                    id = reader.nextString();
+                } else if (name.equals("volumeInfo")
+                        && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    detail = readDetailVolumeInfo(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            Log.e(LOG_TAG, "Problem parsing the book detail JSON", e);
+            return null;
+        }
+        if (detail == null || detail.getTitle() == null) {
+            return null;
+        }
+        // The id usually comes before volumeInfo, but the order isn't guaranteed
+        return detail.withId(id, id != null ? INFO_LINK_BASE + id : null);
+    }
+
+    /**
+     * Read the "volumeInfo" object of a volume resource, for
+     * {@link #readBookDetail(InputStream, CancellationSignal)}
+     */
+    private static BookDetail readDetailVolumeInfo(JsonReader reader) throws IOException {
+        String title = null;
+        String subtitle = null;
+        String authors = UNKNOWN_AUTHOR;
+        String publisher = null;
+        String publishedDate = null;
+        String description = null;
+        int pageCount = 0;
+        String categories = null;
+        String infoLink = null;
+        String thumbnailUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                if (name.equals("authors")) {
+                    authors = readAuthors(reader);
+                } else if (name.equals("categories")) {
+                    categories = readJoined(reader);
+                } else {
+                    reader.skipValue();
+                }
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                if (name.equals("imageLinks")) {
+                    thumbnailUrl = readThumbnailUrl(reader);
+                } else {
+                    reader.skipValue();
+                }
+            } else if (name.equals("title")) {
+                title = reader.nextString();
+            } else if (name.equals("subtitle")) {
+                subtitle = reader.nextString();
+            } else if (name.equals("publisher")) {
+                publisher = reader.nextString();
+            } else if (name.equals("publishedDate")) {
+                publishedDate = reader.nextString();
+            } else if (name.equals("description")) {
+                description = reader.nextString();
+            } else if (name.equals("pageCount")) {
+                pageCount = reader.nextInt();
+            } else if (name.equals("infoLink")) {
+                infoLink = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new BookDetail(null, title, subtitle, authors, publisher, publishedDate,
+                description, pageCount, categories, thumbnailUrl, infoLink);
+    }
+
     /**
      * Returns new URL object from the given string URL.
      */
@@ -133,39 +746,63 @@ final class QueryUtils {
     }
 
     /**
-     * Make an HTTP request to the given URL and return a String as the response.
+     * Make an HTTP request to the given URL and return a String as the response. Failed
+     * and slow requests are retried or hedged by the {@link RequestExecutor}.
      */
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
+    private static String makeHttpRequest(final URL url) throws IOException {
         // If the URL is null, then return early.
         if (url == null) {
-            return jsonResponse;
+            return "";
         }
+        return RequestExecutor.getDefault().execute(new RequestExecutor.Attempt<String>() {
+            @Override
+            public String run(CancellationSignal attemptSignal, int connectTimeout,
+                              int readTimeout, RequestExecutor.Timing timing)
+                    throws IOException {
+                return makeHttpRequestOnce(url, attemptSignal, connectTimeout, readTimeout,
+                        timing);
+            }
+        }, null);
+    }
 
+    /**
+     * Make a single request for {@link #makeHttpRequest(URL)}.
+     */
+    private static String makeHttpRequestOnce(URL url, CancellationSignal cancellationSignal,
+                                              int connectTimeout, int readTimeout,
+                                              RequestExecutor.Timing timing)
+            throws IOException {
+        String jsonResponse = "";
         HttpURLConnection urlConnection = null;
         InputStream inputStream = null;
         try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setReadTimeout(CONNECTION_READ_TIMEOUT);
-            urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+            urlConnection = BookHttpClient.open(url, connectTimeout, readTimeout);
+            disconnectOnCancel(urlConnection, cancellationSignal);
+            long requestStart = SearchMetrics.start();
             urlConnection.connect();
+            SearchMetrics.record(SearchMetrics.STAGE_CONNECT, requestStart);
             // If the request was successful (response code 200),
             // then read the input stream and parse the response.
-            if (urlConnection.getResponseCode() == HTTP_200_SUCCESSFUL) {
-                inputStream = urlConnection.getInputStream();
+            int responseCode = urlConnection.getResponseCode();
+            timing.onFirstByte();
+            if (responseCode == HTTP_200_SUCCESSFUL) {
+                SearchMetrics.record(SearchMetrics.STAGE_FIRST_BYTE, requestStart);
+                inputStream = BookHttpClient.decode(urlConnection,
+                        SearchMetrics.countBytes(urlConnection.getInputStream(), false));
+                long bodyStart = SearchMetrics.start();
                 jsonResponse = readFromStream(inputStream);
+                SearchMetrics.record(SearchMetrics.STAGE_BODY, bodyStart);
             } else {
-                Log.e(LOG_TAG, "Error response code: " + urlConnection.getResponseCode());
+                throwIfRetryable(responseCode);
+                Log.e(LOG_TAG, "Error response code: " + responseCode);
             }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results.", e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
             }
-            if (inputStream != null) {
-                inputStream.close();
+            if (urlConnection != null) {
+                // Keeps the socket alive for the next request if the body was read
+                BookHttpClient.release(urlConnection, inputStream);
             }
         }
         return jsonResponse;
@@ -175,7 +812,7 @@ final class QueryUtils {
      * Convert the {@link InputStream} into a String which contains the
      * whole JSON response from the server.
      */
-    private static String readFromStream(InputStream inputStream) throws IOException {
+    static String readFromStream(InputStream inputStream) throws IOException {
         StringBuilder output = new StringBuilder();
         if (inputStream != null) {
             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
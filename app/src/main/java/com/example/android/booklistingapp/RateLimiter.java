@@ -0,0 +1,77 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token bucket rate limiter with a bucket per host.
+ * <p>
+ * Every host allows a burst of requests, then a steady number of requests per second.
+ * Callers reserve their slot when they ask for it, so concurrent callers queue up fairly
+ * instead of all waking up at the same time.
+ */
+final class RateLimiter {
+
+    // How often a waiting caller checks for cancellation
+    private static final long CANCEL_POLL_MILLIS = 50;
+
+    private final double mPermitsPerNano;
+    private final int mBurst;
+    private final Map<String, Bucket> mBuckets = new HashMap<>();
+
+    RateLimiter(double permitsPerSecond, int burst) {
+        mPermitsPerNano = permitsPerSecond / 1e9;
+        mBurst = burst;
+    }
+
+    /**
+     * Wait until a request to the host may be sent. Throws an
+     * {@link android.support.v4.os.OperationCanceledException} when the cancellation signal is
+     * triggered meanwhile.
+     */
+    void acquire(String host, CancellationSignal cancellationSignal)
+            throws InterruptedException {
+        long waitNanos = reserve(host, System.nanoTime());
+        long deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000;
+            if (remainingMillis <= 0) {
+                return;
+            }
+            Thread.sleep(Math.min(remainingMillis, CANCEL_POLL_MILLIS));
+        }
+    }
+
+    /**
+     * Take a permit from the host's bucket and return how long to wait for it, in
+     * nanoseconds. The bucket goes negative while permits are owed.
+     */
+    synchronized long reserve(String host, long nowNanos) {
+        Bucket bucket = mBuckets.get(host);
+        if (bucket == null) {
+            bucket = new Bucket(mBurst, nowNanos);
+            mBuckets.put(host, bucket);
+        }
+        bucket.mPermits = Math.min(mBurst,
+                bucket.mPermits + (nowNanos - bucket.mUpdated) * mPermitsPerNano);
+        bucket.mUpdated = nowNanos;
+        bucket.mPermits -= 1;
+        return bucket.mPermits >= 0 ? 0 : (long) (-bucket.mPermits / mPermitsPerNano);
+    }
+
+    private static final class Bucket {
+
+        private double mPermits;
+        private long mUpdated;
+
+        private Bucket(double permits, long updated) {
+            mPermits = permits;
+            mUpdated = updated;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs idempotent GET requests with retries, hedging and adaptive timeouts.
+ * <p>
+ * A failed attempt (an I/O error or a 5xx/429 response) is retried after an exponential
+ * backoff with full jitter. When an attempt takes longer than the 95th percentile time to
+ * first byte of recent requests without a response arriving, a second, hedged attempt is
+ * started and whichever finishes first wins; the other one is cancelled. An attempt that is
+ * only slow to read or parse its body isn't hedged. Retries and hedges draw from a shared
+ * budget that refills with every request, so a failing server doesn't get several times the
+ * normal load. Connect and read timeouts follow the observed latency instead of always
+ * waiting the full default.
+ */
+final class RequestExecutor {
+
+    // Attempts per request, including the first one (hedges not counted)
+    private static final int MAX_ATTEMPTS = 3;
+    // Backoff before the first retry; doubles for every further retry
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 4000;
+    // Every request adds this many tokens to the budget; a retry or hedge costs one
+    private static final double BUDGET_PER_REQUEST = 0.2;
+    private static final double MAX_BUDGET = 10;
+    // Latency samples kept to derive the hedge delay and the timeouts
+    private static final int LATENCY_SAMPLES = 64;
+    // Fewer samples than this aren't enough to hedge or adapt the timeouts
+    private static final int MIN_LATENCY_SAMPLES = 8;
+    // Never hedge sooner than this, so a fast network doesn't double every request
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    // Timeouts are this multiple of the 99th percentile latency, within the bounds below
+    private static final int TIMEOUT_MULTIPLIER = 4;
+    private static final int MIN_CONNECT_TIMEOUT = 2000;
+    private static final int MIN_READ_TIMEOUT = 3000;
+    // How often a waiting caller checks for cancellation
+    private static final long CANCEL_POLL_MILLIS = 50;
+    // Idle worker threads are stopped after this many seconds
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static RequestExecutor sDefault;
+
+    private volatile int mMaxConnectTimeout;
+    private volatile int mMaxReadTimeout;
+    private final ThreadPoolExecutor mExecutor;
+    private final Random mRandom = new Random();
+
+    /**
+     * Times to first byte of recent successful attempts that used the network, in
+     * milliseconds, as a ring buffer
+     */
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    private int mLatencyCount;
+    private int mNextLatency;
+
+    private double mBudget = MAX_BUDGET;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mHedgeCount = new AtomicLong();
+    private final AtomicLong mHedgeWinCount = new AtomicLong();
+    private final AtomicLong mBudgetExhaustedCount = new AtomicLong();
+
+    RequestExecutor(int maxConnectTimeout, int maxReadTimeout) {
+        mMaxConnectTimeout = maxConnectTimeout;
+        mMaxReadTimeout = maxReadTimeout;
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "RequestExecutor #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the app wide executor, bounded by the default timeouts of {@link QueryUtils}.
+     */
+    static synchronized RequestExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new RequestExecutor(QueryUtils.CONNECT_TIMEOUT,
+                    QueryUtils.CONNECTION_READ_TIMEOUT);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Run the request, retrying and hedging it as needed, and return the result of the first
+     * attempt that succeeds. Throws the last failure once the attempts or the budget run out,
+     * and an {@link OperationCanceledException} when the cancellation signal is triggered.
+     */
+    <T> T execute(Attempt<T> attempt, CancellationSignal cancellationSignal)
+            throws IOException {
+        mRequestCount.incrementAndGet();
+        synchronized (this) {
+            mBudget = Math.min(MAX_BUDGET, mBudget + BUDGET_PER_REQUEST);
+        }
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            try {
+                return executeHedged(attempt, cancellationSignal);
+            } catch (IOException e) {
+                throwIfCanceled(cancellationSignal);
+                if (attemptNumber >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                if (!withdrawBudget()) {
+                    mBudgetExhaustedCount.incrementAndGet();
+                    throw e;
+                }
+                mRetryCount.incrementAndGet();
+                sleep(backoffMillis(attemptNumber), cancellationSignal);
+            }
+        }
+    }
+
+    /**
+     * Run one attempt, racing a hedged attempt against it once its response is slower than
+     * usual to arrive.
+     */
+    private <T> T executeHedged(Attempt<T> attempt, CancellationSignal cancellationSignal)
+            throws IOException {
+        CompletionService<T> completionService = new ExecutorCompletionService<>(mExecutor);
+        List<CancellationSignal> attemptSignals = new ArrayList<>(2);
+        List<Future<T>> futures = new ArrayList<>(2);
+        Timing timing = new Timing();
+        futures.add(submit(completionService, attempt, attemptSignals, timing));
+        long hedgeDelay = getHedgeDelayMillis();
+        long hedgeAt = hedgeDelay < 0 ? Long.MAX_VALUE : now() + hedgeDelay;
+
+        IOException failure = null;
+        int pending = 1;
+        try {
+            while (pending > 0) {
+                throwIfCanceled(cancellationSignal);
+                long wait = CANCEL_POLL_MILLIS;
+                if (futures.size() == 1 && hedgeAt != Long.MAX_VALUE) {
+                    wait = Math.max(0, Math.min(wait, hedgeAt - now()));
+                }
+                Future<T> done = completionService.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (futures.size() == 1 && now() >= hedgeAt) {
+                        hedgeAt = Long.MAX_VALUE;
+                        if (timing.hasResponse()) {
+                            // Only the body is slow; a new attempt would have to read it too
+                            continue;
+                        }
+                        if (withdrawBudget()) {
+                            mHedgeCount.incrementAndGet();
+                            futures.add(submit(completionService, attempt, attemptSignals,
+                                    new Timing()));
+                            pending++;
+                        } else {
+                            mBudgetExhaustedCount.incrementAndGet();
+                        }
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    if (done != futures.get(0)) {
+                        mHedgeWinCount.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        // Keep waiting for the other attempt, if there is one
+                        failure = (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // Stop whichever attempt lost, or both when giving up
+            for (CancellationSignal attemptSignal : attemptSignals) {
+                attemptSignal.cancel();
+            }
+        }
+    }
+
+    private <T> Future<T> submit(CompletionService<T> completionService,
+                                 final Attempt<T> attempt,
+                                 List<CancellationSignal> attemptSignals,
+                                 final Timing timing) {
+        final CancellationSignal attemptSignal = new CancellationSignal();
+        attemptSignals.add(attemptSignal);
+        final int connectTimeout = getConnectTimeout();
+        final int readTimeout = getReadTimeout();
+        // The caller runs in a TaskScheduler lane and blocks until an attempt finishes, so
+        // the attempts can't take slots of that lane too. They run at its priority instead.
+        final int priority = Thread.currentThread().getPriority();
+        return completionService.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Thread.currentThread().setPriority(priority);
+                timing.start();
+                T result = attempt.run(attemptSignal, connectTimeout, readTimeout, timing);
+                if (!attemptSignal.isCanceled() && timing.mFirstByteMillis >= 0) {
+                    recordLatency(timing.mFirstByteMillis);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Returns how long to wait for an attempt before hedging it, or -1 if there is not
+     * enough history yet.
+     */
+    long getHedgeDelayMillis() {
+        long p95 = latencyPercentile(95);
+        return p95 < 0 ? -1 : Math.max(MIN_HEDGE_DELAY_MILLIS, p95);
+    }
+
+    /**
+     * Change the longest timeouts, e.g. for a slower network. Requests already running keep
+     * theirs.
+     */
+    void setMaxTimeouts(int maxConnectTimeout, int maxReadTimeout) {
+        mMaxConnectTimeout = maxConnectTimeout;
+        mMaxReadTimeout = maxReadTimeout;
+    }
+
+    int getConnectTimeout() {
+        return adaptTimeout(MIN_CONNECT_TIMEOUT, mMaxConnectTimeout);
+    }
+
+    int getReadTimeout() {
+        return adaptTimeout(MIN_READ_TIMEOUT, mMaxReadTimeout);
+    }
+
+    long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    long getHedgeWinCount() {
+        return mHedgeWinCount.get();
+    }
+
+    /**
+     * Print the retry and hedge counters and the current timeouts
+     */
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(String.format("Requests: n=%d retries=%d hedges=%d hedge_wins=%d "
+                        + "budget_exhausted=%d hedge_delay=%dms connect_timeout=%dms "
+                        + "read_timeout=%dms", mRequestCount.get(), mRetryCount.get(),
+                mHedgeCount.get(), mHedgeWinCount.get(), mBudgetExhaustedCount.get(),
+                getHedgeDelayMillis(), getConnectTimeout(), getReadTimeout()));
+    }
+
+    private int adaptTimeout(int min, int max) {
+        long p99 = latencyPercentile(99);
+        if (p99 < 0) {
+            return max;
+        }
+        return (int) Math.max(min, Math.min(max, p99 * TIMEOUT_MULTIPLIER));
+    }
+
+    private synchronized void recordLatency(long millis) {
+        mLatencies[mNextLatency] = millis;
+        mNextLatency = (mNextLatency + 1) % LATENCY_SAMPLES;
+        mLatencyCount = Math.min(LATENCY_SAMPLES, mLatencyCount + 1);
+    }
+
+    private synchronized long latencyPercentile(int percentile) {
+        if (mLatencyCount < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+        Arrays.sort(sorted);
+        return sorted[Math.min(mLatencyCount - 1, mLatencyCount * percentile / 100)];
+    }
+
+    private synchronized boolean withdrawBudget() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget--;
+        return true;
+    }
+
+    /**
+     * Full jitter: a random wait up to the exponential backoff for the attempt
+     */
+    private long backoffMillis(int attemptNumber) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attemptNumber - 1));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+
+    private static void sleep(long millis, CancellationSignal cancellationSignal)
+            throws InterruptedIOException {
+        long end = now() + millis;
+        try {
+            for (long left = millis; left > 0; left = end - now()) {
+                throwIfCanceled(cancellationSignal);
+                Thread.sleep(Math.min(left, CANCEL_POLL_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        throwIfCanceled(cancellationSignal);
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * One attempt at a request.
+     */
+    interface Attempt<T> {
+        /**
+         * Make the request with the given timeouts. Throws a {@link ServerErrorException} for
+         * responses worth retrying; triggering the cancellation signal must abort the request.
+         * Calls {@link Timing#onFirstByte()} once the server's response starts arriving.
+         */
+        T run(CancellationSignal cancellationSignal, int connectTimeout, int readTimeout,
+              Timing timing) throws IOException;
+    }
+
+    /**
+     * Times one attempt. Attempts answered without the network, e.g. from a cache, don't
+     * report a first byte, so they don't pull the hedge delay and timeouts down.
+     */
+    static final class Timing {
+
+        private volatile long mStart = now();
+
+        /**
+         * Time from the start of the attempt to the first byte of the response, or -1
+         */
+        private volatile long mFirstByteMillis = -1;
+
+        /**
+         * Whether a response arrived, from the network or not
+         */
+        private volatile boolean mResponse;
+
+        /**
+         * Called when the attempt starts running
+         */
+        void start() {
+            mStart = now();
+        }
+
+        /**
+         * Called by the attempt when the response headers arrived from the network
+         */
+        void onFirstByte() {
+            if (mFirstByteMillis < 0) {
+                mFirstByteMillis = now() - mStart;
+            }
+            mResponse = true;
+        }
+
+        /**
+         * Called by the attempt when it is answered without the network, e.g. from a cache
+         */
+        void onResponse() {
+            mResponse = true;
+        }
+
+        boolean hasResponse() {
+            return mResponse;
+        }
+    }
+
+    /**
+     * A 5xx or 429 response: the server may answer the same request next time.
+     */
+    static final class ServerErrorException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mResponseCode;
+
+        ServerErrorException(int responseCode) {
+            super("Server error response code: " + responseCode);
+            mResponseCode = responseCode;
+        }
+
+        int getResponseCode() {
+            return mResponseCode;
+        }
+
+        /**
+         * Whether a response with this code should be retried
+         */
+        static boolean isRetryable(int responseCode) {
+            return responseCode >= 500 || responseCode == 429;
+        }
+    }
+}
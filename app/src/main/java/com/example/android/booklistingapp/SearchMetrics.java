@@ -0,0 +1,291 @@
+package com.example.android.booklistingapp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for the stages of a search, plus counters of the response bytes read.
+ * <p>
+ * Hooks call {@link #start()} and {@link #record(int, long)} around a stage. Recording only
+ * updates atomic counters, so it doesn't allocate; while the metrics are disabled
+ * {@link #start()} returns 0 and the hooks do nothing but read one volatile flag. The
+ * percentiles are exported through {@link #dump(String, PrintWriter)}, which
+ * {@code adb shell dumpsys activity com.example.android.booklistingapp} prints.
+ */
+final class SearchMetrics {
+
+    /**
+     * Opening the connection (DNS, TCP and TLS), uncached requests only
+     */
+    static final int STAGE_CONNECT = 0;
+    /**
+     * From starting the request until the response headers arrive
+     */
+    static final int STAGE_FIRST_BYTE = 1;
+    /**
+     * Reading the response body; includes parsing when the body is parsed as it streams in
+     */
+    static final int STAGE_BODY = 2;
+    /**
+     * Parsing a response that was read into memory first
+     */
+    static final int STAGE_PARSE = 3;
+    /**
+     * A whole {@link BookLoader#loadInBackground()}
+     */
+    static final int STAGE_LOAD = 4;
+    /**
+     * Handing loaded results to the list on the main thread
+     */
+    static final int STAGE_BIND = 5;
+    /**
+     * From submitting a search until its results are handed to the list
+     */
+    static final int STAGE_SEARCH = 6;
+    /**
+     * From submitting a search until its first books are handed to the list
+     */
+    static final int STAGE_FIRST_RESULT = 7;
+    /**
+     * From creating the activity until its first frame is drawn
+     */
+    static final int STAGE_STARTUP = 8;
+
+    private static final String[] STAGE_NAMES = {"connect", "first_byte", "body", "parse",
+            "load", "bind", "search", "first_result", "startup"};
+
+    private static final Histogram[] sHistograms = new Histogram[STAGE_NAMES.length];
+    private static final AtomicLong sNetworkBytes = new AtomicLong();
+    private static final AtomicLong sCacheBytes = new AtomicLong();
+    private static final AtomicLong sResponses = new AtomicLong();
+
+    static {
+        for (int i = 0; i < sHistograms.length; i++) {
+            sHistograms[i] = new Histogram();
+        }
+    }
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    private SearchMetrics() {
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns the start time of a stage to pass to {@link #record(int, long)}, or 0 when the
+     * metrics are disabled.
+     */
+    static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time since the given {@link #start()} for the stage
+     */
+    static void record(int stage, long startNanos) {
+        if (startNanos != 0) {
+            sHistograms[stage].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Count the bytes read from the stream once it is closed. Returns the stream itself when
+     * the metrics are disabled.
+     */
+    static InputStream countBytes(InputStream in, boolean fromCache) {
+        if (in == null || !sEnabled) {
+            return in;
+        }
+        return new CountingInputStream(in, fromCache ? sCacheBytes : sNetworkBytes);
+    }
+
+    /**
+     * Returns the given percentile (0 to 100) of the stage in milliseconds, or 0 if nothing
+     * was recorded.
+     */
+    static double getPercentileMillis(int stage, double percentile) {
+        return sHistograms[stage].percentileMicros(percentile) / 1000.0;
+    }
+
+    static long getCount(int stage) {
+        return sHistograms[stage].mCount.get();
+    }
+
+    static long getNetworkBytes() {
+        return sNetworkBytes.get();
+    }
+
+    static long getCacheBytes() {
+        return sCacheBytes.get();
+    }
+
+    static void reset() {
+        for (Histogram histogram : sHistograms) {
+            histogram.reset();
+        }
+        sNetworkBytes.set(0);
+        sCacheBytes.set(0);
+        sResponses.set(0);
+    }
+
+    /**
+     * Print the count, percentiles and maximum of every stage, and the byte counters
+     */
+    static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Search metrics" + (sEnabled ? ":" : " (disabled):"));
+        for (int stage = 0; stage < sHistograms.length; stage++) {
+            Histogram histogram = sHistograms[stage];
+            long count = histogram.mCount.get();
+            if (count == 0) {
+                continue;
+            }
+            writer.print(prefix);
+            writer.println(String.format("  %-10s n=%d p50=%.1fms p90=%.1fms p99=%.1fms "
+                            + "max=%.1fms", STAGE_NAMES[stage], count,
+                    histogram.percentileMicros(50) / 1000.0,
+                    histogram.percentileMicros(90) / 1000.0,
+                    histogram.percentileMicros(99) / 1000.0,
+                    histogram.mMaxMicros.get() / 1000.0));
+        }
+        writer.print(prefix);
+        writer.println(String.format("  responses=%d network_bytes=%d cache_bytes=%d",
+                sResponses.get(), sNetworkBytes.get(), sCacheBytes.get()));
+    }
+
+    /**
+     * Histogram of durations in microseconds with log-linear buckets: every power of two is
+     * split into 8 buckets, which keeps percentiles within 12.5% up to about a minute.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Durations from 2^26 us (67 s) up all land in the last bucket
+        private static final int MAX_EXPONENT = 26;
+        static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            mCounts.incrementAndGet(bucketOf(micros));
+            mCount.incrementAndGet();
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the percentile, capped at the maximum
+         */
+        long percentileMicros(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(lowerBoundOf(i + 1) - 1, mMaxMicros.get());
+                }
+            }
+            return mMaxMicros.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mMaxMicros.set(0);
+        }
+
+        static int bucketOf(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long lowerBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+
+    /**
+     * Adds the number of bytes read to a counter when closed
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong mCounter;
+        private long mBytes;
+        private boolean mClosed;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mBytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mBytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mCounter.addAndGet(mBytes);
+                sResponses.incrementAndGet();
+            }
+            super.close();
+        }
+    }
+}
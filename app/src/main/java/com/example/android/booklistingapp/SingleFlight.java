@@ -0,0 +1,157 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares concurrent loads of the same key for an in-memory cache: the first thread to ask for
+ * a key that isn't cached loads it on its own thread, the others wait for its result.
+ * <p>
+ * The cache is looked up and the load registered under the cache's lock, so a key is never
+ * loaded twice because it was cached between the two.
+ */
+final class SingleFlight<V> {
+
+    /**
+     * The cache the loads are for
+     */
+    interface Cache<V> {
+        /**
+         * Returns the cached value for the key, or null. Called with the lock held.
+         */
+        V getCached(String key);
+
+        /**
+         * Cache the value the calling thread loaded and return the value to hand out
+         */
+        V put(String key, V value);
+    }
+
+    // How often a thread waiting for another thread's load checks for cancellation
+    private static final long CANCEL_POLL_MILLIS = 50;
+
+    private final Object mLock;
+    private final Cache<V> mCache;
+
+    /**
+     * Loads currently in flight, by key. Guarded by the lock.
+     */
+    private final Map<String, FutureTask<V>> mInFlight = new HashMap<>();
+
+    /**
+     * @param lock the lock guarding the cache's entries
+     */
+    SingleFlight(Object lock, Cache<V> cache) {
+        mLock = lock;
+        mCache = cache;
+    }
+
+    /**
+     * Returns whether a load of the key is running
+     */
+    boolean isInFlight(String key) {
+        synchronized (mLock) {
+            return mInFlight.containsKey(key);
+        }
+    }
+
+    /**
+     * Returns the cached value for the key, loading it with the given loader if needed. If
+     * another thread is already loading the same key, wait for its result instead of loading
+     * it again. Null results (failed loads) are not cached.
+     * <p>
+     * Waiting stops with an {@link OperationCanceledException} when the cancellation signal
+     * is triggered. If the load being waited for is cancelled by its owner, the key is
+     * loaded again.
+     */
+    V load(String key, Callable<V> loader, CancellationSignal cancellationSignal) {
+        while (true) {
+            try {
+                return loadOnce(key, loader, cancellationSignal);
+            } catch (SharedLoadCanceledException e) {
+                // The thread that owned the load was cancelled, try again
+            }
+        }
+    }
+
+    private V loadOnce(String key, Callable<V> loader, CancellationSignal cancellationSignal) {
+        FutureTask<V> task;
+        boolean owner = false;
+        synchronized (mLock) {
+            V cached = mCache.getCached(key);
+            if (cached != null) {
+                return cached;
+            }
+            task = mInFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<>(loader);
+                mInFlight.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mLock) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+
+        V value;
+        try {
+            value = await(task, cancellationSignal);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (!owner && cause instanceof OperationCanceledException) {
+                throw new SharedLoadCanceledException();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        if (value == null) {
+            return null;
+        }
+        if (owner) {
+            value = mCache.put(key, value);
+        }
+        return value;
+    }
+
+    private static <V> V await(FutureTask<V> task, CancellationSignal cancellationSignal)
+            throws InterruptedException, ExecutionException {
+        if (cancellationSignal == null) {
+            return task.get();
+        }
+        while (true) {
+            cancellationSignal.throwIfCanceled();
+            try {
+                return task.get(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check the cancellation signal again
+            }
+        }
+    }
+
+    /**
+     * Thrown to a waiting thread when the load it waited for was cancelled by its owner
+     */
+    private static class SharedLoadCanceledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App wide scheduler of background work, in priority lanes.
+ * <p>
+ * Every lane has its own queue and a bound on how many of its tasks run at the same time.
+ * Searches only wait for their own lane, while the background lanes (prefetching, thumbnails,
+ * book details, cache maintenance) also share a bound on all running tasks, so speculative
+ * work can never take the threads an interactive search needs. When threads free up, queued
+ * tasks of higher lanes start first, and each task runs at its lane's thread priority. Queue
+ * depths, running tasks and the time tasks wait in the queue are tracked per lane.
+ */
+final class TaskScheduler {
+
+    /**
+     * Work the user is waiting for: searches and their pages
+     */
+    static final int LANE_SEARCH = 0;
+    /**
+     * Pages loaded ahead of the scroll position
+     */
+    static final int LANE_PREFETCH = 1;
+    /**
+     * Cover thumbnails
+     */
+    static final int LANE_IMAGES = 2;
+    /**
+     * Details of books that may be opened next, see {@link BookDetailCache}
+     */
+    static final int LANE_DETAILS = 3;
+    /**
+     * Index and cache upkeep
+     */
+    static final int LANE_MAINTENANCE = 4;
+
+    private static final String[] LANE_NAMES = {"search", "prefetch", "images", "details",
+            "maintenance"};
+
+    /**
+     * Tasks of each lane that may run at the same time
+     */
+    private static final int[] DEFAULT_CONCURRENCY = {4, 2, 2, 2, 1};
+
+    /**
+     * Running tasks of all lanes above which background lanes wait
+     */
+    private static final int DEFAULT_MAX_RUNNING = 6;
+
+    /**
+     * Java thread priority of each lane. Android maps Java priorities 4, 3, 2 and 1 to the
+     * Linux nice values 10 (THREAD_PRIORITY_BACKGROUND, which AsyncTask uses), 13, 16 and 19
+     * (THREAD_PRIORITY_LOWEST).
+     */
+    private static final int[] THREAD_PRIORITIES = {4, 3, 3, 2, Thread.MIN_PRIORITY};
+
+    // How often a waiting caller checks for cancellation
+    private static final long CANCEL_POLL_MILLIS = 50;
+    // Idle worker threads are stopped after this many seconds
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static TaskScheduler sInstance;
+
+    private final int[] mConcurrency;
+    private final int mMaxRunning;
+    private int mTotalRunning;
+    private final ArrayDeque<Task<?>>[] mQueues;
+    private final int[] mRunning;
+    private final int[] mMaxQueueDepths;
+    private final long[] mCompleted;
+    private final SearchMetrics.Histogram[] mQueueWaits;
+    private final Executor[] mLaneExecutors;
+    private final ThreadPoolExecutor mWorkers;
+
+    @SuppressWarnings("unchecked")
+    TaskScheduler(int[] concurrency, int maxRunning) {
+        int lanes = LANE_NAMES.length;
+        mConcurrency = concurrency.clone();
+        mMaxRunning = maxRunning;
+        mQueues = (ArrayDeque<Task<?>>[]) new ArrayDeque<?>[lanes];
+        mRunning = new int[lanes];
+        mMaxQueueDepths = new int[lanes];
+        mCompleted = new long[lanes];
+        mQueueWaits = new SearchMetrics.Histogram[lanes];
+        mLaneExecutors = new Executor[lanes];
+        for (int i = 0; i < lanes; i++) {
+            final int lane = i;
+            mQueues[i] = new ArrayDeque<>();
+            mQueueWaits[i] = new SearchMetrics.Histogram();
+            mLaneExecutors[i] = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    submit(lane, Executors.callable(runnable));
+                }
+            };
+        }
+        // The lanes bound the running tasks; the pool only supplies the threads
+        mWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "TaskScheduler #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the app wide scheduler.
+     */
+    static synchronized TaskScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TaskScheduler(DEFAULT_CONCURRENCY, DEFAULT_MAX_RUNNING);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue the callable in the lane. Cancelling the returned task before it starts removes it
+     * from the queue.
+     */
+    <T> Task<T> submit(int lane, Callable<T> callable) {
+        Task<T> task = new Task<>(lane, callable);
+        synchronized (this) {
+            mQueues[lane].add(task);
+            mMaxQueueDepths[lane] = Math.max(mMaxQueueDepths[lane], mQueues[lane].size());
+            dispatch();
+        }
+        return task;
+    }
+
+    /**
+     * Queue the runnable in the lane
+     */
+    Task<Object> execute(int lane, Runnable runnable) {
+        return submit(lane, Executors.callable(runnable));
+    }
+
+    /**
+     * Returns an {@link Executor} that runs everything in the lane
+     */
+    Executor executor(int lane) {
+        return mLaneExecutors[lane];
+    }
+
+    /**
+     * Run the callable in the lane and wait for its result. When the cancellation signal is
+     * triggered the task is cancelled and an {@link OperationCanceledException} is thrown;
+     * exceptions of the callable are rethrown.
+     */
+    <T> T await(int lane, Callable<T> callable, CancellationSignal cancellationSignal) {
+        Task<T> task = submit(lane, callable);
+        try {
+            while (true) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    task.cancel(false);
+                    throw new OperationCanceledException();
+                }
+                try {
+                    return task.get(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check the cancellation signal again
+                }
+            }
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    synchronized int getQueueDepth(int lane) {
+        return mQueues[lane].size();
+    }
+
+    synchronized int getRunningCount(int lane) {
+        return mRunning[lane];
+    }
+
+    synchronized int getMaxQueueDepth(int lane) {
+        return mMaxQueueDepths[lane];
+    }
+
+    /**
+     * Print the queue depth, running tasks and queue wait percentiles of every lane
+     */
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Task lanes: running=" + mTotalRunning + "/" + mMaxRunning);
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            writer.print(prefix);
+            writer.println(String.format("  %-11s running=%d/%d queued=%d max_queued=%d "
+                            + "completed=%d wait_p50=%.1fms wait_p99=%.1fms",
+                    LANE_NAMES[lane], mRunning[lane], mConcurrency[lane],
+                    mQueues[lane].size(), mMaxQueueDepths[lane], mCompleted[lane],
+                    mQueueWaits[lane].percentileMicros(50) / 1000.0,
+                    mQueueWaits[lane].percentileMicros(99) / 1000.0));
+        }
+    }
+
+    /**
+     * Start queued tasks while their lanes have room, highest priority lane first
+     */
+    private void dispatch() {
+        for (int lane = 0; lane < mQueues.length; lane++) {
+            while (mRunning[lane] < mConcurrency[lane] && !mQueues[lane].isEmpty()
+                    && (lane == LANE_SEARCH || mTotalRunning < mMaxRunning)) {
+                final Task<?> task = mQueues[lane].poll();
+                mRunning[lane]++;
+                mTotalRunning++;
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTask(task);
+                    }
+                });
+            }
+        }
+    }
+
+    private void runTask(Task<?> task) {
+        Thread thread = Thread.currentThread();
+        thread.setPriority(THREAD_PRIORITIES[task.mLane]);
+        mQueueWaits[task.mLane].record(System.nanoTime() - task.mQueuedAt);
+        try {
+            task.run();
+        } finally {
+            synchronized (this) {
+                mRunning[task.mLane]--;
+                mTotalRunning--;
+                mCompleted[task.mLane]++;
+                dispatch();
+            }
+        }
+    }
+
+    private synchronized void remove(Task<?> task) {
+        mQueues[task.mLane].remove(task);
+    }
+
+    /**
+     * A queued or running task. Its {@link #cancel(boolean)} is the cancellation token: a
+     * queued task is dropped, a running one is interrupted if asked to.
+     */
+    final class Task<T> extends FutureTask<T> {
+
+        private final int mLane;
+        private final long mQueuedAt = System.nanoTime();
+
+        private Task(int lane, Callable<T> callable) {
+            super(callable);
+            mLane = lane;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+            }
+            return cancelled;
+        }
+    }
+}
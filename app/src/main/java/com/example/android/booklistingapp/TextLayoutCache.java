@@ -0,0 +1,192 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.support.v4.content.ContextCompat;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+/**
+ * Text layouts of the title and authors of the rows, computed ahead of binding.
+ * <p>
+ * Measuring and breaking text into lines is most of the cost of binding a row, especially with
+ * two-line titles in scripts that need shaping. The layouts of books are computed on a
+ * background thread when they arrive, so a row binds by looking its layouts up. They are cached
+ * per book and per text width, for the most recent books. A row bound to a book that isn't
+ * computed yet has its layout computed on the main thread, as a TextView would.
+ * <p>
+ * A cache belongs to an adapter, which is created again with the activity on a configuration
+ * change, so a layout made for another orientation, font scale or locale is never shown. When
+ * the rows are measured at another width than the one layouts are computed for, the cache is
+ * cleared and the width updated.
+ */
+final class TextLayoutCache {
+
+    static final int FIELD_TITLE = 0;
+    static final int FIELD_AUTHOR = 1;
+
+    // Books whose layouts are kept; a few screens of results plus the pages around them
+    private static final int MAX_BOOKS = 400;
+
+    private final LruCache<Long, RowLayouts> mLayouts = new LruCache<>(MAX_BOOKS);
+
+    /**
+     * Paints of each field: the main thread's, and the background thread's. A paint isn't
+     * thread safe while text is measured with it; drawing only reads it.
+     */
+    private final TextPaint[] mPaints;
+    private final TextPaint[] mBackgroundPaints;
+
+    /**
+     * Width the text of the rows is laid out at; estimated until a row is measured
+     */
+    private volatile int mWidth;
+
+    TextLayoutCache(Context context) {
+        mPaints = createPaints(context);
+        mBackgroundPaints = createPaints(context);
+        mWidth = estimateWidth(context.getResources());
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Called when the rows are measured: if their text width differs from the one layouts
+     * are computed for, clear the layouts. Returns whether it did.
+     */
+    boolean setWidth(int width) {
+        if (width == mWidth) {
+            return false;
+        }
+        mWidth = width;
+        mLayouts.evictAll();
+        return true;
+    }
+
+    /**
+     * Returns the layout of the field of a book at the current width, computing it on the main
+     * thread if needed
+     *
+     * @param id stable id of the book, see {@link BookAdapter#stableId(String, String)}
+     */
+    Layout get(long id, int field, String text) {
+        int width = mWidth;
+        RowLayouts row = mLayouts.get(id);
+        Layout cached = row != null ? row.get(width, field, text) : null;
+        if (cached != null) {
+            return cached;
+        }
+        Layout layout = createLayout(mPaints[field], text, width);
+        if (row == null || row.mWidth != width) {
+            row = new RowLayouts(width);
+            mLayouts.put(id, row);
+        }
+        row.set(field, text, layout);
+        return layout;
+    }
+
+    /**
+     * Compute the layouts of the books that aren't cached at the current width yet. Call on
+     * one background thread at a time; stops early if the width changes.
+     */
+    void precompute(BookList books) {
+        int width = mWidth;
+        int count = Math.min(books.size(), MAX_BOOKS);
+        for (int i = 0; i < count && width == mWidth; i++) {
+            long id = BookAdapter.stableId(books.getId(i), books.getUrl(i));
+            String title = books.getTitle(i);
+            String author = books.getAuthor(i);
+            RowLayouts row = mLayouts.get(id);
+            if (row != null && row.matches(width, FIELD_TITLE, title)
+                    && row.matches(width, FIELD_AUTHOR, author)) {
+                continue;
+            }
+            RowLayouts computed = new RowLayouts(width);
+            computed.set(FIELD_TITLE, title,
+                    createLayout(mBackgroundPaints[FIELD_TITLE], title, width));
+            computed.set(FIELD_AUTHOR, author,
+                    createLayout(mBackgroundPaints[FIELD_AUTHOR], author, width));
+            mLayouts.put(id, computed);
+        }
+    }
+
+    /**
+     * Drop all layouts
+     */
+    void clear() {
+        mLayouts.evictAll();
+    }
+
+    private static Layout createLayout(TextPaint paint, String text, int width) {
+        // An empty row keeps the height of a line, like an empty TextView
+        return new StaticLayout(text != null ? text : "", paint, Math.max(0, width),
+                Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+    }
+
+    /**
+     * Paints matching the title and author text views of list_item.xml
+     */
+    private static TextPaint[] createPaints(Context context) {
+        Resources resources = context.getResources();
+        TextPaint title = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        title.density = resources.getDisplayMetrics().density;
+        title.setTextSize(resources.getDimension(R.dimen.title_txt_size));
+        title.setColor(ContextCompat.getColor(context, R.color.colorBookTitle));
+
+        TextPaint author = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        author.density = resources.getDisplayMetrics().density;
+        author.setTextSize(resources.getDimension(R.dimen.author_txt_size));
+        // The default color of a TextView's text
+        TypedArray a = context.obtainStyledAttributes(
+                new int[]{android.R.attr.textColorSecondary});
+        author.setColor(a.getColor(0, title.getColor()));
+        a.recycle();
+        return new TextPaint[]{title, author};
+    }
+
+    /**
+     * Text width of a row spanning the screen, until a row is measured
+     */
+    private static int estimateWidth(Resources resources) {
+        int padding = resources.getDimensionPixelSize(R.dimen.padding_normal);
+        int thumbnail = resources.getDimensionPixelSize(R.dimen.thumbnail_width);
+        // Row padding on both sides and the margin right of the thumbnail
+        return resources.getDisplayMetrics().widthPixels - thumbnail - 3 * padding;
+    }
+
+    /**
+     * Layouts of the fields of a book at one width, with the text they were computed for
+     */
+    private static final class RowLayouts {
+
+        final int mWidth;
+        final String[] mTexts = new String[2];
+        final Layout[] mLayouts = new Layout[2];
+
+        RowLayouts(int width) {
+            mWidth = width;
+        }
+
+        /**
+         * Returns the layout of the field if it was computed for the text at the width
+         */
+        synchronized Layout get(int width, int field, String text) {
+            return matches(width, field, text) ? mLayouts[field] : null;
+        }
+
+        synchronized boolean matches(int width, int field, String text) {
+            return mWidth == width && mLayouts[field] != null
+                    && (text == null ? mTexts[field] == null : text.equals(mTexts[field]));
+        }
+
+        synchronized void set(int field, String text, Layout layout) {
+            mTexts[field] = text;
+            mLayouts[field] = layout;
+        }
+    }
+}
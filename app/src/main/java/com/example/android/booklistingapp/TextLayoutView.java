@@ -0,0 +1,105 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Draws a text {@link Layout} computed ahead of time, instead of measuring and laying out its
+ * text when it is bound like a TextView does.
+ * <p>
+ * Like a TextView with {@code android:maxLines}, only the first lines are shown. If the view is
+ * measured at another width than its layout's, it asks its {@link LayoutProvider} for one that
+ * fits.
+ */
+public class TextLayoutView extends View {
+
+    /**
+     * Lays text out again for the width the view is measured at
+     */
+    public interface LayoutProvider {
+        Layout getLayout(TextLayoutView view, int width);
+    }
+
+    private static final int[] ATTRS = {android.R.attr.maxLines};
+
+    private final int mMaxLines;
+    private Layout mLayout;
+    private LayoutProvider mLayoutProvider;
+
+    public TextLayoutView(Context context) {
+        this(context, null);
+    }
+
+    public TextLayoutView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS);
+        mMaxLines = a.getInt(0, Integer.MAX_VALUE);
+        a.recycle();
+    }
+
+    public void setLayoutProvider(LayoutProvider layoutProvider) {
+        mLayoutProvider = layoutProvider;
+    }
+
+    /**
+     * Show the text layout, or nothing if it is null
+     */
+    public void setTextLayout(Layout layout) {
+        if (layout == mLayout) {
+            return;
+        }
+        int oldHeight = visibleHeight(mLayout);
+        mLayout = layout;
+        setContentDescription(layout != null ? layout.getText() : null);
+        if (visibleHeight(layout) != oldHeight) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    public Layout getTextLayout() {
+        return mLayout;
+    }
+
+    public CharSequence getText() {
+        return mLayout != null ? mLayout.getText() : null;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int textWidth = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        if (mLayout != null && mLayout.getWidth() != textWidth && mLayoutProvider != null) {
+            mLayout = mLayoutProvider.getLayout(this, textWidth);
+        }
+        int height = visibleHeight(mLayout) + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null) {
+            return;
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        // Lines after the last one shown are cut, like in a TextView
+        canvas.clipRect(0, 0, mLayout.getWidth(), visibleHeight(mLayout));
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+
+    /**
+     * Height of the lines of the layout that are shown
+     */
+    private int visibleHeight(Layout layout) {
+        if (layout == null) {
+            return 0;
+        }
+        return layout.getLineTop(Math.min(layout.getLineCount(), mMaxLines));
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.booklistingapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of downloaded cover thumbnails, keyed by image URL.
+ * <p>
+ * Thumbnails are already compressed, so the encoded bytes are stored as they are. The cache is
+ * kept under a byte budget by evicting the least recently used files; a file's modification
+ * time records its last use so the order survives restarts.
+ */
+final class ThumbnailDiskCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * Size of every file, in least recently used order
+     */
+    private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mInitialized;
+
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the encoded image stored for the URL, or null.
+     */
+    byte[] get(String url) {
+        String key = BookResponseCache.keyOf(url);
+        synchronized (this) {
+            ensureInitialized();
+            if (mIndex.get(key) == null) {
+                return null;
+            }
+        }
+        File file = new File(mDirectory, key);
+        try {
+            byte[] bytes = readFully(new FileInputStream(file));
+            file.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store the encoded image for the URL, evicting older images over the budget.
+     */
+    void put(String url, byte[] bytes) {
+        String key = BookResponseCache.keyOf(url);
+        synchronized (this) {
+            ensureInitialized();
+        }
+        File temp = new File(mDirectory, key + TEMP_SUFFIX + Thread.currentThread().getId());
+        File file = new File(mDirectory, key);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            Long oldSize = mIndex.remove(key);
+            if (oldSize != null) {
+                mSize -= oldSize;
+            }
+            mIndex.put(key, (long) bytes.length);
+            mSize += bytes.length;
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Total size of the cached images
+     */
+    synchronized long size() {
+        ensureInitialized();
+        return mSize;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        ensureInitialized();
+        Long size = mIndex.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDirectory, key).delete();
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue();
+            new File(mDirectory, eldest.getKey()).delete();
+        }
+    }
+
+    /**
+     * Build the LRU index from the files on disk, oldest first.
+     */
+    private void ensureInitialized() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().contains(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                mIndex.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(mMaxBytes);
+    }
+}
@@ -0,0 +1,440 @@
+package com.example.android.booklistingapp;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.android.booklistingapp.BookActivity.LOG_TAG;
+
+/**
+ * Loads cover thumbnails for the rows of the book list.
+ * <p>
+ * Decoded thumbnails are kept in a memory LRU sized to a fraction of the heap, encoded ones in
+ * a {@link ThumbnailDiskCache}. Images are decoded at the size of the view (in RGB_565, as
+ * covers are opaque) into bitmaps evicted from the memory cache when possible, so scrolling
+ * doesn't allocate a new bitmap for every row. Requests run in the images lane of the
+ * {@link TaskScheduler}; pending ones are served nearest to the visible rows first, and a
+ * request is cancelled when its row is recycled.
+ */
+final class ThumbnailLoader {
+
+    /**
+     * Receives a loaded thumbnail on the main thread
+     */
+    interface Target {
+        void onThumbnailLoaded(Bitmap bitmap);
+    }
+
+    private static final String DIRECTORY_NAME = "thumbnails";
+    private static final long DISK_CACHE_BYTES = 10 * 1024 * 1024;
+
+    // Share of the heap used by the memory cache (1/8)
+    private static final int MEMORY_CACHE_HEAP_DIVISOR = 8;
+    // Maximum number of evicted bitmaps waiting to be reused
+    private static final int MAX_POOLED_BITMAPS = 8;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int HTTP_200_SUCCESSFUL = 200;
+
+    private static ThumbnailLoader sInstance;
+
+    private final ThumbnailDiskCache mDiskCache;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final TaskScheduler mScheduler;
+    /**
+     * Requests waiting for the scheduler, nearest to the visible rows first
+     */
+    private final PriorityBlockingQueue<Request> mPending = new PriorityBlockingQueue<>();
+    /**
+     * Runs the first pending request. One is scheduled for every request, so the lane's
+     * threads always pick the best request at the time they start, not when it was added.
+     */
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            Request request = mPending.poll();
+            if (request != null) {
+                request.run();
+            }
+        }
+    };
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Guards the bitmaps shown in views and the pool of bitmaps that can be decoded into
+     */
+    private final Object mBitmapLock = new Object();
+    private final IdentityHashMap<Bitmap, Integer> mDisplayCounts = new IdentityHashMap<>();
+    private final Set<Bitmap> mEvictedWhileDisplayed =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+    private final LinkedList<Bitmap> mReusableBitmaps = new LinkedList<>();
+
+    /**
+     * Adapter positions of the first and last visible rows
+     */
+    private volatile int mFirstVisible;
+    private volatile int mLastVisible;
+
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * Whether covers missing from the caches are downloaded
+     */
+    private volatile boolean mDownloadsAllowed = true;
+
+    ThumbnailLoader(File directory, int memoryCacheBytes, TaskScheduler scheduler) {
+        mDiskCache = new ThumbnailDiskCache(directory, DISK_CACHE_BYTES);
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String url, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String url, Bitmap oldBitmap,
+                                        Bitmap newBitmap) {
+                onRemovedFromMemoryCache(oldBitmap);
+            }
+        };
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Returns the app wide loader.
+     */
+    static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(),
+                    DIRECTORY_NAME);
+            int memoryCacheBytes = (int) (Runtime.getRuntime().maxMemory()
+                    / MEMORY_CACHE_HEAP_DIVISOR);
+            sInstance = new ThumbnailLoader(directory, memoryCacheBytes,
+                    TaskScheduler.getInstance());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the thumbnail if it is in the memory cache, marking it as displayed. The caller
+     * passes it to {@link #release(Bitmap)} once the view doesn't show it anymore.
+     */
+    Bitmap getCached(String url) {
+        // Looked up under the lock, so an eviction by another thread can't pool the bitmap
+        // before it is marked as displayed
+        synchronized (mBitmapLock) {
+            Bitmap bitmap = mMemoryCache.get(url);
+            if (bitmap != null) {
+                retain(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Load the thumbnail for the row at the given adapter position, downsampled to the given
+     * size. The target receives a bitmap marked as displayed, see {@link #getCached(String)}.
+     * Returns a request to cancel when the row is recycled.
+     */
+    Request load(String url, int position, int width, int height, Target target) {
+        Request request = new Request(url, position, width, height, target);
+        mPending.add(request);
+        mScheduler.execute(TaskScheduler.LANE_IMAGES, mRunNext);
+        return request;
+    }
+
+    /**
+     * Allow or stop downloading covers, e.g. on a slow network. While stopped, only cached
+     * covers load.
+     */
+    void setDownloadsAllowed(boolean allowed) {
+        mDownloadsAllowed = allowed;
+    }
+
+    /**
+     * Called when a view stops showing a bitmap it got from this loader
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mBitmapLock) {
+            Integer count = mDisplayCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+                return;
+            }
+            mDisplayCounts.remove(bitmap);
+            if (mEvictedWhileDisplayed.remove(bitmap)) {
+                addReusableBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Update the visible rows, so requests near them are served first.
+     */
+    void setVisibleRange(int firstVisible, int lastVisible) {
+        if (firstVisible == mFirstVisible && lastVisible == mLastVisible) {
+            return;
+        }
+        mFirstVisible = firstVisible;
+        mLastVisible = lastVisible;
+        // The queue orders requests when they are added: add them again with the new order
+        List<Request> pending = new ArrayList<>();
+        mPending.drainTo(pending);
+        mPending.addAll(pending);
+    }
+
+    /**
+     * Release memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (mBitmapLock) {
+                mReusableBitmaps.clear();
+            }
+        }
+    }
+
+    private void retain(Bitmap bitmap) {
+        synchronized (mBitmapLock) {
+            Integer count = mDisplayCounts.get(bitmap);
+            mDisplayCounts.put(bitmap, count != null ? count + 1 : 1);
+        }
+    }
+
+    private void onRemovedFromMemoryCache(Bitmap bitmap) {
+        synchronized (mBitmapLock) {
+            if (mDisplayCounts.containsKey(bitmap)) {
+                // Reused once no view shows it anymore
+                mEvictedWhileDisplayed.add(bitmap);
+            } else {
+                addReusableBitmap(bitmap);
+            }
+        }
+    }
+
+    private void addReusableBitmap(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        mReusableBitmaps.addFirst(bitmap);
+        if (mReusableBitmaps.size() > MAX_POOLED_BITMAPS) {
+            mReusableBitmaps.removeLast();
+        }
+    }
+
+    /**
+     * Returns a pooled bitmap that an image of the given decoded size can be decoded into,
+     * or null
+     */
+    private Bitmap takeReusableBitmap(int width, int height, int sampleSize) {
+        synchronized (mBitmapLock) {
+            Iterator<Bitmap> iterator = mReusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next();
+                if (canDecodeInto(candidate, width, height, sampleSize)) {
+                    iterator.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean canDecodeInto(Bitmap candidate, int width, int height,
+                                         int sampleSize) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Any bitmap large enough, as long as the config matches
+            return candidate.getConfig() == Bitmap.Config.RGB_565
+                    && width * height * 2 <= candidate.getAllocationByteCount();
+        }
+        // Before KitKat only bitmaps of the exact size, without subsampling
+        return sampleSize == 1 && candidate.getWidth() == width
+                && candidate.getHeight() == height
+                && candidate.getConfig() == Bitmap.Config.RGB_565;
+    }
+
+    private Bitmap decode(byte[] bytes, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        // Largest power of two keeping the image at least as large as the view
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        int decodedWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        int decodedHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap(decodedWidth, decodedHeight, sampleSize);
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    private static byte[] download(String url, CancellationSignal cancellationSignal)
+            throws IOException {
+        HttpURLConnection urlConnection = BookHttpClient.open(new URL(url),
+                CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+        QueryUtils.disconnectOnCancel(urlConnection, cancellationSignal);
+        InputStream body = null;
+        try {
+            if (urlConnection.getResponseCode() != HTTP_200_SUCCESSFUL) {
+                return null;
+            }
+            body = BookHttpClient.getBody(urlConnection);
+            return ThumbnailDiskCache.readFully(body);
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+            BookHttpClient.release(urlConnection, body);
+        }
+    }
+
+    /**
+     * Request for one thumbnail, ordered by distance from the visible rows
+     */
+    final class Request implements Runnable, Comparable<Request> {
+
+        private final String mUrl;
+        private final int mPosition;
+        private final int mWidth;
+        private final int mHeight;
+        private final Target mTarget;
+        private final long mSequence = mNextSequence.incrementAndGet();
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        private Request(String url, int position, int width, int height, Target target) {
+            mUrl = url;
+            mPosition = position;
+            mWidth = width;
+            mHeight = height;
+            mTarget = target;
+        }
+
+        /**
+         * Cancel the request. Must be called on the main thread; the target isn't called
+         * afterwards.
+         */
+        void cancel() {
+            mCancellationSignal.cancel();
+            mPending.remove(this);
+        }
+
+        @Override
+        public void run() {
+            if (mCancellationSignal.isCanceled()) {
+                return;
+            }
+            Bitmap bitmap = getCached(mUrl);
+            if (bitmap == null) {
+                bitmap = fetchAndDecode();
+                if (bitmap == null) {
+                    return;
+                }
+                // Marked as displayed before it enters the cache, so it can't be reused
+                // before it reaches the view
+                retain(bitmap);
+                mMemoryCache.put(mUrl, bitmap);
+            }
+            final Bitmap loaded = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancellationSignal.isCanceled()) {
+                        release(loaded);
+                    } else {
+                        mTarget.onThumbnailLoaded(loaded);
+                    }
+                }
+            });
+        }
+
+        private Bitmap fetchAndDecode() {
+            try {
+                byte[] bytes = mDiskCache.get(mUrl);
+                if (bytes == null) {
+                    if (!mDownloadsAllowed) {
+                        return null;
+                    }
+                    bytes = download(mUrl, mCancellationSignal);
+                    if (bytes == null) {
+                        return null;
+                    }
+                    mDiskCache.put(mUrl, bytes);
+                }
+                if (mCancellationSignal.isCanceled()) {
+                    return null;
+                }
+                return decode(bytes, mWidth, mHeight);
+            } catch (IOException e) {
+                if (!mCancellationSignal.isCanceled()) {
+                    Log.w(LOG_TAG, "Problem loading thumbnail " + mUrl, e);
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Rows away from the visible ones, 0 for a visible row
+         */
+        private int distance() {
+            if (mPosition < mFirstVisible) {
+                return mFirstVisible - mPosition;
+            }
+            return mPosition > mLastVisible ? mPosition - mLastVisible : 0;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int diff = distance() - other.distance();
+            if (diff != 0) {
+                return diff;
+            }
+            // Oldest request first
+            return mSequence < other.mSequence ? -1 : (mSequence > other.mSequence ? 1 : 0);
+        }
+    }
+}
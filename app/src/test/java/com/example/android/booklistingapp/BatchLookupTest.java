@@ -0,0 +1,233 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link BatchLookup}, against a local stand-in for the Books API that answers
+ * every query after a fixed delay.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BatchLookupTest {
+
+    private static final long SERVER_DELAY_MILLIS = 20;
+    private static final String NO_MATCH = "no match";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        QueryUtils.setResponseCache(null);
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(SERVER_DELAY_MILLIS);
+                    String rawQuery = exchange.getRequestURI().getRawQuery();
+                    String query = URLDecoder.decode(rawQuery.substring(2), "UTF-8");
+                    String body = query.equals(NO_MATCH) ? "{\"totalItems\":0}"
+                            : "{\"items\":[{\"id\":\"" + query.hashCode()
+                            + "\",\"volumeInfo\":{\"title\":\"" + query + "\"}}]}";
+                    byte[] bytes = body.getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes);
+                    out.close();
+                } catch (InterruptedException e) {
+                    // The server is stopping
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void pipeline_boundsConcurrencyAndBeatsSequentialLookups() throws Exception {
+        List<String> queries = queries(80);
+
+        long sequentialNanos = timeLookup(queries, 1);
+        maxInFlight.set(0);
+        long pipelinedNanos = timeLookup(queries, 8);
+
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() <= 8);
+        assertTrue(pipelinedNanos * 3 < sequentialNanos);
+    }
+
+    @Test
+    public void results_areJournaledInQueryOrder() throws Exception {
+        List<String> queries = Arrays.asList("Dune", NO_MATCH, "Emma");
+        BatchJournal journal = BatchJournal.create(folder.getRoot(), queries);
+
+        assertEquals(0, newLookup(journal, 2, new RateLimiter(1000, 10)).run(null, null));
+
+        Map<Integer, Book> results =
+                BatchJournal.open(folder.getRoot(), journal.getId()).getResults();
+        assertEquals(3, results.size());
+        assertEquals("Dune", results.get(0).getTitle());
+        assertNull(results.get(1));
+        assertEquals("Emma", results.get(2).getTitle());
+    }
+
+    @Test
+    public void rateLimiter_spacesRequestsToAHost() throws Exception {
+        List<String> queries = queries(15);
+        BatchJournal journal = BatchJournal.create(folder.getRoot(), queries);
+
+        long start = System.nanoTime();
+        // A burst of 5, then 20 per second: the other 10 take at least half a second
+        newLookup(journal, 8, new RateLimiter(20, 5)).run(null, null);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("took " + millis + " ms", millis >= 450);
+        assertEquals(15, requests.get());
+    }
+
+    @Test
+    public void cancelledBatch_resumesWithTheRemainingQueries() throws Exception {
+        List<String> queries = queries(40);
+        BatchJournal journal = BatchJournal.create(folder.getRoot(), queries);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final AtomicInteger resolved = new AtomicInteger();
+        try {
+            newLookup(journal, 2, new RateLimiter(1000, 10)).run(new BatchLookup.Listener() {
+                @Override
+                public void onQueryResolved(int index, Book book) {
+                    if (resolved.incrementAndGet() == 10) {
+                        cancellationSignal.cancel();
+                    }
+                }
+            }, cancellationSignal);
+            fail("Expected the batch to be cancelled");
+        } catch (OperationCanceledException expected) {
+            // Stopped after about 10 queries
+        }
+        int resolvedBefore = journal.getResolvedCount();
+        assertTrue(resolvedBefore >= 10 && resolvedBefore < queries.size());
+
+        // Same queries, same batch
+        BatchJournal resumed = BatchJournal.create(folder.getRoot(), queries);
+        assertEquals(journal.getId(), resumed.getId());
+        assertEquals(resolvedBefore, resumed.getResolvedCount());
+        final AtomicInteger resolvedAfter = new AtomicInteger();
+        newLookup(resumed, 2, new RateLimiter(1000, 10)).run(new BatchLookup.Listener() {
+            @Override
+            public void onQueryResolved(int index, Book book) {
+                resolvedAfter.incrementAndGet();
+            }
+        }, null);
+
+        assertEquals(queries.size() - resolvedBefore, resolvedAfter.get());
+        assertEquals(queries.size(), resumed.getResolvedCount());
+    }
+
+    @Test
+    public void queries_areReadFromLinesAndIsbnsRecognized() throws Exception {
+        List<String> queries = BatchLookup.readQueries(new StringReader(
+                "# library import\n978-0-441-01359-3\n\n  Emma  \n0441013597\n"), false);
+        assertEquals(Arrays.asList("978-0-441-01359-3", "Emma", "0441013597"), queries);
+        assertEquals("isbn:9780441013593", BatchLookup.toSearchQuery(queries.get(0)));
+        assertEquals("Emma", BatchLookup.toSearchQuery(queries.get(1)));
+        assertEquals("isbn:0441013597", BatchLookup.toSearchQuery(queries.get(2)));
+
+        List<String> csv = BatchLookup.readQueries(new StringReader(
+                "\"Dune\",Herbert\nEmma,Austen\n"), true);
+        assertEquals(Arrays.asList("Dune", "Emma"), csv);
+    }
+
+    private long timeLookup(List<String> queries, int concurrency) throws IOException {
+        BatchJournal journal = BatchJournal.create(folder.newFolder(), queries);
+        long start = System.nanoTime();
+        assertEquals(0, newLookup(journal, concurrency, new RateLimiter(1000, 100))
+                .run(new BatchLookup.Listener() {
+                    @Override
+                    public void onQueryResolved(int index, Book book) {
+                        inFlight.decrementAndGet();
+                    }
+                }, null));
+        long nanos = System.nanoTime() - start;
+        assertEquals(queries.size(), journal.getResolvedCount());
+        return nanos;
+    }
+
+    private BatchLookup newLookup(BatchJournal journal, int concurrency,
+                                  RateLimiter rateLimiter) {
+        return new BatchLookup(journal, executor, concurrency, rateLimiter,
+                new BatchLookup.UrlFactory() {
+                    @Override
+                    public String urlFor(String query) {
+                        // Lookups in flight; hedged requests may add more requests than that
+                        int now = inFlight.incrementAndGet();
+                        synchronized (maxInFlight) {
+                            maxInFlight.set(Math.max(maxInFlight.get(), now));
+                        }
+                        try {
+                            return "http://127.0.0.1:" + server.getAddress().getPort()
+                                    + "/books/v1/volumes?q=" + URLEncoder.encode(query, "UTF-8");
+                        } catch (UnsupportedEncodingException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                });
+    }
+
+    private static List<String> queries(int count) {
+        List<String> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queries.add("Book " + i);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.android.booklistingapp;
+
+import android.os.Bundle;
+import android.view.View;
+import android.widget.EditText;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BookActivity} across configuration changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BookActivityTest {
+
+    // The search fails or succeeds depending on the network, either way well before this
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void rotation_searchInFlightFinishesInTheNewActivity() throws Exception {
+        ActivityController<BookActivity> first =
+                Robolectric.buildActivity(BookActivity.class).setup();
+        // Results posted to the main thread wait for the test thread to run them
+        ShadowLooper.pauseMainLooper();
+        ((EditText) first.get().findViewById(R.id.text)).setText("dune");
+        first.get().findViewById(R.id.btn_search).performClick();
+        View firstProgressBar = first.get().findViewById(R.id.progress_bar);
+        assertEquals(View.VISIBLE, firstProgressBar.getVisibility());
+
+        ActivityController<BookActivity> second = rotate(first);
+
+        View progressBar = second.get().findViewById(R.id.progress_bar);
+        assertEquals(View.VISIBLE, progressBar.getVisibility());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (progressBar.getVisibility() == View.VISIBLE) {
+            assertTrue("The search didn't finish in the new activity",
+                    System.currentTimeMillis() < deadline);
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(10);
+        }
+        // The destroyed activity didn't get the results
+        assertEquals(View.VISIBLE, firstProgressBar.getVisibility());
+    }
+
+    /**
+     * Recreate the activity like a rotation does, handing the loaders to the new instance
+     */
+    private static ActivityController<BookActivity> rotate(
+            ActivityController<BookActivity> controller) {
+        Bundle state = new Bundle();
+        controller.saveInstanceState(state).pause().stop();
+        Object retained = controller.get().onRetainNonConfigurationInstance();
+        controller.destroy();
+        ActivityController<BookActivity> recreated =
+                Robolectric.buildActivity(BookActivity.class);
+        Shadows.shadowOf(recreated.get()).setLastNonConfigurationInstance(retained);
+        return recreated.create(state).start().restoreInstanceState(state).postCreate(state)
+                .resume().visible();
+    }
+}
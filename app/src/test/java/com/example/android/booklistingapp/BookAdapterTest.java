@@ -0,0 +1,44 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link BookAdapter}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BookAdapterTest {
+
+    @Test
+    public void pages_leaveOutBooksAlreadyLoaded() {
+        BookList books = new BookList();
+        BookAdapter adapter = new BookAdapter(RuntimeEnvironment.application, books);
+
+        assertEquals(2, adapter.appendPage(Arrays.asList(book("a"), book("b"))));
+        // Windows of the API's startIndex overlap, and a page may repeat a book itself
+        assertEquals(1, adapter.appendPage(Arrays.asList(book("b"), book("c"), book("c"))));
+        // Books without a volume id are told apart by their info link
+        assertEquals(1, adapter.prependPage(Arrays.asList(
+                new Book(null, "Emma", "Jane Austen", "https://example.com/emma"), book("a"))));
+
+        assertEquals(4, books.size());
+        assertNull(books.getId(0));
+        assertEquals("a", books.getId(1));
+        assertEquals("b", books.getId(2));
+        assertEquals("c", books.getId(3));
+        assertEquals(4, adapter.getItemCount());
+    }
+
+    private static Book book(String id) {
+        return new Book(id, "Title " + id, "Author", "https://example.com/" + id);
+    }
+}
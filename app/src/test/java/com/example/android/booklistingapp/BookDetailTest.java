@@ -0,0 +1,81 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for parsing and requesting a {@link BookDetail}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BookDetailTest {
+
+    @Test
+    public void readBookDetail_readsTheVolumeResource() throws IOException {
+        BookDetail detail = QueryUtils.readBookDetail(json("{\"kind\":\"books#volume\","
+                + "\"id\":\"zyTCAlFPjgYC\",\"volumeInfo\":{\"title\":\"The Google story\","
+                + "\"subtitle\":null,\"authors\":[\"David A. Vise\",\"Mark Malseed\"],"
+                + "\"publisher\":\"Random House\",\"publishedDate\":\"2005-11-15\","
+                + "\"description\":\"<p>Here is the story <i>behind</i> Google.</p>\","
+                + "\"pageCount\":207,\"categories\":[\"Browsers\",\"Internet\"],"
+                + "\"imageLinks\":{\"thumbnail\":\"http://books.google.com/t.jpg\"},"
+                + "\"infoLink\":\"https://books.google.com/books?id=zyTCAlFPjgYC&hl=en\"}}"),
+                null);
+
+        assertEquals("zyTCAlFPjgYC", detail.getId());
+        assertEquals("The Google story", detail.getTitle());
+        assertNull(detail.getSubtitle());
+        assertEquals("David A. Vise, Mark Malseed", detail.getAuthors());
+        assertEquals("Random House", detail.getPublisher());
+        assertEquals("2005-11-15", detail.getPublishedDate());
+        assertEquals("<p>Here is the story <i>behind</i> Google.</p>", detail.getDescription());
+        assertEquals(207, detail.getPageCount());
+        assertEquals("Browsers, Internet", detail.getCategories());
+        assertEquals("https://books.google.com/t.jpg", detail.getThumbnailUrl());
+        assertEquals("https://books.google.com/books?id=zyTCAlFPjgYC&hl=en",
+                detail.getInfoLink());
+    }
+
+    @Test
+    public void readBookDetail_idAfterVolumeInfoAndMissingFields() throws IOException {
+        BookDetail detail = QueryUtils.readBookDetail(
+                json("{\"volumeInfo\":{\"title\":\"Dune\"},\"id\":\"B1hSG45JCX4C\"}"), null);
+
+        assertEquals("B1hSG45JCX4C", detail.getId());
+        assertEquals("Unknown", detail.getAuthors());
+        assertEquals(0, detail.getPageCount());
+        assertNull(detail.getDescription());
+        // Built from the id, like for search results
+        assertEquals("https://books.google.com/books?id=B1hSG45JCX4C", detail.getInfoLink());
+    }
+
+    @Test
+    public void readBookDetail_withoutTitle_returnsNull() throws IOException {
+        assertNull(QueryUtils.readBookDetail(
+                json("{\"id\":\"x\",\"volumeInfo\":{\"authors\":[\"A\"]}}"), null));
+        assertNull(QueryUtils.readBookDetail(json("{\"id\":\"x\"}"), null));
+    }
+
+    @Test
+    public void volumeUrl_asksForTheDetailFieldsOnly() {
+        String url = BookUrlBuilder.volumeUrl("zyTCAlFPjgYC");
+
+        assertTrue(url, url.startsWith(
+                BookUrlBuilder.GOOGLE_APIS_ROOT_URL + "books/v1/volumes/zyTCAlFPjgYC?fields="));
+        assertTrue(url, url.contains("description"));
+    }
+
+    private static InputStream json(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link BookPager}.
+ */
+public class BookPagerTest {
+
+    @Test
+    public void pager_keepsThePageSizeOfTheSearch() {
+        BookPager pager = new BookPager();
+        pager.reset("dune", 10);
+        pager.setPrefetchDistance(5);
+        pager.onPagesAppended(1, 10);
+
+        // Near the end of the 10 loaded rows: the next page starts at 10
+        assertEquals(10, pager.pageToLoad(2, 4, 10));
+        assertEquals(-1, pager.pageToLoad(0, 4, 10));
+        pager.reset("emma");
+        assertEquals(10, pager.getPageSize());
+    }
+
+    @Test
+    public void pager_pageOfLoadedBooksDoesNotEndTheResults() {
+        BookPager pager = new BookPager();
+        pager.reset("dune", 10);
+        pager.setPrefetchDistance(5);
+        pager.onPagesAppended(1, 10);
+
+        // Every book of the second page was on the first one already
+        pager.onPageRequested(10);
+        pager.onPageAppended(10, 0);
+        assertEquals(20, pager.pageToLoad(2, 4, 10));
+        pager.onPageRequested(20);
+        pager.onPageAppended(0, 0);
+        assertEquals(-1, pager.pageToLoad(2, 4, 10));
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BookRefiner}.
+ */
+public class BookRefinerTest {
+
+    @Test
+    public void filter_ignoresCaseAndAccents() {
+        BookList books = books(
+                new Book("1", "Les Misérables", "Victor Hugo", "u1"),
+                new Book("2", "Emma", "Jane Austen", "u2"),
+                new Book("3", "Persuasion", "Jane Austen", "u3"));
+
+        assertArrayEquals(new int[]{0}, new BookRefiner("MISERABLES", 0).apply(books));
+        assertArrayEquals(new int[]{1, 2}, new BookRefiner(" austen ", 0).apply(books));
+        // Every word must match, in the title or the authors
+        assertArrayEquals(new int[]{1}, new BookRefiner("emma jane", 0).apply(books));
+        assertArrayEquals(new int[0], new BookRefiner("emmajane", 0).apply(books));
+        assertTrue(new BookRefiner("  ", BookRefiner.SORT_RELEVANCE).isIdentity());
+    }
+
+    @Test
+    public void sort_usesCollationOrder() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.ENGLISH);
+        try {
+            BookList books = books(
+                    new Book("1", "zebra", "B", "u1"),
+                    new Book("2", "Émile", "C", "u2"),
+                    new Book("3", "apple", "C", "u3"),
+                    new Book("4", "Eagle", "A", "u4"));
+
+            // Accented and capital letters sort with their base letter
+            assertArrayEquals(new int[]{2, 3, 1, 0},
+                    new BookRefiner(null, BookRefiner.SORT_TITLE).apply(books));
+            assertArrayEquals(new int[]{3, 0, 2, 1},
+                    new BookRefiner(null, BookRefiner.SORT_AUTHOR).apply(books));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void refine_thousandsOfBooksWithinAFrame() {
+        BookList books = new BookList();
+        for (int i = 0; i < 5000; i++) {
+            books.add(new Book("id" + i, "Title " + Integer.toHexString(i * 7919),
+                    "Author " + (i % 97), "u" + i));
+        }
+        BookRefiner refiner = new BookRefiner("title f", BookRefiner.SORT_TITLE);
+        // Warm up the JIT, then take the best of a few runs
+        for (int i = 0; i < 20; i++) {
+            refiner.apply(books);
+        }
+        long bestNanos = Long.MAX_VALUE;
+        int[] rows = null;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            rows = refiner.apply(books);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+
+        assertTrue(rows.length > 0 && rows.length < books.size());
+        assertTrue(bestNanos < 16000000);
+        for (int i = 1; i < rows.length; i++) {
+            assertTrue(BookRefiner.compareKeys(books.getTitleKey(rows[i - 1]),
+                    books.getTitleKey(rows[i])) <= 0);
+        }
+        assertEquals(books.getTitle(rows[0]), books.get(rows[0]).getTitle());
+    }
+
+    private static BookList books(Book... books) {
+        BookList list = new BookList();
+        for (Book book : books) {
+            list.add(book);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.booklistingapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BookResponseCache}, run against a local stand-in HTTP server.
+ */
+public class BookResponseCacheTest {
+
+    private static final String BODY = "{\"items\":[{\"volumeInfo\":{\"title\":\"Dune\"}}]}";
+    private static final String ETAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger bodyRequests = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private volatile String cacheControl = "private, max-age=0";
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    bodyRequests.incrementAndGet();
+                    byte[] body = (BODY + exchange.getRequestURI().getQuery()).getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void freshEntry_isServedWithoutNetwork() throws Exception {
+        BookResponseCache cache = newCache(1024 * 1024, 60 * 1000);
+        URL url = url("q=dune");
+
+        assertEquals(BODY + "q=dune", fetch(cache, url));
+        assertEquals(BODY + "q=dune", fetch(cache, url));
+
+        assertEquals(1, bodyRequests.get());
+        assertEquals(0, notModifiedResponses.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals((BODY + "q=dune").length(), cache.getBytesSaved());
+    }
+
+    @Test
+    public void staleEntry_isRevalidatedWithEtag() throws Exception {
+        BookResponseCache cache = newCache(1024 * 1024, 0);
+        URL url = url("q=dune");
+
+        assertEquals(BODY + "q=dune", fetch(cache, url));
+        assertEquals(BODY + "q=dune", fetch(cache, url));
+
+        assertEquals(1, bodyRequests.get());
+        assertEquals(1, notModifiedResponses.get());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getConditionalHitCount());
+    }
+
+    @Test
+    public void staleEntry_isServedWhenTheNetworkFails() throws Exception {
+        BookResponseCache cache = newCache(1024 * 1024, 0);
+        URL url = url("q=dune");
+
+        assertEquals(BODY + "q=dune", fetch(cache, url));
+        server.stop(0);
+
+        assertEquals(BODY + "q=dune", fetch(cache, url, 60 * 1000));
+        assertEquals(1, cache.getStaleHitCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void staleEntry_isNotServedUnlessAskedFor() throws Exception {
+        BookResponseCache cache = newCache(1024 * 1024, 0);
+        URL url = url("q=dune");
+
+        fetch(cache, url);
+        server.stop(0);
+
+        fetch(cache, url);
+    }
+
+    @Test
+    public void entries_surviveCacheReopen() throws Exception {
+        URL url = url("q=dune");
+        fetch(newCache(1024 * 1024, 60 * 1000), url);
+
+        BookResponseCache reopened = newCache(1024 * 1024, 60 * 1000);
+        assertEquals(BODY + "q=dune", fetch(reopened, url));
+        assertEquals(1, reopened.getHitCount());
+        assertEquals(1, bodyRequests.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntries_areEvictedOverBudget() throws Exception {
+        BookResponseCache probe = newCache(1024 * 1024, 60 * 1000);
+        fetch(probe, url("q=probe"));
+        long entrySize = probe.size();
+        probe.evictAll();
+
+        // Room for two entries only
+        BookResponseCache cache = newCache(entrySize * 2 + entrySize / 2, 60 * 1000);
+        fetch(cache, url("q=aaaaa"));
+        fetch(cache, url("q=bbbbb"));
+        // Touch the first entry so the second one is the least recently used
+        fetch(cache, url("q=aaaaa"));
+        fetch(cache, url("q=ccccc"));
+        assertTrue(cache.size() <= entrySize * 2 + entrySize / 2);
+
+        int before = bodyRequests.get();
+        fetch(cache, url("q=aaaaa"));
+        assertEquals(before, bodyRequests.get());
+        fetch(cache, url("q=bbbbb"));
+        assertEquals(before + 1, bodyRequests.get());
+    }
+
+    @Test
+    public void noStoreResponses_areNotCached() throws Exception {
+        cacheControl = "no-store";
+        BookResponseCache cache = newCache(1024 * 1024, 60 * 1000);
+        URL url = url("q=dune");
+
+        fetch(cache, url);
+        fetch(cache, url);
+
+        assertEquals(2, bodyRequests.get());
+        assertEquals(0, cache.size());
+    }
+
+    private BookResponseCache newCache(long maxBytes, long freshnessMillis) throws IOException {
+        return new BookResponseCache(new java.io.File(folder.getRoot(), "cache"),
+                maxBytes, freshnessMillis);
+    }
+
+    private URL url(String query) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort()
+                + "/books/v1/volumes?" + query);
+    }
+
+    private static String fetch(BookResponseCache cache, URL url) throws IOException {
+        return fetch(cache, url, 0);
+    }
+
+    private static String fetch(BookResponseCache cache, URL url, long maxStaleMillis)
+            throws IOException {
+        BookResponseCache.Response response = cache.get(url, 1000, 1000, maxStaleMillis, null);
+        try {
+            assertEquals(200, response.getResponseCode());
+            InputStream body = response.getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            response.commit();
+            return out.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
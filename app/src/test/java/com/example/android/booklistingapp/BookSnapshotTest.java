@@ -0,0 +1,154 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BookSnapshot}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BookSnapshotTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void snapshot_restoresBooksPagerAndPosition() throws IOException {
+        BookPager pager = new BookPager();
+        pager.reset("dune");
+        pager.onPagesAppended(3, 120);
+        BookList books = books(120);
+        File file = new File(folder.getRoot(), "snapshot.bin");
+        new BookSnapshot(pager, books, 42, -17).write(file);
+
+        BookSnapshot snapshot = BookSnapshot.read(file);
+
+        assertNotNull(snapshot);
+        assertEquals("dune", snapshot.getQuery());
+        assertEquals(42, snapshot.getPosition());
+        assertEquals(-17, snapshot.getOffset());
+        BookList restored = snapshot.getBooks();
+        assertEquals(120, restored.size());
+        for (int i = 0; i < restored.size(); i++) {
+            assertEquals(books.getId(i), restored.getId(i));
+            assertEquals(books.getTitle(i), restored.getTitle(i));
+            assertEquals(books.getAuthor(i), restored.getAuthor(i));
+            assertEquals(books.getUrl(i), restored.getUrl(i));
+            assertEquals(books.getThumbnailUrl(i), restored.getThumbnailUrl(i));
+            assertArrayEquals(books.getTitleKey(i), restored.getTitleKey(i));
+            assertEquals(books.getSearchText(i), restored.getSearchText(i));
+        }
+        BookPager restoredPager = new BookPager();
+        snapshot.restorePager(restoredPager);
+        assertEquals("dune", restoredPager.getQuery());
+        assertEquals(3, restoredPager.getLoadedPageCount());
+    }
+
+    @Test
+    public void damagedSnapshot_isIgnored() throws IOException {
+        BookPager pager = new BookPager();
+        pager.reset("dune");
+        byte[] bytes = new BookSnapshot(pager, books(10), 0, 0).toByteArray();
+
+        assertNull(BookSnapshot.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1))));
+        byte[] otherVersion = bytes.clone();
+        otherVersion[7]++;
+        assertNull(BookSnapshot.read(ByteBuffer.wrap(otherVersion)));
+        byte[] badLength = bytes.clone();
+        // The length of the query string
+        badLength[12] = 0x7f;
+        assertNull(BookSnapshot.read(ByteBuffer.wrap(badLength)));
+        assertNull(BookSnapshot.read(new File(folder.getRoot(), "missing.bin")));
+    }
+
+    @Test
+    public void collationKeys_areComputedAgainInAnotherLocale() throws IOException {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.ENGLISH);
+            BookList books = new BookList();
+            books.add(new Book("1", "Ähnlichkeit", "A", "u1"));
+            byte[] bytes = new BookSnapshot(new BookPager(), books, 0, 0).toByteArray();
+
+            Locale.setDefault(new Locale("sv", "SE"));
+            BookList restored = BookSnapshot.read(ByteBuffer.wrap(bytes)).getBooks();
+
+            assertArrayEquals(BookRefiner.collationKey("Ähnlichkeit"), restored.getTitleKey(0));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void snapshot_readsFasterThanParsingTheResponse() throws IOException {
+        BookList books = books(400);
+        byte[] snapshotBytes = new BookSnapshot(new BookPager(), books, 0, 0).toByteArray();
+        byte[] json = json(books).getBytes("UTF-8");
+
+        long snapshotNanos = Long.MAX_VALUE;
+        long jsonNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 30; i++) {
+            long start = System.nanoTime();
+            BookSnapshot.read(ByteBuffer.wrap(snapshotBytes));
+            snapshotNanos = Math.min(snapshotNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            List<Book> parsed = QueryUtils.readBooksFromStream(new ByteArrayInputStream(json));
+            jsonNanos = Math.min(jsonNanos, System.nanoTime() - start);
+            assertEquals(400, parsed.size());
+        }
+
+        assertTrue("snapshot " + snapshotNanos + " ns, JSON " + jsonNanos + " ns",
+                snapshotNanos < jsonNanos);
+    }
+
+    private static BookList books(int count) {
+        BookList books = new BookList();
+        for (int i = 0; i < count; i++) {
+            books.add(new Book("id" + i, "Title " + i, i % 3 == 0 ? null : "Author " + (i % 7),
+                    "https://books.google.com/books?id=id" + i,
+                    i % 2 == 0 ? "https://books.google.com/thumb?id=id" + i : null));
+        }
+        return books;
+    }
+
+    private static String json(BookList books) {
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < books.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(books.getId(i))
+                    .append("\",\"volumeInfo\":{\"title\":\"").append(books.getTitle(i))
+                    .append('"');
+            if (books.getAuthor(i) != null) {
+                json.append(",\"authors\":[\"").append(books.getAuthor(i)).append("\"]");
+            }
+            json.append(",\"infoLink\":\"").append(books.getUrl(i)).append('"');
+            if (books.getThumbnailUrl(i) != null) {
+                json.append(",\"imageLinks\":{\"smallThumbnail\":\"")
+                        .append(books.getThumbnailUrl(i)).append("\"}");
+            }
+            json.append("}}");
+        }
+        return json.append("]}").toString();
+    }
+}
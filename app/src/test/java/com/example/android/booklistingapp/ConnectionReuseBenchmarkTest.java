@@ -0,0 +1,192 @@
+package com.example.android.booklistingapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a new connection per request with the pooled, gzip compressed connections of
+ * {@link BookHttpClient}, against a local TLS stand-in for the Books API.
+ * <p>
+ * Results are written to build/benchmark/connections.json (or "benchmark.output"). The
+ * timings need the "sun.net.httpserver.nodelay" system property set by the build.
+ */
+public class ConnectionReuseBenchmarkTest {
+
+    private static final char[] KEYSTORE_PASSWORD = "stand-in".toCharArray();
+
+    private HttpsServer server;
+    private SSLSocketFactory defaultSocketFactory;
+    private byte[] response;
+    private byte[] compressedResponse;
+    /**
+     * Client ports seen by the server, one for every connection
+     */
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        response = ProjectionBenchmarkTest.fixture("volumes_projected_40.json");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(response);
+        gzip.close();
+        compressedResponse = compressed.toByteArray();
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(
+                ProjectionBenchmarkTest.fixture("tls_stand_in.p12")), KEYSTORE_PASSWORD);
+        KeyManagerFactory keyManagers =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] body = response;
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    body = compressedResponse;
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+                bytesSent.addAndGet(body.length);
+            }
+        });
+        server.start();
+
+        defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+    }
+
+    @After
+    public void tearDown() {
+        HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory);
+        server.stop(0);
+    }
+
+    @Test
+    public void pooledConnections_skipTheHandshake() throws Exception {
+        final URL url = new URL("https://127.0.0.1:" + server.getAddress().getPort()
+                + "/books/v1/volumes?q=dune");
+        PipelineBenchmark benchmark = new PipelineBenchmark();
+
+        int connectionsBefore = clientPorts.size();
+        long bytesBefore = bytesSent.get();
+        PipelineBenchmark.Result fresh = benchmark.measure("https_new_connection",
+                response.length, new PipelineBenchmark.Operation() {
+                    @Override
+                    public int run() throws Exception {
+                        return fetchWithNewConnection(url);
+                    }
+                });
+        int freshConnections = clientPorts.size() - connectionsBefore;
+        long freshBytes = bytesSent.get() - bytesBefore;
+
+        connectionsBefore = clientPorts.size();
+        bytesBefore = bytesSent.get();
+        PipelineBenchmark.Result pooled = benchmark.measure("https_pooled_gzip",
+                response.length, new PipelineBenchmark.Operation() {
+                    @Override
+                    public int run() throws Exception {
+                        return fetchWithPooledConnection(url);
+                    }
+                });
+        int pooledConnections = clientPorts.size() - connectionsBefore;
+        long pooledBytes = bytesSent.get() - bytesBefore;
+
+        benchmark.writeJson(new File(System.getProperty("benchmark.output", "build/benchmark"),
+                "connections.json"));
+        System.out.println("benchmark connections: new " + freshConnections + ", pooled "
+                + pooledConnections + "; bytes sent: new " + freshBytes + ", pooled "
+                + pooledBytes);
+
+        // Warmup runs are included in the counts
+        assertTrue("new connections: " + freshConnections, freshConnections > fresh.iterations);
+        // One handshake, then every request reuses the socket
+        assertTrue("pooled connections: " + pooledConnections, pooledConnections <= 1);
+        assertTrue(pooledBytes < freshBytes / 2);
+        assertTrue(pooled + " vs " + fresh, pooled.p50Millis < fresh.p50Millis);
+    }
+
+    /**
+     * The old request: a new connection that is disconnected afterwards. Unlike Android's,
+     * the JVM's disconnect() keeps a fully read connection pooled, so close it explicitly.
+     */
+    private int fetchWithNewConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestProperty("Connection", "close");
+        try {
+            assertEquals(200, urlConnection.getResponseCode());
+            assertArrayEquals(response, ThumbnailDiskCache.readFully(
+                    urlConnection.getInputStream()));
+        } finally {
+            urlConnection.disconnect();
+        }
+        return 1;
+    }
+
+    private int fetchWithPooledConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = BookHttpClient.open(url, 15000, 10000);
+        InputStream body = null;
+        try {
+            assertEquals(200, urlConnection.getResponseCode());
+            body = BookHttpClient.getBody(urlConnection);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            assertArrayEquals(response, out.toByteArray());
+        } finally {
+            BookHttpClient.release(urlConnection, body);
+        }
+        return 1;
+    }
+}
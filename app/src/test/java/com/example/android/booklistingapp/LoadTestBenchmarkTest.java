@@ -0,0 +1,458 @@
+package com.example.android.booklistingapp;
+
+import android.content.Context;
+import android.support.v4.content.Loader;
+import android.widget.FrameLayout;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Load tests of the whole search path: {@link BookLoader}s fetch pages from a local stand-in
+ * for the Books API that answers after a latency and at a limited bandwidth, and their
+ * partial and final results are shown by a {@link BookAdapter}, as the activity does.
+ * <p>
+ * The test thread plays the main thread, running its queued tasks while it waits. The
+ * workloads are scripted after what users do: searches one after another, typing that
+ * supersedes searches before they finish, rotations in the middle of a load and several pages
+ * loading at once. The link is set with the "loadtest.latency" (milliseconds) and
+ * "loadtest.bandwidth" (bytes per second) system properties.
+ * <p>
+ * Results are written to build/benchmark/loadtest.json (or "benchmark.output"). When
+ * "loadtest.baseline" names an earlier results file, a p99 latency, allocation or peak heap
+ * more than "benchmark.tolerance" times (default 1.5) the baseline fails the test. Run with
+ * {@code ./gradlew benchmark} for stable numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LoadTestBenchmarkTest {
+
+    private static final long DEFAULT_LATENCY_MILLIS = 25;
+    private static final long DEFAULT_BYTES_PER_SECOND = 500000;
+    // Results of every query; enough for the pages the workloads load
+    private static final int TOTAL_ITEMS = 400;
+    // Rows on screen, bound whenever the results change
+    private static final int VISIBLE_ROWS = 10;
+    // Queries typed in a burst, and the time between them
+    private static final int TYPED_QUERIES = 5;
+    private static final long KEYSTROKE_MILLIS = 30;
+    // Pages loading at once, after the first ones
+    private static final int CONCURRENT_PAGES = 4;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static final double DEFAULT_TOLERANCE = 1.5;
+
+    private Context context;
+    private LoadTestServer server;
+    private long latencyMillis;
+    private int pageSize;
+    private int initialPages;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        // Measure the network path, not the caches
+        QueryUtils.setResponseCache(null);
+        BookResultCache.getInstance().clear();
+        ThumbnailLoader.getInstance(context).setDownloadsAllowed(false);
+        // Tasks posted to the main thread wait for the test thread to run them
+        ShadowLooper.pauseMainLooper();
+
+        NetworkMonitor.Policy policy =
+                NetworkMonitor.getPolicy(NetworkMonitor.CLASS_UNMETERED);
+        pageSize = policy.getPageSize();
+        initialPages = policy.getInitialPages();
+        server = new LoadTestServer(ProjectionBenchmarkTest.fixture("volumes_projected_40.json"),
+                TOTAL_ITEMS);
+        latencyMillis = Long.getLong("loadtest.latency", DEFAULT_LATENCY_MILLIS);
+        server.setLatencyMillis(latencyMillis);
+        server.setBytesPerSecond(Long.getLong("loadtest.bandwidth", DEFAULT_BYTES_PER_SECOND));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void loadTest() throws Exception {
+        LoadTestHarness harness = new LoadTestHarness(server);
+        final int searchBooks = initialPages * pageSize;
+
+        // New searches one after another, each replacing the results of the one before
+        final Screen searchScreen = new Screen();
+        harness.measure("search", new LoadTestHarness.Workload() {
+            @Override
+            public int run(int iteration, LoadTestHarness.Recorder recorder) {
+                Search search = new Search(searchUrls("search " + iteration),
+                        TaskScheduler.LANE_SEARCH, searchScreen, true);
+                awaitShown(search);
+                recorder.record(search.mStart);
+                search.destroy();
+                assertEquals(searchBooks, searchScreen.mAdapter.getItemCount());
+                return searchBooks;
+            }
+        });
+
+        // Typing: every keystroke starts a search and cancels the one before
+        final Screen typingScreen = new Screen();
+        harness.measure("rapid_search", new LoadTestHarness.Workload() {
+            @Override
+            public int run(int iteration, LoadTestHarness.Recorder recorder) {
+                List<Search> superseded = new ArrayList<>();
+                Search search = null;
+                String query = "typed " + iteration + " ";
+                for (int i = 0; i < TYPED_QUERIES; i++) {
+                    if (search != null) {
+                        search.cancel();
+                        superseded.add(search);
+                        runMainThreadFor(KEYSTROKE_MILLIS);
+                    }
+                    query += (char) ('a' + i);
+                    search = new Search(searchUrls(query), TaskScheduler.LANE_SEARCH,
+                            typingScreen, true);
+                }
+                awaitShown(search);
+                recorder.record(search.mStart);
+                for (Search cancelled : superseded) {
+                    // Every superseded load ends, cancelled or finished before it could be
+                    awaitStopped(cancelled);
+                    cancelled.destroy();
+                }
+                search.destroy();
+                return searchBooks;
+            }
+        });
+
+        // Rotation: the activity is recreated while the load runs and takes over its results
+        harness.measure("rotation", new LoadTestHarness.Workload() {
+            @Override
+            public int run(int iteration, LoadTestHarness.Recorder recorder) {
+                Screen before = new Screen();
+                Search search = new Search(searchUrls("rotated " + iteration),
+                        TaskScheduler.LANE_SEARCH, before, true);
+                runMainThreadFor(latencyMillis);
+                Screen after = new Screen();
+                search.rotate(after);
+                int deliveriesBefore = before.mDeliveries;
+                awaitShown(search);
+                recorder.record(search.mStart);
+                search.destroy();
+                // The old activity isn't updated any more
+                assertEquals(deliveriesBefore, before.mDeliveries);
+                assertEquals(searchBooks, after.mAdapter.getItemCount());
+                return searchBooks;
+            }
+        });
+
+        // Pages loading at once in the prefetch lane, added to the list in order
+        final Screen pagesScreen = new Screen();
+        harness.measure("concurrent_pages", new LoadTestHarness.Workload() {
+            @Override
+            public int run(int iteration, LoadTestHarness.Recorder recorder) {
+                pagesScreen.mAdapter.clear();
+                String query = "paged " + iteration;
+                Search[] pages = new Search[CONCURRENT_PAGES];
+                for (int i = 0; i < pages.length; i++) {
+                    String url = server.localUrl(new BookUrlBuilder(query)
+                            .startIndex((initialPages + i) * pageSize)
+                            .maxResults(pageSize)
+                            .build());
+                    pages[i] = new Search(new String[]{url}, TaskScheduler.LANE_PREFETCH,
+                            pagesScreen, false);
+                }
+                for (Search page : pages) {
+                    awaitLoaded(page);
+                    recorder.record(page.mStart);
+                    page.destroy();
+                }
+                assertEquals(CONCURRENT_PAGES * pageSize, pagesScreen.mAdapter.getItemCount());
+                return CONCURRENT_PAGES * pageSize;
+            }
+        });
+
+        File output = new File(System.getProperty("benchmark.output", "build/benchmark"),
+                "loadtest.json");
+        harness.writeJson(output);
+        assertEquals(4, harness.getResults().size());
+        for (LoadTestHarness.Result result : harness.getResults()) {
+            assertTrue(result.name, result.p99Millis >= result.p50Millis);
+            assertTrue(result.name, result.booksPerSecond > 0);
+        }
+
+        String baseline = System.getProperty("loadtest.baseline");
+        if (baseline != null) {
+            compareWithBaseline(harness.getResults(), new File(baseline));
+        }
+    }
+
+    /**
+     * Fail if a result regressed beyond the tolerance compared to the baseline file
+     */
+    private static void compareWithBaseline(List<LoadTestHarness.Result> results, File file)
+            throws Exception {
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance",
+                String.valueOf(DEFAULT_TOLERANCE)));
+        JSONArray baseline = new JSONObject(new String(Files.readAllBytes(file.toPath()),
+                "UTF-8")).getJSONArray("results");
+        StringBuilder regressions = new StringBuilder();
+        for (LoadTestHarness.Result result : results) {
+            for (int i = 0; i < baseline.length(); i++) {
+                JSONObject previous = baseline.getJSONObject(i);
+                if (!previous.getString("name").equals(result.name)) {
+                    continue;
+                }
+                double p99 = previous.getDouble("p99Millis");
+                long allocated = previous.getLong("allocatedBytesPerBook");
+                double peakHeap = previous.getDouble("peakHeapMegabytes");
+                if (result.p99Millis > p99 * tolerance) {
+                    regressions.append(String.format("%s p99 %.1f ms (baseline %.1f ms)\n",
+                            result.name, result.p99Millis, p99));
+                }
+                if (allocated > 0 && result.allocatedBytesPerBook > allocated * tolerance) {
+                    regressions.append(String.format("%s %d B/book (baseline %d B/book)\n",
+                            result.name, result.allocatedBytesPerBook, allocated));
+                }
+                if (result.peakHeapMegabytes > peakHeap * tolerance) {
+                    regressions.append(String.format("%s peak heap %.1f MB (baseline %.1f MB)\n",
+                            result.name, result.peakHeapMegabytes, peakHeap));
+                }
+            }
+        }
+        if (regressions.length() > 0) {
+            fail("Load test regressions:\n" + regressions);
+        }
+    }
+
+    /**
+     * URLs of the pages a search loads at first, as the activity builds them
+     */
+    private String[] searchUrls(String query) {
+        String[] urls = new String[initialPages];
+        for (int page = 0; page < initialPages; page++) {
+            urls[page] = server.localUrl(new BookUrlBuilder(query)
+                    .startIndex(page * pageSize)
+                    .maxResults(pageSize)
+                    .build());
+        }
+        return urls;
+    }
+
+    /**
+     * Run the main thread's tasks until the search's results are shown
+     */
+    private void awaitShown(final Search search) {
+        awaitOnMainThread(search, new Condition() {
+            @Override
+            public boolean isMet() {
+                return search.mFinished && search.mScreen.isShowing(search.mResults);
+            }
+        });
+    }
+
+    /**
+     * Run the main thread's tasks until the page's books are added to the list, after the
+     * pages requested before it
+     */
+    private void awaitLoaded(final Search search) {
+        awaitOnMainThread(search, new Condition() {
+            @Override
+            public boolean isMet() {
+                return search.append();
+            }
+        });
+    }
+
+    private void awaitStopped(final Search search) {
+        awaitOnMainThread(search, new Condition() {
+            @Override
+            public boolean isMet() {
+                return search.mCanceled || search.mFinished;
+            }
+        });
+    }
+
+    private void awaitOnMainThread(Search search, Condition condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            if (condition.isMet()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + search);
+            }
+            sleep(1);
+        }
+    }
+
+    /**
+     * Run the main thread's tasks for the given time
+     */
+    private static void runMainThreadFor(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            sleep(1);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * The list of an activity: an adapter and the rows on screen
+     */
+    private final class Screen {
+
+        private final BookAdapter mAdapter = new BookAdapter(context, new BookList());
+        private final BookAdapter.ViewHolder[] mRows = new BookAdapter.ViewHolder[VISIBLE_ROWS];
+        // Results delivered to the screen
+        private int mDeliveries;
+
+        Screen() {
+            FrameLayout parent = new FrameLayout(context);
+            for (int i = 0; i < mRows.length; i++) {
+                mRows[i] = mAdapter.onCreateViewHolder(parent, 0);
+            }
+        }
+
+        /**
+         * Bind the rows on screen, as the list does after results are delivered
+         */
+        void bind() {
+            mDeliveries++;
+            int count = Math.min(mRows.length, mAdapter.getItemCount());
+            for (int i = 0; i < count; i++) {
+                mAdapter.onBindViewHolder(mRows[i], i);
+            }
+        }
+
+        /**
+         * Whether the adapter shows the books, i.e. no replacement is pending
+         */
+        boolean isShowing(List<Book> books) {
+            BookList shown = mAdapter.getItems();
+            int size = books != null ? books.size() : 0;
+            return shown.size() == size && (size == 0
+                    || (books.get(0).getId().equals(shown.getId(0))
+                    && books.get(size - 1).getId().equals(shown.getId(size - 1))));
+        }
+    }
+
+    /**
+     * A running {@link BookLoader}, delivering to a screen like the activity's loader
+     * callbacks: progressive searches replace the results, pages are appended in order.
+     */
+    private final class Search implements Loader.OnLoadCompleteListener<List<Book>>,
+            Loader.OnLoadCanceledListener<List<Book>>, PartialResultPublisher.Callback {
+
+        private final BookLoader mLoader;
+        private final boolean mProgressive;
+        private final long mStart = System.nanoTime();
+        private Screen mScreen;
+        private List<Book> mResults;
+        private boolean mFinished;
+        private boolean mCanceled;
+        private boolean mAppended;
+
+        Search(String[] urls, int lane, Screen screen, boolean progressive) {
+            mScreen = screen;
+            mProgressive = progressive;
+            mLoader = new BookLoader(context, urls, lane);
+            mLoader.registerListener(0, this);
+            mLoader.registerOnLoadCanceledListener(this);
+            if (progressive) {
+                mLoader.setPartialResultsCallback(this);
+            }
+            mLoader.startLoading();
+        }
+
+        @Override
+        public void onPartialResults(List<Book> books) {
+            mScreen.mAdapter.replaceAll(books);
+            mScreen.bind();
+        }
+
+        @Override
+        public void onLoadComplete(Loader<List<Book>> loader, List<Book> books) {
+            mResults = books;
+            mFinished = true;
+            if (mProgressive) {
+                mScreen.mAdapter.replaceAll(books != null ? books : new ArrayList<Book>());
+                mScreen.bind();
+            }
+        }
+
+        @Override
+        public void onLoadCanceled(Loader<List<Book>> loader) {
+            mCanceled = true;
+        }
+
+        /**
+         * Append the loaded page to the list, if it is loaded. Returns whether it is appended.
+         */
+        boolean append() {
+            if (!mAppended && mFinished && mResults != null) {
+                mScreen.mAdapter.appendPage(mResults);
+                mScreen.bind();
+                mAppended = true;
+            }
+            return mAppended;
+        }
+
+        /**
+         * Hand the load over to another screen, as a recreated activity does
+         */
+        void rotate(Screen screen) {
+            mLoader.setPartialResultsCallback(null);
+            mScreen = screen;
+            mLoader.setPartialResultsCallback(this);
+        }
+
+        void cancel() {
+            mLoader.cancelLoad();
+        }
+
+        void destroy() {
+            mLoader.setPartialResultsCallback(null);
+            mLoader.unregisterListener(this);
+            mLoader.unregisterOnLoadCanceledListener(this);
+            mLoader.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "load of " + mLoader.getPageCount() + " pages started "
+                    + (System.nanoTime() - mStart) / 1000000 + " ms ago";
+        }
+    }
+}
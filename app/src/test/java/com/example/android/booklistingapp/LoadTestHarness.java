@@ -0,0 +1,313 @@
+package com.example.android.booklistingapp;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs scripted workloads against a {@link LoadTestServer} and reports latency percentiles,
+ * throughput, peak heap and allocation, as JSON.
+ * <p>
+ * Unlike {@link PipelineBenchmark}, the work of a workload is spread over the loader, fetch,
+ * scheduler and adapter threads, so allocation is summed over every thread except the
+ * server's, by a sampler that also tracks the heap in use. Iteration counts come from the
+ * "loadtest.warmup" and "loadtest.iterations" system properties, with small defaults so a
+ * regular test run stays fast.
+ */
+final class LoadTestHarness {
+
+    /**
+     * Scripted workload; records the latency of each operation it runs and returns the
+     * number of books it loaded
+     */
+    interface Workload {
+        int run(int iteration, Recorder recorder) throws Exception;
+    }
+
+    private static final int DEFAULT_WARMUP = 2;
+    private static final int DEFAULT_ITERATIONS = 10;
+
+    private final LoadTestServer mServer;
+    private final int mWarmup;
+    private final int mIterations;
+    private final List<Result> mResults = new ArrayList<>();
+
+    LoadTestHarness(LoadTestServer server) {
+        mServer = server;
+        mWarmup = Integer.getInteger("loadtest.warmup", DEFAULT_WARMUP);
+        mIterations = Integer.getInteger("loadtest.iterations", DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Run the workload after a warmup and measure it
+     */
+    Result measure(String name, Workload workload) throws Exception {
+        for (int i = 0; i < mWarmup; i++) {
+            workload.run(i, new Recorder());
+        }
+        Recorder recorder = new Recorder();
+        System.gc();
+        int requestsBefore = mServer.getRequestCount();
+        long collectionsBefore = collectionCount();
+        ResourceSampler sampler = new ResourceSampler();
+        sampler.start();
+        long books = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < mIterations; i++) {
+                books += workload.run(mWarmup + i, recorder);
+            }
+        } finally {
+            sampler.finish();
+        }
+        long totalNanos = System.nanoTime() - start;
+        long[] samples = recorder.getSamples();
+        Arrays.sort(samples);
+
+        Result result = new Result();
+        result.name = name;
+        result.iterations = mIterations;
+        result.operations = samples.length;
+        result.books = books;
+        result.p50Millis = percentile(samples, 50) / 1e6;
+        result.p90Millis = percentile(samples, 90) / 1e6;
+        result.p99Millis = percentile(samples, 99) / 1e6;
+        result.operationsPerSecond = samples.length / (totalNanos / 1e9);
+        result.booksPerSecond = books / (totalNanos / 1e9);
+        result.requestsPerIteration =
+                (double) (mServer.getRequestCount() - requestsBefore) / mIterations;
+        result.peakHeapMegabytes = sampler.getPeakHeapBytes() / 1e6;
+        long allocated = sampler.getAllocatedBytes();
+        result.allocatedBytesPerBook = allocated < 0 || books == 0 ? -1 : allocated / books;
+        result.collections = collectionCount() - collectionsBefore;
+        mResults.add(result);
+        System.out.println("load test " + result);
+        return result;
+    }
+
+    List<Result> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Write every result to the file as a JSON document
+     */
+    void writeJson(File file) throws IOException, JSONException {
+        JSONArray results = new JSONArray();
+        for (Result result : mResults) {
+            results.put(result.toJson());
+        }
+        JSONObject document = new JSONObject();
+        document.put("warmup", mWarmup);
+        document.put("iterations", mIterations);
+        document.put("java", System.getProperty("java.version"));
+        document.put("results", results);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(document.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long percentile(long[] sortedSamples, int percentile) {
+        if (sortedSamples.length == 0) {
+            return 0;
+        }
+        return sortedSamples[Math.min(sortedSamples.length - 1,
+                sortedSamples.length * percentile / 100)];
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Latencies of the operations of a workload. May be used from any thread.
+     */
+    static final class Recorder {
+
+        private long[] mSamples = new long[64];
+        private int mCount;
+
+        /**
+         * Record an operation that started at the given {@link System#nanoTime()} and just
+         * finished
+         */
+        synchronized void record(long startNanos) {
+            if (mCount == mSamples.length) {
+                mSamples = Arrays.copyOf(mSamples, mCount * 2);
+            }
+            mSamples[mCount++] = System.nanoTime() - startNanos;
+        }
+
+        synchronized long[] getSamples() {
+            return Arrays.copyOf(mSamples, mCount);
+        }
+    }
+
+    /**
+     * Samples the heap in use and the bytes allocated by every thread but the server's and
+     * its own, every few milliseconds, until finished. Threads that end between two samples
+     * lose at most their last few milliseconds of allocation.
+     */
+    private static final class ResourceSampler extends Thread {
+
+        private static final long SAMPLE_MILLIS = 5;
+
+        private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+        private final com.sun.management.ThreadMXBean mThreads;
+        // Bytes each thread had allocated at the last sample
+        private final Map<Long, Long> mLastAllocated = new HashMap<>();
+        private final Set<Long> mServerThreads = new HashSet<>();
+        private volatile boolean mFinished;
+        private long mPeakHeapBytes;
+        private long mAllocatedBytes;
+
+        ResourceSampler() {
+            super("load-test-sampler");
+            setDaemon(true);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            com.sun.management.ThreadMXBean hotspot = null;
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                hotspot = (com.sun.management.ThreadMXBean) threads;
+                if (!hotspot.isThreadAllocatedMemorySupported()
+                        || !hotspot.isThreadAllocatedMemoryEnabled()) {
+                    hotspot = null;
+                }
+            }
+            mThreads = hotspot;
+            // Only allocation from now on counts
+            sample(false);
+        }
+
+        @Override
+        public void run() {
+            while (!mFinished) {
+                sample(true);
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop sampling, after a last sample
+         */
+        void finish() throws InterruptedException {
+            mFinished = true;
+            join();
+            sample(true);
+        }
+
+        long getPeakHeapBytes() {
+            return mPeakHeapBytes;
+        }
+
+        /**
+         * Bytes allocated while sampling, or -1 if the JVM can't tell
+         */
+        long getAllocatedBytes() {
+            return mThreads != null ? mAllocatedBytes : -1;
+        }
+
+        private void sample(boolean count) {
+            mPeakHeapBytes = Math.max(mPeakHeapBytes, mMemory.getHeapMemoryUsage().getUsed());
+            if (mThreads == null) {
+                return;
+            }
+            long[] ids = mThreads.getAllThreadIds();
+            long[] allocated = mThreads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] < 0 || ids[i] == getId()) {
+                    continue;
+                }
+                if (mServerThreads.contains(ids[i])) {
+                    continue;
+                }
+                Long last = mLastAllocated.get(ids[i]);
+                if (last == null) {
+                    ThreadInfo info = mThreads.getThreadInfo(ids[i]);
+                    if (info != null
+                            && info.getThreadName().startsWith(LoadTestServer.THREAD_NAME_PREFIX)) {
+                        mServerThreads.add(ids[i]);
+                        continue;
+                    }
+                    // Started since the last sample, unless this is the first one
+                    last = count ? 0L : allocated[i];
+                }
+                if (count) {
+                    mAllocatedBytes += allocated[i] - last;
+                }
+                mLastAllocated.put(ids[i], allocated[i]);
+            }
+        }
+    }
+
+    static final class Result {
+        String name;
+        int iterations;
+        int operations;
+        long books;
+        double p50Millis;
+        double p90Millis;
+        double p99Millis;
+        double operationsPerSecond;
+        double booksPerSecond;
+        double requestsPerIteration;
+        double peakHeapMegabytes;
+        long allocatedBytesPerBook;
+        long collections;
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("iterations", iterations);
+            json.put("operations", operations);
+            json.put("books", books);
+            json.put("p50Millis", p50Millis);
+            json.put("p90Millis", p90Millis);
+            json.put("p99Millis", p99Millis);
+            json.put("operationsPerSecond", operationsPerSecond);
+            json.put("booksPerSecond", booksPerSecond);
+            json.put("requestsPerIteration", requestsPerIteration);
+            json.put("peakHeapMegabytes", peakHeapMegabytes);
+            json.put("allocatedBytesPerBook", allocatedBytesPerBook);
+            json.put("collections", collections);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, %.1f ops/s, "
+                            + "%.0f books/s, %.1f requests/iteration, peak heap %.1f MB, "
+                            + "%d B/book, %d GCs", name, p50Millis, p90Millis, p99Millis,
+                    operationsPerSecond, booksPerSecond, requestsPerIteration,
+                    peakHeapMegabytes, allocatedBytesPerBook, collections);
+        }
+    }
+}
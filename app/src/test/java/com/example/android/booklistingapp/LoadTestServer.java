@@ -0,0 +1,198 @@
+package com.example.android.booklistingapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the Google Books volume search, for load tests.
+ * <p>
+ * Every query has the same number of results, made of the books of a recorded response
+ * repeated with ids that are unique per query and position, so pages of a search don't
+ * overlap. Responses are sent after a fixed latency and written at a limited bandwidth, in
+ * small chunks, so they stream in like over a real link.
+ */
+final class LoadTestServer {
+
+    /**
+     * Prefix of the names of the server's threads, whose work isn't the app's
+     */
+    static final String THREAD_NAME_PREFIX = "load-test-server-";
+
+    private static final String ID_PLACEHOLDER = "@id@";
+    // Bandwidth limited responses are written in slices of this many milliseconds
+    private static final long SLICE_MILLIS = 10;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final String[] mItemPrefixes;
+    private final String[] mItemSuffixes;
+    private final int mTotalItems;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+
+    /**
+     * Create a server answering every query with the given number of results, made of the
+     * books of the response
+     */
+    LoadTestServer(byte[] response, int totalItems) throws IOException, JSONException {
+        JSONArray items = new JSONObject(new String(response, "UTF-8")).getJSONArray("items");
+        mItemPrefixes = new String[items.length()];
+        mItemSuffixes = new String[items.length()];
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            item.put("id", ID_PLACEHOLDER);
+            String json = item.toString();
+            int id = json.indexOf(ID_PLACEHOLDER);
+            mItemPrefixes[i] = json.substring(0, id);
+            mItemSuffixes[i] = json.substring(id + ID_PLACEHOLDER.length());
+        }
+        mTotalItems = totalItems;
+
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        THREAD_NAME_PREFIX + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequests.incrementAndGet();
+                try {
+                    respond(exchange);
+                } catch (InterruptedException e) {
+                    // The server is stopping
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Time the server waits before answering a request
+     */
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Rate at which response bodies are written, or 0 for no limit
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Returns the URL with the server in place of the Google APIs server
+     */
+    String localUrl(String url) {
+        return url.replace(BookUrlBuilder.GOOGLE_APIS_ROOT_URL,
+                "http://127.0.0.1:" + mServer.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Number of requests received so far
+     */
+    int getRequestCount() {
+        return mRequests.get();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException, InterruptedException {
+        Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+        String query = parameters.get("q");
+        int startIndex = parseInt(parameters.get("startIndex"), 0);
+        int maxResults = parseInt(parameters.get("maxResults"), 10);
+        byte[] body = page(query, startIndex, Math.min(startIndex + maxResults, mTotalItems))
+                .getBytes("UTF-8");
+
+        Thread.sleep(mLatencyMillis);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        long bytesPerSecond = mBytesPerSecond;
+        int slice = bytesPerSecond > 0
+                ? (int) Math.max(1, bytesPerSecond * SLICE_MILLIS / 1000) : body.length;
+        for (int offset = 0; offset < body.length; offset += slice) {
+            out.write(body, offset, Math.min(slice, body.length - offset));
+            out.flush();
+            if (bytesPerSecond > 0 && offset + slice < body.length) {
+                Thread.sleep(SLICE_MILLIS);
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * Returns the response with the results from start to end
+     */
+    private String page(String query, int start, int end) {
+        StringBuilder json = new StringBuilder("{\"kind\":\"books#volumes\",\"totalItems\":")
+                .append(mTotalItems);
+        if (start >= end) {
+            return json.append('}').toString();
+        }
+        json.append(",\"items\":[");
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                json.append(',');
+            }
+            int item = i % mItemPrefixes.length;
+            json.append(mItemPrefixes[item]).append(Integer.toHexString(query.hashCode()))
+                    .append('-').append(i).append(mItemSuffixes[item]);
+        }
+        return json.append("]}").toString();
+    }
+
+    private static Map<String, String> parameters(String rawQuery) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
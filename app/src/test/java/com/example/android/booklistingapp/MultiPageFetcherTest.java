@@ -0,0 +1,154 @@
+package com.example.android.booklistingapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link MultiPageFetcher}.
+ */
+public class MultiPageFetcherTest {
+
+    @Test
+    public void pages_areMergedInOrderWithoutDuplicates() {
+        MultiPageFetcher fetcher = new MultiPageFetcher(3);
+        final List<List<Book>> pages = Arrays.asList(
+                books("a", "b"), books("b", "c"), books("d"));
+        final List<String> merged = new ArrayList<>();
+
+        MultiPageFetcher.Result result = fetcher.fetch(new MultiPageFetcher.PageSource() {
+            @Override
+            public List<Book> fetchPage(int page) throws Exception {
+                // Finish the pages in reverse order
+                Thread.sleep((3 - page) * 20);
+                return pages.get(page);
+            }
+        }, 3, new MultiPageFetcher.Listener() {
+            @Override
+            public void onPagesMerged(List<Book> books, int mergedPages) {
+                for (Book book : books) {
+                    merged.add(book.getId());
+                }
+            }
+        });
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), ids(result.getBooks()));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), merged);
+        assertArrayEquals(new int[]{2, 1, 1}, result.getPageCounts());
+        assertEquals(0, result.getFailedPages());
+        assertEquals(3, result.getLeadingPages());
+    }
+
+    @Test
+    public void failedPages_doNotLoseSuccessfulOnes() {
+        MultiPageFetcher fetcher = new MultiPageFetcher(2);
+
+        MultiPageFetcher.Result result = fetcher.fetch(new MultiPageFetcher.PageSource() {
+            @Override
+            public List<Book> fetchPage(int page) throws Exception {
+                if (page == 1) {
+                    throw new IOException("Connection reset");
+                }
+                return page == 2 ? null : books("p" + page);
+            }
+        }, 4, null);
+
+        assertEquals(Arrays.asList("p0", "p3"), ids(result.getBooks()));
+        assertEquals(2, result.getFailedPages());
+        assertEquals(1, result.getLeadingPages());
+    }
+
+    @Test
+    public void throughput_scalesWithParallelismAgainstMockServer() throws Exception {
+        final int latencyMillis = 100;
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = exchange.getRequestURI().getQuery().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        final String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort()
+                + "/books/v1/volumes?q=java&maxResults=40&startIndex=";
+        MultiPageFetcher.PageSource source = new MultiPageFetcher.PageSource() {
+            @Override
+            public List<Book> fetchPage(int page) throws Exception {
+                HttpURLConnection connection =
+                        (HttpURLConnection) new URL(baseUrl + page * 40).openConnection();
+                InputStream in = connection.getInputStream();
+                while (in.read() != -1) {
+                    // Consume the body
+                }
+                in.close();
+                return books("page" + page);
+            }
+        };
+
+        try {
+            int pages = 8;
+            long serial = timeFetch(new MultiPageFetcher(1), source, pages);
+            long parallel = timeFetch(new MultiPageFetcher(4), source, pages);
+            long overCap = timeFetch(new MultiPageFetcher(8), source, pages);
+
+            // 8 pages take ~8 round trips serially, ~2 with 4 parallel requests, ~1 with 8
+            assertTrue("serial " + serial + " vs parallel " + parallel, parallel * 2 < serial);
+            assertTrue("parallel " + parallel + " vs 8 " + overCap, overCap < parallel);
+            assertTrue(serial >= pages * latencyMillis);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static long timeFetch(MultiPageFetcher fetcher, MultiPageFetcher.PageSource source,
+                                  int pages) {
+        long start = System.nanoTime();
+        MultiPageFetcher.Result result = fetcher.fetch(source, pages, null);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(pages, result.getBooks().size());
+        return elapsedMillis;
+    }
+
+    private static List<Book> books(String... ids) {
+        List<Book> books = new ArrayList<>();
+        for (String id : ids) {
+            books.add(new Book(id, "Title " + id, "Author", "http://books.google.com/" + id));
+        }
+        return books;
+    }
+
+    private static List<String> ids(List<Book> books) {
+        List<String> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.android.booklistingapp;
+
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link NetworkMonitor}.
+ */
+public class NetworkMonitorTest {
+
+    @Test
+    public void classify_byTypeSubtypeAndMetering() {
+        assertEquals(NetworkMonitor.CLASS_NONE, NetworkMonitor.classify(false,
+                ConnectivityManager.TYPE_WIFI, 0, false));
+        assertEquals(NetworkMonitor.CLASS_UNMETERED, NetworkMonitor.classify(true,
+                ConnectivityManager.TYPE_WIFI, 0, false));
+        // A phone's hotspot
+        assertEquals(NetworkMonitor.CLASS_METERED, NetworkMonitor.classify(true,
+                ConnectivityManager.TYPE_WIFI, 0, true));
+        assertEquals(NetworkMonitor.CLASS_METERED, NetworkMonitor.classify(true,
+                ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, true));
+        assertEquals(NetworkMonitor.CLASS_SLOW, NetworkMonitor.classify(true,
+                ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_EDGE, true));
+    }
+
+    @Test
+    public void policy_requestsLessOnMeteredAndSlowNetworks() {
+        NetworkMonitor.Policy unmetered =
+                NetworkMonitor.getPolicy(NetworkMonitor.CLASS_UNMETERED);
+        NetworkMonitor.Policy metered = NetworkMonitor.getPolicy(NetworkMonitor.CLASS_METERED);
+        NetworkMonitor.Policy slow = NetworkMonitor.getPolicy(NetworkMonitor.CLASS_SLOW);
+
+        assertEquals(BookPager.PAGE_SIZE, unmetered.getPageSize());
+        assertTrue(metered.getPageSize() * metered.getInitialPages()
+                < unmetered.getPageSize() * unmetered.getInitialPages());
+        assertTrue(slow.getPageSize() * slow.getInitialPages()
+                < metered.getPageSize() * metered.getInitialPages());
+        assertTrue(slow.getPrefetchDistance() < slow.getPageSize());
+        assertTrue(metered.isLoadingThumbnails());
+        assertFalse(slow.isLoadingThumbnails());
+        assertTrue(slow.getReadTimeout() > unmetered.getReadTimeout());
+        assertTrue(metered.getDetailPrefetchRows() < unmetered.getDetailPrefetchRows());
+        assertEquals(0, slow.getDetailPrefetchRows());
+        assertEquals(0, NetworkMonitor.getPolicy(NetworkMonitor.CLASS_NONE)
+                .getDetailPrefetchRows());
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.booklistingapp;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal benchmark harness: runs an operation after a warmup and reports latency
+ * percentiles, throughput and allocation per book, as JSON.
+ * <p>
+ * Iteration counts come from the "benchmark.warmup" and "benchmark.iterations" system
+ * properties (set by the benchmark Gradle task), with small defaults so a regular test run
+ * stays fast.
+ */
+final class PipelineBenchmark {
+
+    /**
+     * Benchmarked operation; returns the number of books it produced
+     */
+    interface Operation {
+        int run() throws Exception;
+    }
+
+    private static final int DEFAULT_WARMUP = 20;
+    private static final int DEFAULT_ITERATIONS = 100;
+
+    private final int mWarmup;
+    private final int mIterations;
+    private final List<Result> mResults = new ArrayList<>();
+
+    PipelineBenchmark() {
+        mWarmup = Integer.getInteger("benchmark.warmup", DEFAULT_WARMUP);
+        mIterations = Integer.getInteger("benchmark.iterations", DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Measure the operation, which handles the given number of input bytes per run.
+     */
+    Result measure(String name, long bytesPerRun, Operation operation) throws Exception {
+        for (int i = 0; i < mWarmup; i++) {
+            operation.run();
+        }
+        long[] samples = new long[mIterations];
+        long books = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < mIterations; i++) {
+            long iterationStart = System.nanoTime();
+            books += operation.run();
+            samples[i] = System.nanoTime() - iterationStart;
+        }
+        long totalNanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        Arrays.sort(samples);
+
+        Result result = new Result();
+        result.name = name;
+        result.iterations = mIterations;
+        result.booksPerRun = (int) (books / mIterations);
+        result.bytesPerRun = bytesPerRun;
+        result.p50Millis = samples[mIterations / 2] / 1e6;
+        result.p99Millis = samples[Math.min(mIterations - 1, mIterations * 99 / 100)] / 1e6;
+        result.booksPerSecond = books / (totalNanos / 1e9);
+        result.megabytesPerSecond = bytesPerRun * mIterations / (totalNanos / 1e9) / 1e6;
+        result.allocatedBytesPerBook = allocatedBefore < 0 || books == 0 ? -1 : allocated / books;
+        mResults.add(result);
+        System.out.println("benchmark " + result);
+        return result;
+    }
+
+    List<Result> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Write every result to the file as a JSON document
+     */
+    void writeJson(File file) throws IOException, JSONException {
+        JSONArray results = new JSONArray();
+        for (Result result : mResults) {
+            results.put(result.toJson());
+        }
+        JSONObject document = new JSONObject();
+        document.put("warmup", mWarmup);
+        document.put("iterations", mIterations);
+        document.put("java", System.getProperty("java.version"));
+        document.put("results", results);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(document.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()
+                    && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    static final class Result {
+        String name;
+        int iterations;
+        int booksPerRun;
+        long bytesPerRun;
+        double p50Millis;
+        double p99Millis;
+        double booksPerSecond;
+        double megabytesPerSecond;
+        long allocatedBytesPerBook;
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("iterations", iterations);
+            json.put("booksPerRun", booksPerRun);
+            json.put("bytesPerRun", bytesPerRun);
+            json.put("p50Millis", p50Millis);
+            json.put("p99Millis", p99Millis);
+            json.put("booksPerSecond", booksPerSecond);
+            json.put("megabytesPerSecond", megabytesPerSecond);
+            json.put("allocatedBytesPerBook", allocatedBytesPerBook);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: p50 %.3f ms, p99 %.3f ms, %.0f books/s, %.1f MB/s, "
+                            + "%d B/book", name, p50Millis, p99Millis, booksPerSecond,
+                    megabytesPerSecond, allocatedBytesPerBook);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.booklistingapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Benchmarks of the fetch/parse pipeline on recorded Google Books responses of several sizes:
+ * the JSONObject parser, the streaming parser and the whole fetch against a local server.
+ * <p>
+ * Results are written to build/benchmark/pipeline.json (or "benchmark.output"). When
+ * "benchmark.baseline" names an earlier results file, a p99 latency or allocation more than
+ * "benchmark.tolerance" times (default 1.25) the baseline fails the test. Run with
+ * {@code ./gradlew benchmark} for stable numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PipelineBenchmarkTest {
+
+    private static final String[] FIXTURES = {"volumes_full_1.json", "volumes_full_10.json",
+            "volumes_full_40.json", "volumes_projected_40.json"};
+    private static final int[] FIXTURE_BOOKS = {1, 10, 40, 40};
+
+    private static final double DEFAULT_TOLERANCE = 1.25;
+
+    private HttpServer server;
+    private final Map<String, byte[]> responses = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        // Measure the network path, not the disk cache
+        QueryUtils.setResponseCache(null);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                byte[] body = responses.get(query.substring(query.indexOf('=') + 1));
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        PipelineBenchmark benchmark = new PipelineBenchmark();
+        for (int i = 0; i < FIXTURES.length; i++) {
+            final String name = FIXTURES[i].substring(0, FIXTURES[i].lastIndexOf('.'));
+            final byte[] response = ProjectionBenchmarkTest.fixture(FIXTURES[i]);
+            final int expectedBooks = FIXTURE_BOOKS[i];
+            responses.put(name, response);
+
+            benchmark.measure("parse_json_object/" + name, response.length,
+                    new PipelineBenchmark.Operation() {
+                        @Override
+                        public int run() throws Exception {
+                            String json = QueryUtils.readFromStream(
+                                    new ByteArrayInputStream(response));
+                            return checkBooks(QueryUtils.extractFeatureFromJson(json),
+                                    expectedBooks);
+                        }
+                    });
+            benchmark.measure("parse_streaming/" + name, response.length,
+                    new PipelineBenchmark.Operation() {
+                        @Override
+                        public int run() throws Exception {
+                            return checkBooks(QueryUtils.readBooksFromStream(
+                                    new ByteArrayInputStream(response)), expectedBooks);
+                        }
+                    });
+            final String url = "http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/books/v1/volumes?q=" + name;
+            benchmark.measure("fetch_end_to_end/" + name, response.length,
+                    new PipelineBenchmark.Operation() {
+                        @Override
+                        public int run() throws Exception {
+                            return checkBooks(QueryUtils.fetchEarthquakeData(url),
+                                    expectedBooks);
+                        }
+                    });
+        }
+
+        File output = new File(System.getProperty("benchmark.output", "build/benchmark"),
+                "pipeline.json");
+        benchmark.writeJson(output);
+        assertEquals(FIXTURES.length * 3, benchmark.getResults().size());
+        for (PipelineBenchmark.Result result : benchmark.getResults()) {
+            assertTrue(result.name, result.p99Millis >= result.p50Millis);
+            assertTrue(result.name, result.booksPerSecond > 0);
+        }
+
+        String baseline = System.getProperty("benchmark.baseline");
+        if (baseline != null) {
+            compareWithBaseline(benchmark.getResults(), new File(baseline));
+        }
+    }
+
+    /**
+     * Fail if a result regressed beyond the tolerance compared to the baseline file
+     */
+    private static void compareWithBaseline(List<PipelineBenchmark.Result> results, File file)
+            throws Exception {
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance",
+                String.valueOf(DEFAULT_TOLERANCE)));
+        JSONArray baseline = new JSONObject(new String(Files.readAllBytes(file.toPath()),
+                "UTF-8")).getJSONArray("results");
+        StringBuilder regressions = new StringBuilder();
+        for (PipelineBenchmark.Result result : results) {
+            for (int i = 0; i < baseline.length(); i++) {
+                JSONObject previous = baseline.getJSONObject(i);
+                if (!previous.getString("name").equals(result.name)) {
+                    continue;
+                }
+                double p99 = previous.getDouble("p99Millis");
+                long allocated = previous.getLong("allocatedBytesPerBook");
+                if (result.p99Millis > p99 * tolerance) {
+                    regressions.append(String.format("%s p99 %.3f ms (baseline %.3f ms)\n",
+                            result.name, result.p99Millis, p99));
+                }
+                if (allocated > 0 && result.allocatedBytesPerBook > allocated * tolerance) {
+                    regressions.append(String.format("%s %d B/book (baseline %d B/book)\n",
+                            result.name, result.allocatedBytesPerBook, allocated));
+                }
+            }
+        }
+        if (regressions.length() > 0) {
+            fail("Benchmark regressions:\n" + regressions);
+        }
+    }
+
+    private static int checkBooks(List<Book> books, int expected) {
+        assertNotNull(books);
+        assertEquals(expected, books.size());
+        return books.size();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares full and field-projected Google Books responses: payload size and parse time,
+ * on fixtures with the schema of the volumes endpoint.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProjectionBenchmarkTest {
+
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void projectedResponse_parsesToTheSameBooks() throws Exception {
+        List<Book> full = QueryUtils.readBooksFromStream(
+                new ByteArrayInputStream(fixture("volumes_full_40.json")));
+        List<Book> projected = QueryUtils.readBooksFromStream(
+                new ByteArrayInputStream(fixture("volumes_projected_40.json")));
+
+        assertEquals(40, full.size());
+        assertEquals(full.size(), projected.size());
+        for (int i = 0; i < full.size(); i++) {
+            assertEquals(full.get(i).getId(), projected.get(i).getId());
+            assertEquals(full.get(i).getTitle(), projected.get(i).getTitle());
+            assertEquals(full.get(i).getAuthor(), projected.get(i).getAuthor());
+            assertEquals(full.get(i).getUrl(), projected.get(i).getUrl());
+            assertEquals(full.get(i).getThumbnailUrl(), projected.get(i).getThumbnailUrl());
+            assertTrue(projected.get(i).getThumbnailUrl().startsWith("https://"));
+        }
+    }
+
+    @Test
+    public void projectedResponse_isSmallerAndFasterToParse() throws Exception {
+        byte[] full = fixture("volumes_full_40.json");
+        byte[] projected = fixture("volumes_projected_40.json");
+
+        long fullNanos = medianParseNanos(full);
+        long projectedNanos = medianParseNanos(projected);
+
+        System.out.println(String.format(
+                "projection: bytes %d -> %d (%.1f%%), median parse %.3f ms -> %.3f ms",
+                full.length, projected.length, 100.0 * projected.length / full.length,
+                fullNanos / 1e6, projectedNanos / 1e6));
+        assertTrue(projected.length * 10 < full.length);
+        assertTrue(projectedNanos < fullNanos);
+    }
+
+    @Test
+    public void trimmedSchemaWithoutInfoLink_buildsLinkFromId() throws Exception {
+        String json = "{\"items\":[{\"volumeInfo\":{\"title\":\"Dune\"},\"id\":\"B1hSG45JCX4C\"}]}";
+        List<Book> books = QueryUtils.readBooksFromStream(
+                new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertEquals(1, books.size());
+        assertEquals("B1hSG45JCX4C", books.get(0).getId());
+        assertEquals("https://books.google.com/books?id=B1hSG45JCX4C", books.get(0).getUrl());
+        assertEquals(books.get(0).getUrl(),
+                QueryUtils.extractFeatureFromJson(json).get(0).getUrl());
+    }
+
+    private static long medianParseNanos(byte[] response) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            QueryUtils.readBooksFromStream(new ByteArrayInputStream(response));
+        }
+        long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            QueryUtils.readBooksFromStream(new ByteArrayInputStream(response));
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[ITERATIONS / 2];
+    }
+
+    static byte[] fixture(String name) throws IOException {
+        InputStream in = ProjectionBenchmarkTest.class.getClassLoader()
+                .getResourceAsStream("fixtures/" + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
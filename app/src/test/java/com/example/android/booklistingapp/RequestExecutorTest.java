@@ -0,0 +1,292 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link RequestExecutor}, run against a local server that injects delays,
+ * connection resets and 5xx responses.
+ */
+public class RequestExecutorTest {
+
+    private static final String BODY = "{\"items\":[]}";
+    private static final String OK = "ok";
+    private static final String RESET = "reset";
+    private static final String DELAY = "delay";
+    private static final String SLOW_BODY = "slow body";
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * What the server does for each next request: OK, RESET, DELAY or a response code.
+     * Requests after the script is used up get OK.
+     */
+    private final Queue<String> script = new LinkedList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/books/v1/volumes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String fault;
+                synchronized (script) {
+                    fault = script.isEmpty() ? OK : script.remove();
+                }
+                try {
+                    if (fault.equals(RESET)) {
+                        // Drop the connection halfway through the body
+                        exchange.sendResponseHeaders(200, BODY.length());
+                        exchange.getResponseBody().write(BODY.getBytes("UTF-8"), 0, 4);
+                        exchange.getResponseBody().flush();
+                        throw new IllegalStateException("Connection reset");
+                    }
+                    if (fault.equals(DELAY)) {
+                        Thread.sleep(3000);
+                    }
+                    int code = fault.equals(OK) || fault.equals(DELAY) || fault.equals(SLOW_BODY)
+                            ? 200 : Integer.parseInt(fault);
+                    byte[] body = BODY.getBytes("UTF-8");
+                    exchange.sendResponseHeaders(code, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    if (fault.equals(SLOW_BODY)) {
+                        out.flush();
+                        Thread.sleep(500);
+                    }
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException | IOException e) {
+                    // The client gave up on this request
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void serverErrors_areRetried() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        script(503, 500);
+
+        assertEquals(BODY, executor.execute(new GetAttempt(), null));
+        assertEquals(3, requests.get());
+        assertEquals(2, executor.getRetryCount());
+    }
+
+    @Test
+    public void connectionReset_isRetried() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        script(RESET);
+
+        assertEquals(BODY, executor.execute(new GetAttempt(), null));
+        assertEquals(2, requests.get());
+        assertEquals(1, executor.getRetryCount());
+    }
+
+    @Test
+    public void clientErrors_areNotRetried() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        script(404);
+
+        assertNull(executor.execute(new GetAttempt(), null));
+        assertEquals(1, requests.get());
+        assertEquals(0, executor.getRetryCount());
+    }
+
+    @Test
+    public void giveUp_afterMaxAttempts() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        script(503, 503, 503, 503);
+
+        try {
+            executor.execute(new GetAttempt(), null);
+            fail("Expected the request to fail");
+        } catch (RequestExecutor.ServerErrorException e) {
+            assertEquals(503, e.getResponseCode());
+        }
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void retries_stopWhenTheBudgetRunsOut() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        String[] failures = new String[200];
+        Arrays.fill(failures, "503");
+        script(failures);
+
+        int calls = 20;
+        for (int i = 0; i < calls; i++) {
+            try {
+                executor.execute(new GetAttempt(), null);
+                fail("Expected the request to fail");
+            } catch (RequestExecutor.ServerErrorException expected) {
+                // The server is down
+            }
+        }
+        // Without a budget every call would make 3 attempts
+        assertTrue("attempts: " + requests.get(), requests.get() < calls * 2);
+    }
+
+    @Test
+    public void slowRequest_isHedged() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        warmUp(executor);
+        int requestsBefore = requests.get();
+        long hedgesBefore = executor.getHedgeCount();
+        long hedgeWinsBefore = executor.getHedgeWinCount();
+        script(DELAY);
+
+        long start = System.nanoTime();
+        assertEquals(BODY, executor.execute(new GetAttempt(), null));
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("took " + millis + " ms", millis < 1500);
+        assertEquals(2, requests.get() - requestsBefore);
+        assertEquals(1, executor.getHedgeCount() - hedgesBefore);
+        assertEquals(1, executor.getHedgeWinCount() - hedgeWinsBefore);
+    }
+
+    @Test
+    public void slowBody_isNotHedged() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        warmUp(executor);
+        int requestsBefore = requests.get();
+        long hedgesBefore = executor.getHedgeCount();
+        script(SLOW_BODY);
+
+        assertEquals(BODY, executor.execute(new GetAttempt(), null));
+
+        assertEquals(1, requests.get() - requestsBefore);
+        assertEquals(0, executor.getHedgeCount() - hedgesBefore);
+    }
+
+    @Test
+    public void timeouts_adaptToObservedLatency() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        assertEquals(15000, executor.getConnectTimeout());
+        assertEquals(10000, executor.getReadTimeout());
+        assertEquals(-1, executor.getHedgeDelayMillis());
+
+        warmUp(executor);
+
+        assertTrue(executor.getConnectTimeout() < 15000);
+        assertTrue(executor.getReadTimeout() < 10000);
+        assertTrue(executor.getHedgeDelayMillis() > 0);
+    }
+
+    @Test
+    public void cancellation_stopsAStalledRequest() throws Exception {
+        RequestExecutor executor = new RequestExecutor(15000, 10000);
+        script(DELAY);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellationSignal.cancel();
+            }
+        }).start();
+
+        long start = System.nanoTime();
+        try {
+            executor.execute(new GetAttempt(), cancellationSignal);
+            fail("Expected the request to be cancelled");
+        } catch (OperationCanceledException expected) {
+            // Cancelled while waiting for the server
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + millis + " ms", millis < 1500);
+        assertEquals(0, executor.getRetryCount());
+    }
+
+    private void warmUp(RequestExecutor executor) throws IOException {
+        for (int i = 0; i < 20; i++) {
+            executor.execute(new GetAttempt(), null);
+        }
+    }
+
+    private void script(Object... faults) {
+        synchronized (script) {
+            for (Object fault : faults) {
+                script.add(String.valueOf(fault));
+            }
+        }
+    }
+
+    /**
+     * Plain GET of the test server. Like {@link QueryUtils}, it fails retryable responses and
+     * returns null for other errors.
+     */
+    private final class GetAttempt implements RequestExecutor.Attempt<String> {
+        @Override
+        public String run(CancellationSignal cancellationSignal, int connectTimeout,
+                          int readTimeout, RequestExecutor.Timing timing) throws IOException {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/books/v1/volumes?q=dune");
+            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            QueryUtils.disconnectOnCancel(urlConnection, cancellationSignal);
+            try {
+                urlConnection.setConnectTimeout(connectTimeout);
+                urlConnection.setReadTimeout(readTimeout);
+                int responseCode = urlConnection.getResponseCode();
+                timing.onFirstByte();
+                if (RequestExecutor.ServerErrorException.isRetryable(responseCode)) {
+                    throw new RequestExecutor.ServerErrorException(responseCode);
+                }
+                if (responseCode != 200) {
+                    return null;
+                }
+                InputStream in = urlConnection.getInputStream();
+                byte[] body = ThumbnailDiskCache.readFully(in);
+                if (body.length != urlConnection.getContentLength()) {
+                    // The parser fails the same way on a truncated response
+                    throw new EOFException("Truncated response");
+                }
+                return new String(body, "UTF-8");
+            } finally {
+                cancellationSignal.setOnCancelListener(null);
+                urlConnection.disconnect();
+            }
+        }
+    }
+}
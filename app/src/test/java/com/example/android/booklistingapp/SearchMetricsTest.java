@@ -0,0 +1,48 @@
+package com.example.android.booklistingapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SearchMetrics.Histogram}.
+ */
+public class SearchMetricsTest {
+
+    @Test
+    public void buckets_coverEveryDurationInOrder() {
+        int previous = -1;
+        for (long micros = 0; micros < 1 << 20; micros++) {
+            int bucket = SearchMetrics.Histogram.bucketOf(micros);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(SearchMetrics.Histogram.lowerBoundOf(bucket) <= micros);
+            assertTrue(SearchMetrics.Histogram.lowerBoundOf(bucket + 1) > micros);
+            previous = bucket;
+        }
+        assertEquals(SearchMetrics.Histogram.BUCKET_COUNT - 1,
+                SearchMetrics.Histogram.bucketOf(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void percentiles_areWithinTheBucketPrecision() {
+        SearchMetrics.Histogram histogram = new SearchMetrics.Histogram();
+        assertEquals(0, histogram.percentileMicros(50));
+        // 1 ms to 1000 ms
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+        assertClose(500000, histogram.percentileMicros(50));
+        assertClose(900000, histogram.percentileMicros(90));
+        assertClose(990000, histogram.percentileMicros(99));
+        assertEquals(1000000, histogram.percentileMicros(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.percentileMicros(99));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(actual + " is not within 12.5% of " + expected,
+                actual >= expected && actual <= expected * 1.125);
+    }
+}
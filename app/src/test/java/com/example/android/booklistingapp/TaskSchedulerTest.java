@@ -0,0 +1,175 @@
+package com.example.android.booklistingapp;
+
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link TaskScheduler}.
+ */
+public class TaskSchedulerTest {
+
+    @Test
+    public void lanes_runAtMostTheirConcurrency() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(new int[]{2, 1, 1, 1, 1}, 4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<TaskScheduler.Task<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(scheduler.execute(TaskScheduler.LANE_SEARCH, new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (TaskScheduler.Task<Object> task : tasks) {
+            task.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, maxRunning.get());
+        assertTrue(scheduler.getMaxQueueDepth(TaskScheduler.LANE_SEARCH) >= 6);
+        assertEquals(0, scheduler.getQueueDepth(TaskScheduler.LANE_SEARCH));
+    }
+
+    @Test
+    public void higherLanes_getFreedThreadsFirst() throws Exception {
+        // One thread for all background lanes, taken by a maintenance task
+        TaskScheduler scheduler = new TaskScheduler(new int[]{1, 1, 1, 1, 1}, 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        scheduler.execute(TaskScheduler.LANE_MAINTENANCE, new Runnable() {
+            @Override
+            public void run() {
+                await(blocked);
+            }
+        });
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        TaskScheduler.Task<Object> maintenance = scheduler.execute(
+                TaskScheduler.LANE_MAINTENANCE, record(order, "maintenance"));
+        TaskScheduler.Task<Object> details = scheduler.execute(
+                TaskScheduler.LANE_DETAILS, record(order, "details"));
+        TaskScheduler.Task<Object> images = scheduler.execute(
+                TaskScheduler.LANE_IMAGES, record(order, "images"));
+        TaskScheduler.Task<Object> prefetch = scheduler.execute(
+                TaskScheduler.LANE_PREFETCH, record(order, "prefetch"));
+        // Searches don't wait for background work
+        assertEquals("done", scheduler.await(TaskScheduler.LANE_SEARCH, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, null));
+        assertEquals(1, scheduler.getQueueDepth(TaskScheduler.LANE_PREFETCH));
+
+        blocked.countDown();
+        maintenance.get(5, TimeUnit.SECONDS);
+        details.get(5, TimeUnit.SECONDS);
+        images.get(5, TimeUnit.SECONDS);
+        prefetch.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("prefetch", "images", "details", "maintenance"), order);
+    }
+
+    @Test
+    public void cancelledTask_leavesTheQueue() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(new int[]{1, 1, 1, 1, 1}, 4);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        scheduler.execute(TaskScheduler.LANE_IMAGES, new Runnable() {
+            @Override
+            public void run() {
+                await(blocked);
+            }
+        });
+        final AtomicInteger runs = new AtomicInteger();
+        TaskScheduler.Task<Object> queued = scheduler.execute(TaskScheduler.LANE_IMAGES,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        runs.incrementAndGet();
+                    }
+                });
+        assertEquals(1, scheduler.getQueueDepth(TaskScheduler.LANE_IMAGES));
+
+        assertTrue(queued.cancel(false));
+        assertEquals(0, scheduler.getQueueDepth(TaskScheduler.LANE_IMAGES));
+        blocked.countDown();
+        scheduler.submit(TaskScheduler.LANE_IMAGES, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void await_throwsWhenCancelled() {
+        TaskScheduler scheduler = new TaskScheduler(new int[]{1, 1, 1, 1, 1}, 4);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        scheduler.execute(TaskScheduler.LANE_SEARCH, new Runnable() {
+            @Override
+            public void run() {
+                sleep(100);
+                cancellationSignal.cancel();
+            }
+        });
+        try {
+            scheduler.await(TaskScheduler.LANE_SEARCH, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    await(blocked);
+                    return null;
+                }
+            }, cancellationSignal);
+            fail("Expected the wait to be cancelled");
+        } catch (OperationCanceledException expected) {
+            // The task was still queued behind the first one
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}